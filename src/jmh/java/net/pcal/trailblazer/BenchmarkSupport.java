@@ -0,0 +1,119 @@
+package net.pcal.trailblazer;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.entity.MobCategory;
+import net.minecraft.world.level.block.Block;
+import net.pcal.trailblazer.TrailblazerRuntimeConfig.Rule;
+
+import java.util.*;
+
+/**
+ * Synthetic inputs shared by the benchmarks.  Everything is generated from fixed seeds, so every run (and
+ * every commit) measures exactly the same rules and position streams.
+ */
+final class BenchmarkSupport {
+
+    static final long SEED = 0x7261696C626C617AL;
+
+    /**
+     * Length of the precomputed input streams.  A power of two so that benchmarks can cycle through them
+     * with a mask.
+     */
+    static final int STREAM_LENGTH = 1 << 16;
+    static final int STREAM_MASK = STREAM_LENGTH - 1;
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Initialize the vanilla registries.  Safe to call more than once.
+     */
+    static void bootstrap() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    static TrailblazerRuntimeConfig createConfig(List<Rule> rules, int stepCacheSize) {
+        return new TrailblazerRuntimeConfig(rules, stepCacheSize, -1, false, false, -1, 0, 0, false, -1);
+    }
+
+    /**
+     * Rules on random blocks for random entity ids, like a big hand-written config.
+     */
+    static List<Rule> entityRules(int ruleCount, int entityIdsPerRule, Random random) {
+        final List<EntityType<?>> entityTypes = registryList(BuiltInRegistries.ENTITY_TYPE);
+        final List<Rule> out = new ArrayList<>();
+        for (int i = 0; i < ruleCount; i++) {
+            final Set<ResourceLocation> entityIds = new HashSet<>();
+            for (int j = 0; j < entityIdsPerRule; j++) {
+                entityIds.add(BuiltInRegistries.ENTITY_TYPE.getKey(pick(entityTypes, random)));
+            }
+            out.add(rule(i, random, entityIds, Set.of(), List.of()));
+        }
+        return out;
+    }
+
+    /**
+     * Rules on random blocks for unions of spawn groups, so that most entity types match many rules.
+     */
+    static List<Rule> spawnGroupRules(int ruleCount, Random random) {
+        final MobCategory[] categories = MobCategory.values();
+        final List<Rule> out = new ArrayList<>();
+        for (int i = 0; i < ruleCount; i++) {
+            final Set<MobCategory> spawnGroups = EnumSet.noneOf(MobCategory.class);
+            spawnGroups.add(categories[random.nextInt(categories.length)]);
+            spawnGroups.add(categories[random.nextInt(categories.length)]);
+            out.add(rule(i, random, Set.of(), spawnGroups, List.of()));
+        }
+        return out;
+    }
+
+    static Rule rule(int index, Random random, Set<ResourceLocation> entityIds, Set<MobCategory> spawnGroups,
+                     List<Set<ResourceLocation>> onlyIfBoots) {
+        final List<Block> blocks = registryList(BuiltInRegistries.BLOCK);
+        return new Rule("rule-" + index,
+                BuiltInRegistries.BLOCK.getKey(pick(blocks, random)), null, null,
+                BuiltInRegistries.BLOCK.getKey(pick(blocks, random)), false,
+                2 + random.nextInt(4), false, 1200, -1, null, entityIds, spawnGroups, null, onlyIfBoots);
+    }
+
+    /**
+     * Return distinct BlockPos.asLong() positions scattered over a square of loaded-ish terrain, roughly the
+     * way trails are: a few y levels, a spread of x and z.
+     */
+    static long[] distinctPositions(int count, Random random) {
+        final int side = Math.max(16, (int) Math.ceil(Math.sqrt(count)) * 2);
+        final Set<Long> seen = new LinkedHashSet<>();
+        while (seen.size() < count) {
+            seen.add(BlockPos.asLong(random.nextInt(side) - side / 2, 60 + random.nextInt(8), random.nextInt(side) - side / 2));
+        }
+        final long[] out = new long[count];
+        int i = 0;
+        for (final long pos : seen) out[i++] = pos;
+        return out;
+    }
+
+    /**
+     * Return a stream of STREAM_LENGTH positions drawn from the given ones.
+     */
+    static long[] positionStream(long[] positions, Random random) {
+        final long[] out = new long[STREAM_LENGTH];
+        for (int i = 0; i < out.length; i++) out[i] = positions[random.nextInt(positions.length)];
+        return out;
+    }
+
+    static <T> List<T> registryList(Iterable<T> registry) {
+        final List<T> out = new ArrayList<>();
+        registry.forEach(out::add);
+        return out;
+    }
+
+    static <T> T pick(List<T> list, Random random) {
+        return list.get(random.nextInt(list.size()));
+    }
+}
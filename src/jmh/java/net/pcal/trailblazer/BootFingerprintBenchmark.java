@@ -0,0 +1,69 @@
+package net.pcal.trailblazer;
+
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.item.enchantment.Enchantments;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Computing an entity's boot fingerprint from its armor slots, which happens whenever its boots change.
+ * The boot ids mentioned by the rules are the ones the default config uses.
+ */
+@State(Scope.Thread)
+public class BootFingerprintBenchmark {
+
+    public enum Boots {
+        BAREFOOT,
+        PLAIN,
+        ENCHANTED
+    }
+
+    @Param
+    public Boots boots;
+
+    private TrailblazerRuntimeConfig config;
+    private List<ItemStack> armorSlots;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.bootstrap();
+        final Random random = new Random(BenchmarkSupport.SEED);
+        final List<TrailblazerRuntimeConfig.Rule> rules = new ArrayList<>();
+        rules.add(BenchmarkSupport.rule(0, random, Set.of(new ResourceLocation("minecraft:player")), Set.of(),
+                List.of(Set.of(new ResourceLocation("minecraft:netherite_boots"),
+                        new ResourceLocation("minecraft:fire_protection"),
+                        new ResourceLocation("minecraft:frost_walker")))));
+        rules.add(BenchmarkSupport.rule(1, random, Set.of(new ResourceLocation("minecraft:player")), Set.of(),
+                List.of(Set.of(new ResourceLocation("minecraft:leather_boots")),
+                        Set.of(new ResourceLocation("minecraft:feather_falling")),
+                        Set.of(TrailblazerRuntimeConfig.BAREFOOT_ID))));
+        this.config = BenchmarkSupport.createConfig(rules, 500);
+
+        // armor slots are feet first, like Entity.getArmorSlots()
+        final ItemStack feet = switch (this.boots) {
+            case BAREFOOT -> ItemStack.EMPTY;
+            case PLAIN -> new ItemStack(Items.IRON_BOOTS);
+            case ENCHANTED -> {
+                final ItemStack stack = new ItemStack(Items.NETHERITE_BOOTS);
+                stack.enchant(Enchantments.UNBREAKING, 3);
+                stack.enchant(Enchantments.MENDING, 1);
+                stack.enchant(Enchantments.FIRE_PROTECTION, 4);
+                stack.enchant(Enchantments.FROST_WALKER, 2);
+                yield stack;
+            }
+        };
+        this.armorSlots = List.of(feet, new ItemStack(Items.IRON_LEGGINGS), new ItemStack(Items.IRON_CHESTPLATE),
+                new ItemStack(Items.IRON_HELMET));
+    }
+
+    @Benchmark
+    public long computeBootFingerprint() {
+        return TrailblazerService.computeBootFingerprint(this.armorSlots, this.config);
+    }
+}
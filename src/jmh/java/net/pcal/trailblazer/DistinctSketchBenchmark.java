@@ -0,0 +1,85 @@
+package net.pcal.trailblazer;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+
+/**
+ * Counting the distinct entities that step on a block: adding an entity to the block's DistinctSketch and
+ * reading the count back, against keeping an exact IntOpenHashSet of entity hashes per block, which is
+ * what a BlockHistory object would have needed.
+ *
+ * Footprint per block: the sketch is always 16 bytes inline in the store's arrays.  The set is an object
+ * plus an int[] table of at least 16 entries, well over 100 bytes even for one entity and growing with
+ * entitiesPerBlock; run with '-prof gc' to see it in the allocation rate.  StepHistoryBenchmark compares
+ * counting distinct entities with counting steps inside the store.
+ */
+@State(Scope.Thread)
+public class DistinctSketchBenchmark {
+
+    private static final int BLOCKS = 1024;
+
+    /**
+     * One entity pacing back and forth, a handful (still counted exactly by the sketch) and a crowd.
+     */
+    @Param({"1", "4", "32"})
+    public int entitiesPerBlock;
+
+    private int[] blocks;
+    private int[] entityHashes;
+    private long[] sketchLows;
+    private long[] sketchHighs;
+    private IntOpenHashSet[] sets;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(BenchmarkSupport.SEED);
+        this.blocks = new int[BenchmarkSupport.STREAM_LENGTH];
+        this.entityHashes = new int[BenchmarkSupport.STREAM_LENGTH];
+        for (int i = 0; i < BenchmarkSupport.STREAM_LENGTH; i++) {
+            this.blocks[i] = random.nextInt(BLOCKS);
+            this.entityHashes[i] = random.nextInt(this.entitiesPerBlock) * 0x61C88647;
+        }
+        this.sketchLows = new long[BLOCKS];
+        this.sketchHighs = new long[BLOCKS];
+        this.sets = new IntOpenHashSet[BLOCKS];
+    }
+
+    @Benchmark
+    public int sketch() {
+        final int i = this.next++ & BenchmarkSupport.STREAM_MASK;
+        final int block = this.blocks[i];
+        if (i == 0) clear();
+        final int fingerprint = DistinctSketch.fingerprint(this.entityHashes[i]);
+        final long low = this.sketchLows[block];
+        final long high = this.sketchHighs[block];
+        this.sketchLows[block] = DistinctSketch.addLow(low, high, fingerprint);
+        this.sketchHighs[block] = DistinctSketch.addHigh(low, high, fingerprint);
+        return DistinctSketch.count(this.sketchLows[block], this.sketchHighs[block]);
+    }
+
+    @Benchmark
+    public int hashSet() {
+        final int i = this.next++ & BenchmarkSupport.STREAM_MASK;
+        final int block = this.blocks[i];
+        if (i == 0) clear();
+        IntOpenHashSet set = this.sets[block];
+        if (set == null) set = this.sets[block] = new IntOpenHashSet();
+        set.add(this.entityHashes[i]);
+        return set.size();
+    }
+
+    /**
+     * Start over each time through the stream, the way histories time out, so the sets don't just fill up
+     * once and stop allocating.
+     */
+    private void clear() {
+        for (int b = 0; b < BLOCKS; b++) {
+            this.sketchLows[b] = 0;
+            this.sketchHighs[b] = 0;
+            this.sets[b] = null;
+        }
+    }
+}
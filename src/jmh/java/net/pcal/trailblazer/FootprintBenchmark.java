@@ -0,0 +1,69 @@
+package net.pcal.trailblazer;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.util.Mth;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+
+import static net.pcal.trailblazer.BenchmarkSupport.STREAM_LENGTH;
+import static net.pcal.trailblazer.BenchmarkSupport.STREAM_MASK;
+
+/**
+ * Working out which blocks an entity has stepped on each time it moves onto a new one: centerOnly is the
+ * single BlockPos.asLong() under the entity's center, which is all TrailblazerService looked at before
+ * footprintSteps; footprint walks a Footprint, skipping blocks that were under the entity last time, as
+ * the service does now.
+ *
+ * Entities walk a random path one block at a time.  With width 0.6 (a player) footprint should cost about
+ * the same as centerOnly, since narrow entities still only get the center block; the wider widths (a horse,
+ * a ravager, something modded) show what footprintSteps costs for the entities it's meant for.  Neither
+ * should allocate; check with '-prof gc'.
+ */
+@State(Scope.Thread)
+public class FootprintBenchmark {
+
+    @Param({"0.6", "1.3965", "1.95", "4.0"})
+    public float width;
+
+    private final double[] xs = new double[STREAM_LENGTH];
+    private final double[] zs = new double[STREAM_LENGTH];
+    private final Footprint footprint = new Footprint();
+    private final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+    private long lastMin = TrailblazerEntity.NO_LAST_STEP;
+    private long lastMax = TrailblazerEntity.NO_LAST_STEP;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(BenchmarkSupport.SEED);
+        double x = 0.5, z = 0.5;
+        for (int i = 0; i < STREAM_LENGTH; i++) {
+            if (random.nextBoolean()) {
+                x += random.nextBoolean() ? 1 : -1;
+            } else {
+                z += random.nextBoolean() ? 1 : -1;
+            }
+            this.xs[i] = Math.floor(x) + random.nextDouble();
+            this.zs[i] = Math.floor(z) + random.nextDouble();
+        }
+    }
+
+    @Benchmark
+    public long centerOnly() {
+        final int i = this.next++ & STREAM_MASK;
+        return BlockPos.asLong(Mth.floor(this.xs[i]), 63, Mth.floor(this.zs[i]));
+    }
+
+    @Benchmark
+    public long footprint() {
+        final int i = this.next++ & STREAM_MASK;
+        final Footprint footprint = this.footprint;
+        footprint.begin(this.xs[i], 64, this.zs[i], this.width, this.lastMin, this.lastMax);
+        this.lastMin = footprint.getMin();
+        this.lastMax = footprint.getMax();
+        long sum = footprint.getCenter();
+        while (footprint.next(this.pos)) sum += this.pos.asLong();
+        return sum;
+    }
+}
@@ -0,0 +1,68 @@
+package net.pcal.trailblazer;
+
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.pcal.trailblazer.TrailblazerRuntimeConfig.CompiledRule;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+
+import static net.pcal.trailblazer.BenchmarkSupport.STREAM_LENGTH;
+import static net.pcal.trailblazer.BenchmarkSupport.STREAM_MASK;
+
+/**
+ * The rule lookup at the top of TrailblazerService.entitySteppingOnBlock: hasRules() for the entity type,
+ * then getRules() for the block state underfoot.
+ *
+ * noMatchingRules walks entity/block pairs that almost never have a rule, which is what nearly every call
+ * looks like.  spawnGroupUnions uses rules that each match a union of spawn groups, so most entity types
+ * have rules and the per-block table is actually consulted.
+ */
+@State(Scope.Thread)
+public class RuleLookupBenchmark {
+
+    /**
+     * Roughly the default config, and a very large one.
+     */
+    @Param({"8", "1024"})
+    public int ruleCount;
+
+    private TrailblazerRuntimeConfig entityIdConfig;
+    private TrailblazerRuntimeConfig spawnGroupConfig;
+    private final EntityType<?>[] entityTypes = new EntityType<?>[STREAM_LENGTH];
+    private final BlockState[] states = new BlockState[STREAM_LENGTH];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.bootstrap();
+        final Random random = new Random(BenchmarkSupport.SEED);
+        this.entityIdConfig = BenchmarkSupport.createConfig(BenchmarkSupport.entityRules(this.ruleCount, 2, random), 500);
+        this.spawnGroupConfig = BenchmarkSupport.createConfig(BenchmarkSupport.spawnGroupRules(this.ruleCount, random), 500);
+        final List<EntityType<?>> allEntityTypes = BenchmarkSupport.registryList(BuiltInRegistries.ENTITY_TYPE);
+        final List<Block> allBlocks = BenchmarkSupport.registryList(BuiltInRegistries.BLOCK);
+        for (int i = 0; i < STREAM_LENGTH; i++) {
+            this.entityTypes[i] = BenchmarkSupport.pick(allEntityTypes, random);
+            this.states[i] = BenchmarkSupport.pick(allBlocks, random).defaultBlockState();
+        }
+    }
+
+    @Benchmark
+    public CompiledRule[] noMatchingRules() {
+        final int i = this.next++ & STREAM_MASK;
+        final EntityType<?> entityType = this.entityTypes[i];
+        if (!this.entityIdConfig.hasRules(entityType)) return null;
+        return this.entityIdConfig.getRules(entityType, this.states[i]);
+    }
+
+    @Benchmark
+    public CompiledRule[] spawnGroupUnions() {
+        final int i = this.next++ & STREAM_MASK;
+        final EntityType<?> entityType = this.entityTypes[i];
+        if (!this.spawnGroupConfig.hasRules(entityType)) return null;
+        return this.spawnGroupConfig.getRules(entityType, this.states[i]);
+    }
+}
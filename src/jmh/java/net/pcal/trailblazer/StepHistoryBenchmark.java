@@ -0,0 +1,65 @@
+package net.pcal.trailblazer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+
+/**
+ * The step history updates that StepEngine makes: increment the block's count, forget it once it reaches
+ * the rule's stepCount, and expire timed-out histories at the end of every tick.
+ *
+ * When distinctPositions is larger than stepCacheSize the store is under constant eviction pressure.  With
+ * distinctEntities, steps come from a pool of ENTITY_COUNT entities and are counted with the per-block
+ * DistinctSketch instead of plainly.
+ */
+@State(Scope.Thread)
+public class StepHistoryBenchmark {
+
+    private static final int DIMENSION = StepHistoryStore.NO_DIMENSION + 1;
+    private static final int STEP_COUNT = 4;
+    private static final int TIMEOUT_TICKS = 1200;
+    private static final int STEPS_PER_TICK = 64;
+    private static final int MAX_EXPIRATIONS_PER_TICK = 1024;
+    private static final int ENTITY_COUNT = 64;
+
+    /**
+     * The default cache size, and a very large one.
+     */
+    @Param({"500", "100000"})
+    public int stepCacheSize;
+
+    @Param({"1000", "1000000"})
+    public int distinctPositions;
+
+    @Param({"false", "true"})
+    public boolean distinctEntities;
+
+    private StepHistoryStore store;
+    private long[] positions;
+    private int[] entityHashes;
+    private int next = 0;
+    private long tick = 0;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(BenchmarkSupport.SEED);
+        this.positions = BenchmarkSupport.positionStream(BenchmarkSupport.distinctPositions(this.distinctPositions, random), random);
+        this.entityHashes = new int[BenchmarkSupport.STREAM_LENGTH];
+        for (int i = 0; i < this.entityHashes.length; i++) this.entityHashes[i] = random.nextInt(ENTITY_COUNT) * 0x61C88647;
+        this.store = new StepHistoryStore(this.stepCacheSize);
+        // start from a warm store
+        for (int i = 0; i < BenchmarkSupport.STREAM_LENGTH; i++) step();
+    }
+
+    @Benchmark
+    public int step() {
+        final int i = this.next++;
+        if ((i % STEPS_PER_TICK) == 0) this.store.expire(++this.tick, MAX_EXPIRATIONS_PER_TICK, null);
+        final long pos = this.positions[i & BenchmarkSupport.STREAM_MASK];
+        final int count = this.distinctEntities ?
+                this.store.incrementDistinct(DIMENSION, pos, this.tick, TIMEOUT_TICKS, 0, this.entityHashes[i & BenchmarkSupport.STREAM_MASK]) :
+                this.store.increment(DIMENSION, pos, this.tick, TIMEOUT_TICKS, 0);
+        if (count >= STEP_COUNT) this.store.remove(DIMENSION, pos);
+        return count;
+    }
+}
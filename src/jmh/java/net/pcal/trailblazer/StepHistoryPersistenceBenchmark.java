@@ -0,0 +1,70 @@
+package net.pcal.trailblazer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * What persisting step history costs the level thread: each step updates the store and, with persist,
+ * records the change for StepHistoryPersistence; every STEPS_PER_TICK steps the tick ends, which hands the
+ * changes to the background thread.
+ *
+ * All file I/O is on the background thread, so persist=true should cost only a few nanoseconds a step more
+ * than persist=false, however slow the disk is.  The benchmark steps far faster than a server ticks, so the
+ * background thread may fall behind and batches be dropped; that's the path that keeps the level thread from
+ * ever waiting on it.
+ */
+@State(Scope.Thread)
+public class StepHistoryPersistenceBenchmark {
+
+    private static final int DIMENSION = StepHistoryStore.NO_DIMENSION + 1;
+    private static final int TIMEOUT_TICKS = 1200;
+    private static final int STEPS_PER_TICK = 64;
+    private static final int MAX_EXPIRATIONS_PER_TICK = 1024;
+    private static final int FLUSH_SECONDS = 1;
+
+    @Param({"false", "true"})
+    public boolean persist;
+
+    private StepHistoryStore store;
+    private StepHistoryPersistence persistence;
+    private Path directory;
+    private long[] positions;
+    private int next = 0;
+    private long tick = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        final Random random = new Random(BenchmarkSupport.SEED);
+        this.positions = BenchmarkSupport.positionStream(BenchmarkSupport.distinctPositions(10000, random), random);
+        this.store = new StepHistoryStore(5000);
+        if (this.persist) {
+            this.directory = Files.createTempDirectory("trailblazer-persistence");
+            this.persistence = new StepHistoryPersistence(FLUSH_SECONDS);
+            this.persistence.openDimension(DIMENSION, this.directory.resolve("benchmark.steps"));
+        }
+        // start warm
+        for (int i = 0; i < BenchmarkSupport.STREAM_LENGTH; i++) step();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (this.persistence != null) this.persistence.shutdown();
+    }
+
+    @Benchmark
+    public int step() {
+        final int i = this.next++;
+        final long pos = this.positions[i & BenchmarkSupport.STREAM_MASK];
+        if ((i % STEPS_PER_TICK) == 0) {
+            this.store.expire(++this.tick, MAX_EXPIRATIONS_PER_TICK, null);
+            if (this.persistence != null) this.persistence.tickEnded(this.store, this.tick, TIMEOUT_TICKS);
+        }
+        final int count = this.store.increment(DIMENSION, pos, this.tick, TIMEOUT_TICKS, 0);
+        if (this.persistence != null) this.persistence.recordChange(DIMENSION, pos, count, this.tick);
+        return count;
+    }
+}
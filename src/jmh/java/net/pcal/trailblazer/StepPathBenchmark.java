@@ -0,0 +1,96 @@
+package net.pcal.trailblazer;
+
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.block.Block;
+import net.pcal.trailblazer.TrailblazerRuntimeConfig.CompiledRule;
+import net.pcal.trailblazer.TrailblazerRuntimeConfig.Rule;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static net.pcal.trailblazer.BenchmarkSupport.STREAM_LENGTH;
+import static net.pcal.trailblazer.BenchmarkSupport.STREAM_MASK;
+
+/**
+ * The part of TrailblazerLevelService.stepOn that doesn't need a live level: the governor, the heatmap
+ * publish and StepEngine.step against a compiled config, with history expiring at the end of every
+ * STEPS_PER_TICK steps.  Every step is by an entity on a block that some rule applies to, so the full rule
+ * and history path is taken, including conversions.
+ *
+ * This path must not allocate once warmed up: gc.alloc.rate.norm (reported because the jmh config runs
+ * the gc profiler) should be zero, give or take JMH's own rounding.  Anything more is a regression.
+ * StepPathAllocationTest checks the same thing, less the compiled config, on every build.
+ */
+@State(Scope.Thread)
+public class StepPathBenchmark {
+
+    private static final int DIMENSION = StepHistoryStore.NO_DIMENSION + 1;
+    private static final int RULE_COUNT = 8;
+    private static final int STEPS_PER_TICK = 64;
+    private static final int MAX_EXPIRATIONS_PER_TICK = 1024;
+
+    @Param({"1000", "100000"})
+    public int distinctPositions;
+
+    /**
+     * Governor off, and always engaged (sampling and capping every step).
+     */
+    @Param({"-1", "0"})
+    public int governorThresholdMicros;
+
+    private TrailblazerRuntimeConfig config;
+    private StepEngine<CompiledRule> engine;
+    private LoadGovernor governor;
+    private HeatmapExporter heatmap;
+    private final int[] entityTypeIds = new int[STREAM_LENGTH];
+    private final int[] stateIds = new int[STREAM_LENGTH];
+    private long[] positions;
+    private int next = 0;
+    private long tick = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.bootstrap();
+        final Random random = new Random(BenchmarkSupport.SEED);
+        final List<Rule> rules = BenchmarkSupport.entityRules(RULE_COUNT, 2, random);
+        this.config = new TrailblazerRuntimeConfig(rules, 500, -1, false, false, this.governorThresholdMicros,
+                256, 64, false, -1);
+        this.engine = new StepEngine<>(new StepHistoryStore(this.config.getStepCacheSize()), (d, pos, count, t) -> {});
+        this.governor = this.config.createGovernor();
+        this.heatmap = new HeatmapExporter(Files.createTempDirectory("trailblazer-heat"), 3600);
+        this.positions = BenchmarkSupport.positionStream(BenchmarkSupport.distinctPositions(this.distinctPositions, random), random);
+        for (int i = 0; i < STREAM_LENGTH; i++) {
+            final Rule rule = rules.get(random.nextInt(rules.size()));
+            final List<ResourceLocation> entityIds = new ArrayList<>(rule.entityIds());
+            this.entityTypeIds[i] = BuiltInRegistries.ENTITY_TYPE.getId(
+                    BuiltInRegistries.ENTITY_TYPE.get(BenchmarkSupport.pick(entityIds, random)));
+            this.stateIds[i] = Block.getId(BuiltInRegistries.BLOCK.get(rule.blockId()).defaultBlockState());
+        }
+        // start warm
+        for (int i = 0; i < STREAM_LENGTH; i++) step();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.heatmap.shutdown();
+    }
+
+    @Benchmark
+    public StepEngine.Outcome step() {
+        final int i = this.next++;
+        if ((i % STEPS_PER_TICK) == 0) {
+            this.governor.tickEnded();
+            this.engine.getStore().expire(++this.tick, MAX_EXPIRATIONS_PER_TICK, null);
+        }
+        final int s = i & STREAM_MASK;
+        final long pos = this.positions[s];
+        final int weight = this.governor.admit(DIMENSION, StepHistoryStore.chunkOf(pos));
+        if (weight == 0) return null;
+        this.heatmap.publishStep(DIMENSION, pos, weight);
+        return this.engine.step(this.config, this.entityTypeIds[s], this.stateIds[s], 0, s, weight, DIMENSION, pos, this.tick);
+    }
+}
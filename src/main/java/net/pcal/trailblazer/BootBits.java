@@ -0,0 +1,128 @@
+package net.pcal.trailblazer;
+
+import java.util.*;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Gives the boot conditions that rules mention bits in a long, so an entity's boots can be reduced to a
+ * fingerprint that StepEngine matches rules against with a mask.  A condition is one sublist of a rule's
+ * onlyIfBoots or skipIfBoots: a set of boot, enchantment and barefoot ids that must all be present.
+ *
+ * Normally each id gets a bit, and a condition's mask is the bits of its ids.  If the rules mention more
+ * ids than a long has bits, each distinct condition gets a bit instead, which the fingerprint has when the
+ * entity is wearing everything in it.  That's slower to fingerprint, but fingerprints are only taken when an
+ * entity's boots change.  If there are more distinct conditions than bits too, the ones left over can't be
+ * matched: an onlyIf condition without a bit never matches and a skipIf condition without a bit always
+ * does, so the rules that use them are never applied rather than applied wrongly.
+ *
+ * Ids are whatever identifies a boot, enchantment or barefoot; TrailblazerRuntimeConfig uses ResourceLocation.
+ */
+final class BootBits<K> {
+
+    // ===================================================================================
+    // Constants
+
+    static final int MAX_BITS = Long.SIZE;
+
+    /**
+     * Never set in a fingerprint once conditions have run out of bits, so masks containing it never match.
+     */
+    private static final long NEVER = 1L << (MAX_BITS - 1);
+
+    // ===================================================================================
+    // Fields
+
+    /**
+     * The bit for each id, or null if bits are per condition.
+     */
+    private final Map<K, Long> idBits;
+
+    /**
+     * The conditions that have bits, in bit order, or null if bits are per id.
+     */
+    private final List<Set<K>> conditions;
+
+    // ===================================================================================
+    // Constructors
+
+    /**
+     * @param conditionLists the onlyIfBoots and skipIfBoots of every rule.
+     */
+    BootBits(Iterable<? extends List<? extends Set<K>>> conditionLists) {
+        final Set<K> ids = new LinkedHashSet<>();
+        final Set<Set<K>> conditions = new LinkedHashSet<>();
+        for (final List<? extends Set<K>> conditionList : conditionLists) {
+            for (final Set<K> condition : conditionList) {
+                conditions.add(condition);
+                ids.addAll(condition);
+            }
+        }
+        if (ids.size() <= MAX_BITS) {
+            final Map<K, Long> idBits = new HashMap<>();
+            for (final K id : ids) idBits.put(id, 1L << idBits.size());
+            this.idBits = Collections.unmodifiableMap(idBits);
+            this.conditions = null;
+        } else {
+            this.idBits = null;
+            this.conditions = List.copyOf(conditions).subList(0, Math.min(conditions.size(), MAX_BITS - 1));
+        }
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * @return true if there were too many ids for a bit each, so bits are per condition.
+     */
+    boolean isPerCondition() {
+        return this.conditions != null;
+    }
+
+    /**
+     * @return false if the condition was left without a bit, and can't be matched.
+     */
+    boolean hasBit(Set<K> condition) {
+        return this.conditions == null || this.conditions.contains(condition);
+    }
+
+    /**
+     * @return the fingerprint of an entity wearing the given ids.
+     */
+    long getFingerprint(Set<K> worn) {
+        long out = 0;
+        if (this.conditions == null) {
+            for (final K id : worn) {
+                final Long bit = this.idBits.get(id);
+                if (bit != null) out |= bit;
+            }
+        } else {
+            for (int i = 0; i < this.conditions.size(); i++) {
+                if (worn.containsAll(this.conditions.get(i))) out |= 1L << i;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return a mask for each of the given conditions, which the fingerprint matches if it has all the bits of.
+     */
+    long[] toMasks(List<? extends Set<K>> conditionList, boolean skip) {
+        final long[] out = new long[conditionList.size()];
+        for (int i = 0; i < out.length; i++) {
+            final Set<K> condition = requireNonNull(conditionList.get(i));
+            if (this.conditions == null) {
+                for (final K id : condition) out[i] |= this.idBits.get(id);
+            } else {
+                final int bit = this.conditions.indexOf(condition);
+                if (bit >= 0) {
+                    out[i] = 1L << bit;
+                } else {
+                    // every fingerprint has all of no bits, and none has NEVER
+                    out[i] = skip ? 0 : NEVER;
+                }
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,138 @@
+package net.pcal.trailblazer;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.Arrays;
+
+/**
+ * Block conversions waiting to be applied to one Level.  Rules are triggered from inside entity movement,
+ * so rather than doing a full block update there, conversions are queued and applied at the end of the
+ * server tick, at most maxPerTick of them, grouped by chunk.  Whatever doesn't fit in a tick's budget is
+ * carried over to the next tick, oldest first.  A position can only be queued once at a time.
+ *
+ * Not thread safe; must only be used on the thread that ticks the Level.
+ */
+class ConversionQueue {
+
+    // ===================================================================================
+    // Constants
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // ===================================================================================
+    // Fields
+
+    private final LongOpenHashSet queuedPositions = new LongOpenHashSet();
+    private final BlockPos.MutableBlockPos scratchPos = new BlockPos.MutableBlockPos();
+    private long[] positions = new long[INITIAL_CAPACITY];
+    private Block[] expectedBlocks = new Block[INITIAL_CAPACITY];
+    private BlockState[] nextStates = new BlockState[INITIAL_CAPACITY];
+    private int[] batch = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private long appliedCount = 0;
+    private long deferredCount = 0;
+    private long discardedCount = 0;
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * Queue a change of the block at pos to nextState, to be applied only if the block there is still
+     * expectedBlock.  Returns false if a conversion is already queued for the position.
+     */
+    boolean add(long pos, Block expectedBlock, BlockState nextState) {
+        if (!this.queuedPositions.add(pos)) return false;
+        if (this.size == this.positions.length) {
+            final int newCapacity = this.size * 2;
+            this.positions = Arrays.copyOf(this.positions, newCapacity);
+            this.expectedBlocks = Arrays.copyOf(this.expectedBlocks, newCapacity);
+            this.nextStates = Arrays.copyOf(this.nextStates, newCapacity);
+            this.batch = new int[newCapacity];
+        }
+        this.positions[this.size] = pos;
+        this.expectedBlocks[this.size] = expectedBlock;
+        this.nextStates[this.size] = nextState;
+        this.size++;
+        return true;
+    }
+
+    /**
+     * Apply up to maxPerTick of the oldest queued conversions to the given level, chunk by chunk.  A
+     * negative maxPerTick means no limit.
+     */
+    void flush(Level level, int maxPerTick) {
+        if (this.size == 0) return;
+        final int batchSize = maxPerTick < 0 ? this.size : Math.min(this.size, maxPerTick);
+        for (int i = 0; i < batchSize; i++) this.batch[i] = i;
+        final long[] positions = this.positions;
+        IntArrays.quickSort(this.batch, 0, batchSize, (a, b) -> Long.compare(chunkOf(positions[a]), chunkOf(positions[b])));
+        for (int i = 0; i < batchSize; i++) {
+            final int entry = this.batch[i];
+            final long pos = this.positions[entry];
+            this.queuedPositions.remove(pos);
+            this.scratchPos.set(pos);
+            if (level.isLoaded(this.scratchPos) &&
+                    level.getBlockState(this.scratchPos).is(this.expectedBlocks[entry])) {
+                level.setBlockAndUpdate(this.scratchPos, this.nextStates[entry]);
+                this.appliedCount++;
+            } else {
+                // the chunk went away or something else changed the block first
+                this.discardedCount++;
+            }
+        }
+        final int remaining = this.size - batchSize;
+        System.arraycopy(this.positions, batchSize, this.positions, 0, remaining);
+        System.arraycopy(this.expectedBlocks, batchSize, this.expectedBlocks, 0, remaining);
+        System.arraycopy(this.nextStates, batchSize, this.nextStates, 0, remaining);
+        Arrays.fill(this.expectedBlocks, remaining, this.size, null);
+        Arrays.fill(this.nextStates, remaining, this.size, null);
+        this.size = remaining;
+        this.deferredCount += remaining;
+    }
+
+    /**
+     * @return the number of conversions waiting to be applied.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the total number of conversions that have been applied.
+     */
+    long getAppliedCount() {
+        return this.appliedCount;
+    }
+
+    /**
+     * @return the total number of times a conversion was carried over to the next tick because the tick's
+     * budget was used up.
+     */
+    long getDeferredCount() {
+        return this.deferredCount;
+    }
+
+    /**
+     * @return the total number of conversions that were dropped because the block had changed or its chunk
+     * was no longer loaded by the time they were applied.
+     */
+    long getDiscardedCount() {
+        return this.discardedCount;
+    }
+
+    // ===================================================================================
+    // Private
+
+    private static long chunkOf(long pos) {
+        return ChunkPos.asLong(SectionPos.blockToSectionCoord(BlockPos.getX(pos)),
+                SectionPos.blockToSectionCoord(BlockPos.getZ(pos)));
+    }
+}
@@ -0,0 +1,115 @@
+package net.pcal.trailblazer;
+
+/**
+ * A 128-bit estimate of how many distinct entities have stepped on a block, held in two longs so that
+ * StepHistoryStore can keep it in parallel arrays like everything else.
+ *
+ * Each entity is reduced to a nonzero 16-bit fingerprint.  While no more than four distinct fingerprints
+ * have been seen, they're kept exactly in the four 16-bit lanes of 'low' and 'high' is 0.  The fifth
+ * switches the sketch to a 127-bit linear counting bitmap: each fingerprint sets one bit, bit 63 of 'high'
+ * marks the switch, and the count is estimated from the fraction of bits still clear.  That's within a few
+ * percent up to around a hundred entities, and saturates at MAX_ESTIMATE.  Counts never go down as more
+ * entities are added.
+ *
+ * Two entities whose fingerprints collide are counted once, so even the exact counts may occasionally be
+ * one low.
+ */
+final class DistinctSketch {
+
+    // ===================================================================================
+    // Constants
+
+    private static final int LANES = 4;
+    private static final int LANE_BITS = 16;
+    private static final long LANE_MASK = 0xFFFFL;
+    private static final int BITMAP_BITS = 127;
+    private static final long BITMAP_FLAG = 1L << 63;
+
+    /**
+     * The estimate when every bit is set.
+     */
+    static final int MAX_ESTIMATE = (int) Math.round(BITMAP_BITS * Math.log(BITMAP_BITS));
+
+    private DistinctSketch() {
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * @return a nonzero 16-bit fingerprint for an entity, from a hash of its identity.
+     */
+    static int fingerprint(int entityHash) {
+        int h = entityHash * 0x9E3779B9;
+        h ^= h >>> 16;
+        h &= (int) LANE_MASK;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * @return the low half of the sketch after adding the given fingerprint.
+     */
+    static long addLow(long low, long high, int fingerprint) {
+        if ((high & BITMAP_FLAG) != 0) return setBit(low, fingerprint, false);
+        for (int lane = 0; lane < LANES; lane++) {
+            final long value = (low >>> (lane * LANE_BITS)) & LANE_MASK;
+            if (value == fingerprint) return low;
+            if (value == 0) return low | ((long) fingerprint << (lane * LANE_BITS));
+        }
+        // full; switch to the bitmap
+        long bitmap = 0;
+        for (int lane = 0; lane < LANES; lane++) {
+            bitmap = setBit(bitmap, (int) ((low >>> (lane * LANE_BITS)) & LANE_MASK), false);
+        }
+        return setBit(bitmap, fingerprint, false);
+    }
+
+    /**
+     * @return the high half of the sketch after adding the given fingerprint.  Must be given the low half
+     * as it was before addLow().
+     */
+    static long addHigh(long low, long high, int fingerprint) {
+        if ((high & BITMAP_FLAG) != 0) return setBit(high, fingerprint, true);
+        for (int lane = 0; lane < LANES; lane++) {
+            final long value = (low >>> (lane * LANE_BITS)) & LANE_MASK;
+            if (value == fingerprint || value == 0) return high;
+        }
+        long bitmap = BITMAP_FLAG;
+        for (int lane = 0; lane < LANES; lane++) {
+            bitmap = setBit(bitmap, (int) ((low >>> (lane * LANE_BITS)) & LANE_MASK), true);
+        }
+        return setBit(bitmap, fingerprint, true);
+    }
+
+    /**
+     * @return the number of distinct entities added to the sketch, or an estimate of it.
+     */
+    static int count(long low, long high) {
+        if ((high & BITMAP_FLAG) == 0) {
+            int count = 0;
+            for (int lane = 0; lane < LANES; lane++) {
+                if (((low >>> (lane * LANE_BITS)) & LANE_MASK) != 0) count++;
+            }
+            return count;
+        }
+        final int clear = BITMAP_BITS - Long.bitCount(low) - Long.bitCount(high & ~BITMAP_FLAG);
+        if (clear == 0) return MAX_ESTIMATE;
+        return (int) Math.round(-BITMAP_BITS * Math.log((double) clear / BITMAP_BITS));
+    }
+
+    // ===================================================================================
+    // Private
+
+    private static int bitOf(int fingerprint) {
+        return fingerprint % BITMAP_BITS;
+    }
+
+    /**
+     * Set the fingerprint's bit if it falls in the given half: bits 0-63 are in 'low', 64-126 in 'high'.
+     */
+    private static long setBit(long half, int fingerprint, boolean isHigh) {
+        final int bit = bitOf(fingerprint);
+        if (isHigh) return bit >= Long.SIZE ? half | (1L << (bit - Long.SIZE)) : half;
+        return bit < Long.SIZE ? half | (1L << bit) : half;
+    }
+}
@@ -0,0 +1,255 @@
+package net.pcal.trailblazer;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel of (dimension, BlockPos.asLong()) keys, each scheduled for a game tick.  There's one
+ * bucket per tick modulo the wheel size; keys scheduled further out than one revolution just wait in their
+ * bucket until their tick comes around, and keys scheduled for a tick that advance() has already passed go
+ * in the next bucket it will look at.  Nodes live in parallel arrays with a free list, so scheduling and
+ * advancing don't allocate once the arrays have grown to the working set; clear() lets them shrink again.
+ *
+ * schedule() returns a handle to the key's node, which cancel() takes to unlink it in constant time, so
+ * keys that their owner forgets don't linger in the wheel.
+ *
+ * The wheel doesn't know anything about what it's scheduling; when a key's tick arrives, advance() asks a
+ * Visitor what to do with it, which either drops it or reschedules it.
+ *
+ * Not thread safe.
+ */
+class ExpiryWheel {
+
+    // ===================================================================================
+    // Constants
+
+    /**
+     * Returned by a Visitor to drop the key from the wheel.
+     */
+    static final long NO_TICK = Long.MIN_VALUE;
+
+    /**
+     * Never returned by schedule().
+     */
+    static final int NO_NODE = -1;
+
+    private static final int BUCKET_COUNT = 4096;
+    private static final int BUCKET_MASK = BUCKET_COUNT - 1;
+    private static final int INITIAL_NODES = 64;
+    private static final int NIL = -1;
+
+    /**
+     * nodeBuckets value for nodes on the free list, and for the one being visited.
+     */
+    private static final int UNLINKED = -1;
+
+    /**
+     * nodeBuckets value for nodes in the detached list.
+     */
+    private static final int DETACHED = -2;
+
+    // ===================================================================================
+    // Fields
+
+    private final int[] bucketHeads = new int[BUCKET_COUNT];
+    private int[] nodeDimensions;
+    private long[] nodePositions;
+    private long[] nodeTicks;
+    private int[] nodeNext;
+    private int[] nodePrev;
+    private int[] nodeBuckets;
+    private int freeHead;
+    private int allocatedNodes;
+    private int size;
+
+    /**
+     * The next tick whose bucket hasn't been processed, or NO_TICK if advance() hasn't been called.
+     */
+    private long cursorTick = NO_TICK;
+
+    /**
+     * What's left of a bucket that advance() ran out of budget in the middle of.
+     */
+    private int detachedHead = NIL;
+
+    /**
+     * The node advance() is visiting, and whether it was cancelled during the visit.
+     */
+    private int visiting = NIL;
+    private boolean visitingCancelled;
+
+    // ===================================================================================
+    // Constructors
+
+    ExpiryWheel() {
+        clear();
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    interface Visitor {
+        /**
+         * Called when the tick a key was scheduled for has arrived.  Return the tick to reschedule the key for,
+         * or NO_TICK to drop it.
+         */
+        long visit(int dimension, long pos, long scheduledTick);
+    }
+
+    /**
+     * @return the number of keys in the wheel.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of nodes the arrays have room for.
+     */
+    int capacity() {
+        return this.nodeNext.length;
+    }
+
+    /**
+     * @return the handle of the key's node, which stays the same until the key is dropped or cancelled.
+     */
+    int schedule(int dimension, long pos, long tick) {
+        if (this.freeHead == NIL) {
+            if (this.allocatedNodes == this.nodeNext.length) {
+                final int newCapacity = this.allocatedNodes * 2;
+                this.nodeDimensions = Arrays.copyOf(this.nodeDimensions, newCapacity);
+                this.nodePositions = Arrays.copyOf(this.nodePositions, newCapacity);
+                this.nodeTicks = Arrays.copyOf(this.nodeTicks, newCapacity);
+                this.nodeNext = Arrays.copyOf(this.nodeNext, newCapacity);
+                this.nodePrev = Arrays.copyOf(this.nodePrev, newCapacity);
+                this.nodeBuckets = Arrays.copyOf(this.nodeBuckets, newCapacity);
+            }
+            this.freeHead = this.allocatedNodes++;
+            this.nodeNext[this.freeHead] = NIL;
+        }
+        final int node = this.freeHead;
+        this.freeHead = this.nodeNext[node];
+        this.nodeDimensions[node] = dimension;
+        this.nodePositions[node] = pos;
+        link(node, tick);
+        this.size++;
+        return node;
+    }
+
+    /**
+     * Take the node with the given handle out of the wheel.  If it's being visited, it's dropped whatever the
+     * visitor returns.
+     */
+    void cancel(int node) {
+        if (node == this.visiting) {
+            this.visitingCancelled = true;
+            return;
+        }
+        unlink(node);
+        free(node);
+    }
+
+    /**
+     * Visit keys whose ticks are at or before 'now', in tick order, until they've all been visited or maxWork
+     * keys have been looked at.  Anything left over is picked up by the next call.
+     *
+     * @return the number of keys looked at.
+     */
+    int advance(long now, int maxWork, Visitor visitor) {
+        if (this.cursorTick == NO_TICK || now - this.cursorTick >= BUCKET_COUNT) {
+            // every bucket is due, so one revolution starting anywhere covers them all
+            this.cursorTick = now - BUCKET_COUNT + 1;
+        }
+        int work = 0;
+        while (work < maxWork) {
+            if (this.detachedHead == NIL) {
+                if (this.cursorTick > now) break;
+                final int bucket = (int) (this.cursorTick & BUCKET_MASK);
+                this.detachedHead = this.bucketHeads[bucket];
+                this.bucketHeads[bucket] = NIL;
+                for (int node = this.detachedHead; node != NIL; node = this.nodeNext[node]) {
+                    this.nodeBuckets[node] = DETACHED;
+                }
+                this.cursorTick++;
+                continue;
+            }
+            final int node = this.detachedHead;
+            unlink(node);
+            work++;
+            final long tick = this.nodeTicks[node];
+            if (tick > now) {
+                // scheduled for a later revolution
+                link(node, tick);
+                continue;
+            }
+            this.visiting = node;
+            this.visitingCancelled = false;
+            final long nextTick;
+            try {
+                nextTick = visitor.visit(this.nodeDimensions[node], this.nodePositions[node], tick);
+            } finally {
+                this.visiting = NIL;
+            }
+            if (nextTick == NO_TICK || this.visitingCancelled) {
+                free(node);
+            } else {
+                link(node, nextTick);
+            }
+        }
+        return work;
+    }
+
+    /**
+     * Drop every key and shrink the arrays back to their initial size.  Handles from before are invalid.
+     */
+    void clear() {
+        Arrays.fill(this.bucketHeads, NIL);
+        this.nodeDimensions = new int[INITIAL_NODES];
+        this.nodePositions = new long[INITIAL_NODES];
+        this.nodeTicks = new long[INITIAL_NODES];
+        this.nodeNext = new int[INITIAL_NODES];
+        this.nodePrev = new int[INITIAL_NODES];
+        this.nodeBuckets = new int[INITIAL_NODES];
+        this.freeHead = NIL;
+        this.allocatedNodes = 0;
+        this.size = 0;
+        this.detachedHead = NIL;
+    }
+
+    // ===================================================================================
+    // Private
+
+    private void link(int node, long tick) {
+        this.nodeTicks[node] = tick;
+        // a tick that's already been passed would otherwise wait a whole revolution
+        final long bucketTick = this.cursorTick != NO_TICK && tick < this.cursorTick ? this.cursorTick : tick;
+        final int bucket = (int) (bucketTick & BUCKET_MASK);
+        final int head = this.bucketHeads[bucket];
+        this.nodeNext[node] = head;
+        this.nodePrev[node] = NIL;
+        if (head != NIL) this.nodePrev[head] = node;
+        this.nodeBuckets[node] = bucket;
+        this.bucketHeads[bucket] = node;
+    }
+
+    private void unlink(int node) {
+        final int bucket = this.nodeBuckets[node];
+        if (bucket == UNLINKED) return;
+        final int prev = this.nodePrev[node], next = this.nodeNext[node];
+        if (prev != NIL) {
+            this.nodeNext[prev] = next;
+        } else if (bucket == DETACHED) {
+            this.detachedHead = next;
+        } else {
+            this.bucketHeads[bucket] = next;
+        }
+        if (next != NIL) this.nodePrev[next] = prev;
+        this.nodeBuckets[node] = UNLINKED;
+    }
+
+    private void free(int node) {
+        this.nodeBuckets[node] = UNLINKED;
+        this.nodeNext[node] = this.freeHead;
+        this.freeHead = node;
+        this.size--;
+    }
+}
@@ -0,0 +1,115 @@
+package net.pcal.trailblazer;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.util.Mth;
+
+import static net.pcal.trailblazer.TrailblazerEntity.NO_LAST_STEP;
+
+/**
+ * Walks the blocks an entity is standing on: the one under its center if it's no wider than a block, or
+ * every block under its bounding box if it's wider, less any that were also under it last time.  Positions
+ * are handed out through a MutableBlockPos, so walking a footprint doesn't allocate.
+ *
+ * Footprints are only taken when the entity moves onto a different block (that's when EntityMixin calls
+ * in), so a block the edge of a wide entity slides onto between those moves is picked up at the next one.
+ *
+ * Not thread safe; TrailblazerService keeps one and reuses it for every step.
+ */
+final class Footprint {
+
+    // ===================================================================================
+    // Constants
+
+    /**
+     * Entities no wider than this only step on the block under their center, like they always have.
+     */
+    static final float NARROW_WIDTH = 1.0f;
+
+    // ===================================================================================
+    // Fields
+
+    private int y, minX, maxX, minZ, maxZ;
+    private long center;
+    private boolean skipLast;
+    private int lastMinX, lastMaxX, lastMinZ, lastMaxZ;
+    private int nextX, nextZ;
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * @return true if an entity whose feet are at the given y is standing on top of a block at blockY
+     * whose collision shape reaches collisionTop (1 for a full block, 0.5 for a bottom slab...).
+     */
+    static boolean isStandingOn(double y, int blockY, double collisionTop) {
+        return Math.abs(blockY + collisionTop - y) < 1.0E-5;
+    }
+
+    /**
+     * Start walking the footprint of an entity of the given width at x and z, standing on blocks at blockY
+     * (see TrailblazerEntity.getSupportingBlockY()).  Blocks in the footprint given by lastMin and lastMax
+     * (from getMin() and getMax() last time) are skipped, unless lastMin is NO_LAST_STEP.
+     */
+    void begin(double x, int blockY, double z, float width, long lastMin, long lastMax) {
+        this.y = blockY;
+        final int centerX = Mth.floor(x), centerZ = Mth.floor(z);
+        this.center = BlockPos.asLong(centerX, this.y, centerZ);
+        if (width <= NARROW_WIDTH) {
+            this.minX = this.maxX = centerX;
+            this.minZ = this.maxZ = centerZ;
+        } else {
+            // a box edge exactly on a block boundary only touches the next block
+            final double half = width / 2.0;
+            this.minX = Mth.floor(x - half);
+            this.maxX = Mth.ceil(x + half) - 1;
+            this.minZ = Mth.floor(z - half);
+            this.maxZ = Mth.ceil(z + half) - 1;
+        }
+        this.skipLast = lastMin != NO_LAST_STEP && BlockPos.getY(lastMin) == this.y;
+        if (this.skipLast) {
+            this.lastMinX = BlockPos.getX(lastMin);
+            this.lastMaxX = BlockPos.getX(lastMax);
+            this.lastMinZ = BlockPos.getZ(lastMin);
+            this.lastMaxZ = BlockPos.getZ(lastMax);
+        }
+        this.nextX = this.minX;
+        this.nextZ = this.minZ;
+    }
+
+    /**
+     * Set pos to the next block in the footprint.
+     *
+     * @return false if there are no more.
+     */
+    boolean next(BlockPos.MutableBlockPos pos) {
+        while (this.nextX <= this.maxX) {
+            final int x = this.nextX, z = this.nextZ;
+            if (++this.nextZ > this.maxZ) {
+                this.nextZ = this.minZ;
+                this.nextX++;
+            }
+            if (this.skipLast && x >= this.lastMinX && x <= this.lastMaxX && z >= this.lastMinZ && z <= this.lastMaxZ) {
+                continue;
+            }
+            pos.set(x, this.y, z);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the BlockPos.asLong() of the block under the entity's center, which is what EntityMixin
+     * compares against to decide whether it has moved.
+     */
+    long getCenter() {
+        return this.center;
+    }
+
+    long getMin() {
+        return BlockPos.asLong(this.minX, this.y, this.minZ);
+    }
+
+    long getMax() {
+        return BlockPos.asLong(this.maxX, this.y, this.maxZ);
+    }
+}
@@ -0,0 +1,115 @@
+package net.pcal.trailblazer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, lock-free queue of heat events (a packed BlockPos and an int describing the event), for any
+ * number of producers and a single consumer.  Events are kept in parallel arrays, so publishing never
+ * allocates.
+ *
+ * Each slot has a sequence number.  A producer claims the next position with a CAS on the tail, and may
+ * only do that once the slot's sequence says the consumer is done with it; if it isn't, the ring is full and
+ * the event is dropped and counted rather than waited for.  Once the producer has written the event it
+ * publishes it by advancing the slot's sequence, which is what the consumer waits for.  So offer() never
+ * blocks and drain() never sees a half-written event.
+ */
+final class HeatEventRing {
+
+    // ===================================================================================
+    // Fields
+
+    private final int mask;
+    private final long[] positions;
+    private final int[] events;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Only touched by the consumer.
+     */
+    private long head = 0;
+
+    // ===================================================================================
+    // Constructors
+
+    /**
+     * @param capacity a power of two.
+     */
+    HeatEventRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        this.mask = capacity - 1;
+        this.positions = new long[capacity];
+        this.events = new int[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) this.sequences.set(i, i);
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    interface EventHandler {
+        void event(long pos, int event);
+    }
+
+    /**
+     * Publish an event.  Safe to call from any thread.
+     *
+     * @return false if the ring was full and the event was dropped.
+     */
+    boolean offer(long pos, int event) {
+        long t = this.tail.get();
+        while (true) {
+            final int slot = (int) t & this.mask;
+            final long sequence = this.sequences.get(slot);
+            if (sequence == t) {
+                if (this.tail.compareAndSet(t, t + 1)) {
+                    this.positions[slot] = pos;
+                    this.events[slot] = event;
+                    this.sequences.lazySet(slot, t + 1);
+                    this.published.increment();
+                    return true;
+                }
+                t = this.tail.get();
+            } else if (sequence < t) {
+                // the consumer hasn't got to this slot since it was last filled
+                this.dropped.increment();
+                return false;
+            } else {
+                // another producer claimed it first
+                t = this.tail.get();
+            }
+        }
+    }
+
+    /**
+     * Hand up to maxEvents published events to the handler, oldest first.  Must only be called from the
+     * consumer thread.
+     *
+     * @return the number of events handled.
+     */
+    int drain(EventHandler handler, int maxEvents) {
+        int count = 0;
+        while (count < maxEvents) {
+            final long h = this.head;
+            final int slot = (int) h & this.mask;
+            if (this.sequences.get(slot) != h + 1) break;
+            handler.event(this.positions[slot], this.events[slot]);
+            this.sequences.lazySet(slot, h + this.mask + 1);
+            this.head = h + 1;
+            count++;
+        }
+        return count;
+    }
+
+    long getPublishedCount() {
+        return this.published.sum();
+    }
+
+    long getDroppedCount() {
+        return this.dropped.sum();
+    }
+}
@@ -0,0 +1,274 @@
+package net.pcal.trailblazer;
+
+import com.google.gson.JsonObject;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+import static net.pcal.trailblazer.TrailblazerService.LOGGER_NAME;
+import static net.pcal.trailblazer.TrailblazerService.LOG_PREFIX;
+
+/**
+ * Optional export of where entities walk, for server analytics.  Level threads publish step and conversion
+ * events into a HeatEventRing, which never blocks; if it's full the event is dropped and counted.  A single
+ * background thread drains the ring every DRAIN_MILLIS into a heat grid per chunk (step and conversion
+ * counts for each of its 16x16 columns) and every intervalSeconds writes a snapshot of each dimension to a
+ * new file, '[dimension id]-[epoch millis].heat', in the output directory.
+ *
+ * A snapshot holds only what happened since the one before it, and only the chunks where something did;
+ * once it's written the grids are forgotten.  So memory and the cost of a snapshot are bounded by how many
+ * chunks are stepped on in one interval, not by how many ever have been.  Each snapshot starts where the
+ * dimension's last one ended, so adding up a dimension's files in order gives its totals with nothing lost,
+ * however late they're read.  A dimension where nothing has happened isn't written, and the next snapshot
+ * covers the quiet time too; if a snapshot can't be written, its counts carry over into the next.  Files
+ * are never deleted by the exporter: whatever reads them should delete them once it has added them up.
+ *
+ * Snapshot format, big-endian, with StepTrace varints:
+ *
+ *   int     MAGIC
+ *   int     VERSION
+ *   long    when the interval the snapshot covers started, in epoch millis
+ *   long    when the snapshot was taken, which is when the interval ended
+ *   varint  number of chunks
+ *   for each chunk:
+ *     int          chunk x
+ *     int          chunk z
+ *     varint[256]  step counts, indexed by (x & 15) + (z & 15) * 16
+ *     varint[256]  conversion counts, indexed the same way
+ *
+ * Snapshots are written to a temporary file and moved into place, so readers never see a partial one.  The
+ * millis in a file's name are when it was taken, so a dimension's files sort into order by name.
+ *
+ * The publish methods may be called from any thread; the rest must be called on the server thread.
+ */
+class HeatmapExporter {
+
+    // ===================================================================================
+    // Constants
+
+    static final int MAGIC = 0x54424854; // 'TBHT'
+    static final int VERSION = 2;
+    static final String FILE_EXTENSION = ".heat";
+
+    private static final int RING_CAPACITY = 1 << 16;
+    private static final long DRAIN_MILLIS = 50;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final int COLUMNS = 256;
+    private static final int STEP = 0;
+    private static final int CONVERSION = 1;
+    private static final int MAX_WEIGHT = (1 << 15) - 1;
+    private static final int MAX_SPARE_GRIDS = 1024;
+
+    // ===================================================================================
+    // Fields
+
+    private final Logger logger = LogManager.getLogger(LOGGER_NAME);
+    private final Path directory;
+    private final HeatEventRing ring = new HeatEventRing(RING_CAPACITY);
+    private final ScheduledExecutorService aggregator;
+    private final Map<Integer, String> dimensionNames = new ConcurrentHashMap<>();
+    private final HeatEventRing.EventHandler handler = this::aggregate;
+    private volatile int chunkCount = 0;
+    private volatile long snapshotCount = 0;
+
+    /**
+     * Indexed by dimension number.  Only touched on the aggregator thread.
+     */
+    private DimensionHeat[] dimensions = new DimensionHeat[0];
+
+    /**
+     * Zeroed grids from earlier intervals, for reuse.  Only touched on the aggregator thread.
+     */
+    private final ArrayList<int[]> spareGrids = new ArrayList<>();
+
+    // ===================================================================================
+    // Constructors
+
+    HeatmapExporter(Path directory, int intervalSeconds) {
+        this.directory = requireNonNull(directory);
+        this.aggregator = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "Trailblazer heatmap");
+            t.setDaemon(true);
+            return t;
+        });
+        this.aggregator.scheduleWithFixedDelay(this::drainAll, DRAIN_MILLIS, DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+        this.aggregator.scheduleWithFixedDelay(this::writeSnapshots, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // ===================================================================================
+    // Any thread methods
+
+    /**
+     * Note that an entity stepped on a block, counting as 'weight' steps.
+     */
+    void publishStep(int dimension, long pos, int weight) {
+        this.ring.offer(pos, dimension << 16 | Math.min(weight, MAX_WEIGHT) << 1 | STEP);
+    }
+
+    /**
+     * Note that a rule converted a block.
+     */
+    void publishConversion(int dimension, long pos) {
+        this.ring.offer(pos, dimension << 16 | 1 << 1 | CONVERSION);
+    }
+
+    // ===================================================================================
+    // Server thread methods
+
+    /**
+     * Give the dimension with the given number a name, which is what its snapshot file is named after.
+     * Events for dimensions without names are aggregated but not written.
+     */
+    void dimensionLoaded(int dimension, String name) {
+        this.dimensionNames.put(dimension, requireNonNull(name));
+    }
+
+    JsonObject toJson() {
+        final JsonObject out = new JsonObject();
+        out.addProperty("published", this.ring.getPublishedCount());
+        out.addProperty("dropped", this.ring.getDroppedCount());
+        out.addProperty("chunks", this.chunkCount);
+        out.addProperty("snapshots", this.snapshotCount);
+        return out;
+    }
+
+    /**
+     * Write snapshots of everything published so far without waiting for the interval, and wait for them.
+     */
+    void writeSnapshotsNow() {
+        try {
+            this.aggregator.submit(this::writeSnapshots).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error(LOG_PREFIX + "Unable to write heatmaps", e);
+        }
+    }
+
+    /**
+     * Write a final snapshot of everything published so far, waiting for the background thread to finish.
+     */
+    void shutdown() {
+        this.aggregator.execute(() -> {
+            drainAll();
+            writeSnapshots();
+        });
+        this.aggregator.shutdown();
+        try {
+            if (!this.aggregator.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn(LOG_PREFIX + "Timed out waiting for heatmaps to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ===================================================================================
+    // Aggregator thread methods
+
+    private void drainAll() {
+        while (this.ring.drain(this.handler, RING_CAPACITY) > 0) {
+            // keep going until it's empty
+        }
+    }
+
+    private void aggregate(long pos, int event) {
+        final int dimension = event >>> 16;
+        if (dimension >= this.dimensions.length) this.dimensions = Arrays.copyOf(this.dimensions, dimension + 1);
+        DimensionHeat heat = this.dimensions[dimension];
+        if (heat == null) heat = this.dimensions[dimension] = new DimensionHeat(System.currentTimeMillis());
+        final long chunkPos = StepHistoryStore.chunkOf(pos);
+        int[] grid = heat.chunks.get(chunkPos);
+        if (grid == null) {
+            grid = this.spareGrids.isEmpty() ? new int[COLUMNS * 2] : this.spareGrids.remove(this.spareGrids.size() - 1);
+            heat.chunks.put(chunkPos, grid);
+            this.chunkCount++;
+        }
+        // BlockPos packs x into the top 26 bits and z into the next 26
+        final int column = ((int) (pos >> 38) & 15) | ((int) (pos << 26 >> 38) & 15) << 4;
+        grid[(event & 1) == CONVERSION ? COLUMNS + column : column] += (event >>> 1) & MAX_WEIGHT;
+    }
+
+    private void writeSnapshots() {
+        drainAll();
+        for (int dimension = 0; dimension < this.dimensions.length; dimension++) {
+            final DimensionHeat heat = this.dimensions[dimension];
+            if (heat == null || heat.chunks.isEmpty()) continue;
+            final String name = this.dimensionNames.get(dimension);
+            if (name == null) continue;
+            // each snapshot of a dimension gets a later time than the last, so a file of its own
+            final long now = Math.max(System.currentTimeMillis(), heat.startMillis + 1);
+            final Path file = this.directory.resolve(name.replace(':', '_').replace('/', '_') + "-" + now + FILE_EXTENSION);
+            try {
+                writeSnapshot(heat, now, file);
+                this.snapshotCount++;
+            } catch (IOException | RuntimeException e) {
+                logger.error(LOG_PREFIX + "Unable to write heatmap " + file, e);
+                continue;
+            }
+            startInterval(heat, now);
+        }
+    }
+
+    /**
+     * Forget the grids that have just been written, keeping some of them for reuse.
+     */
+    private void startInterval(DimensionHeat heat, long now) {
+        heat.startMillis = now;
+        for (final int[] grid : heat.chunks.values()) {
+            if (this.spareGrids.size() >= MAX_SPARE_GRIDS) break;
+            Arrays.fill(grid, 0);
+            this.spareGrids.add(grid);
+        }
+        this.chunkCount -= heat.chunks.size();
+        heat.chunks.clear();
+        heat.chunks.trim();
+    }
+
+    private static void writeSnapshot(DimensionHeat heat, long now, Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(heat.startMillis);
+            out.writeLong(now);
+            StepTrace.writeVarInt(out, heat.chunks.size());
+            for (final Long2ObjectMap.Entry<int[]> e : heat.chunks.long2ObjectEntrySet()) {
+                out.writeInt((int) e.getLongKey());
+                out.writeInt((int) (e.getLongKey() >>> 32));
+                for (final int count : e.getValue()) StepTrace.writeVarInt(out, count);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ===================================================================================
+    // Inner classes
+
+    private static final class DimensionHeat {
+        final Long2ObjectOpenHashMap<int[]> chunks = new Long2ObjectOpenHashMap<>();
+        long startMillis;
+
+        DimensionHeat(long startMillis) {
+            this.startMillis = startMillis;
+        }
+    }
+}
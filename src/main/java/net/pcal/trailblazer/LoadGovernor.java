@@ -0,0 +1,279 @@
+package net.pcal.trailblazer;
+
+import com.google.gson.JsonObject;
+import it.unimi.dsi.fastutil.HashCommon;
+import net.pcal.trailblazer.TrailblazerMetrics.EarlyExit;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Keeps step handling cheap when there are far more steps than usual, as around mob farms and raids.  It
+ * stays out of the way until the time spent handling steps in a server tick goes over thresholdNanos, and
+ * then, until load has been back under half the threshold for DISENGAGE_TICKS, every step that gets as far
+ * as the rule engine has to be admitted by admit():
+ *
+ * 1. Sampling.  If a dimension saw more steps in the last tick than its budget, only one in 2^k of its
+ *    steps is looked at this tick, with k chosen to bring it back under budget, and each admitted step
+ *    counts as 2^k steps, so blocks still wear at the same expected rate.  Rules that count distinct
+ *    entities can't be weighted like that: an entity is only counted if one of its steps is admitted, so
+ *    under sampling those rules see fewer entities and wear blocks more slowly.
+ * 2. Per-chunk caps.  No more than chunkCap steps per chunk per tick are admitted, so one farm can't use up
+ *    the whole budget.
+ * 3. The budget.  No more than stepBudget steps per dimension per tick are admitted, whatever happens.
+ *
+ * Steps are counted even while the governor is disengaged, so the tick it engages on already knows how
+ * heavily to sample.
+ *
+ * A threshold of 0 keeps the governor engaged all the time; a negative threshold turns it off.  The time
+ * spent handling steps is whatever's reported to addHookNanos(), which is only timed when metricsTiming is
+ * on; TrailblazerRuntimeConfig turns a positive threshold off when it isn't.
+ *
+ * Not thread safe.
+ */
+class LoadGovernor {
+
+    // ===================================================================================
+    // Constants
+
+    private static final int MAX_SAMPLE_SHIFT = 6;
+    static final int DISENGAGE_TICKS = 200;
+
+    // ===================================================================================
+    // Fields
+
+    private final long thresholdNanos;
+    private final int stepBudget;
+    private final int chunkCap;
+
+    private boolean engaged;
+    private int quietTicks = 0;
+    private long tickNanos = 0;
+    private long lastTickNanos = 0;
+    private long randomState = 0x9E3779B97F4A7C15L;
+    private EarlyExit lastRejection;
+
+    /**
+     * All indexed by dimension number.
+     */
+    private int[] offered = new int[0];
+    private int[] admitted = new int[0];
+    private int[] sampleShifts = new int[0];
+    private ChunkCounts[] chunkCounts = new ChunkCounts[0];
+
+    private long engagements = 0;
+    private long engagedTicks = 0;
+    private long weightedSteps = 0;
+
+    // ===================================================================================
+    // Constructors
+
+    LoadGovernor(long thresholdNanos, int stepBudget, int chunkCap) {
+        this.thresholdNanos = thresholdNanos;
+        this.stepBudget = stepBudget;
+        this.chunkCap = chunkCap;
+        this.engaged = thresholdNanos == 0;
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    boolean isEngaged() {
+        return this.engaged;
+    }
+
+    void addHookNanos(long nanos) {
+        this.tickNanos += nanos;
+    }
+
+    /**
+     * Decide whether a step in the given dimension and chunk should be handled.
+     *
+     * @return how many steps the step should count as, or 0 if it should be ignored, in which case
+     * getLastRejection() says why.
+     */
+    int admit(int dimension, long chunkPos) {
+        if (this.thresholdNanos < 0) return 1;
+        if (dimension >= this.offered.length) grow(dimension + 1);
+        this.offered[dimension]++;
+        if (!this.engaged) return 1;
+        final int shift = this.sampleShifts[dimension];
+        if (shift > 0 && (nextRandom() & ((1 << shift) - 1)) != 0) {
+            this.lastRejection = EarlyExit.SAMPLED_OUT;
+            return 0;
+        }
+        if (this.chunkCap > 0) {
+            ChunkCounts counts = this.chunkCounts[dimension];
+            if (counts == null) counts = this.chunkCounts[dimension] = new ChunkCounts();
+            if (counts.increment(chunkPos) >= this.chunkCap) {
+                this.lastRejection = EarlyExit.CHUNK_CAP;
+                return 0;
+            }
+        }
+        if (this.stepBudget > 0 && this.admitted[dimension] >= this.stepBudget) {
+            this.lastRejection = EarlyExit.OVER_BUDGET;
+            return 0;
+        }
+        this.admitted[dimension]++;
+        if (shift > 0) this.weightedSteps++;
+        return 1 << shift;
+    }
+
+    EarlyExit getLastRejection() {
+        return this.lastRejection;
+    }
+
+    /**
+     * Called at the end of each server tick.  Decides whether to be engaged for the next tick and, if so, how
+     * heavily to sample each dimension.
+     */
+    void tickEnded() {
+        this.lastTickNanos = this.tickNanos;
+        this.tickNanos = 0;
+        if (this.thresholdNanos > 0) {
+            if (!this.engaged) {
+                if (this.lastTickNanos > this.thresholdNanos) {
+                    this.engaged = true;
+                    this.quietTicks = 0;
+                    this.engagements++;
+                }
+            } else {
+                // judge by what the tick would have cost without us, not what it did cost
+                long offered = 0, admitted = 0;
+                for (int d = 0; d < this.offered.length; d++) {
+                    offered += this.offered[d];
+                    admitted += this.admitted[d];
+                }
+                final long unthrottledNanos = admitted == 0 ? this.lastTickNanos : this.lastTickNanos * offered / admitted;
+                this.quietTicks = unthrottledNanos < this.thresholdNanos / 2 ? this.quietTicks + 1 : 0;
+                if (this.quietTicks >= DISENGAGE_TICKS) this.engaged = false;
+            }
+        }
+        if (this.engaged) this.engagedTicks++;
+        for (int d = 0; d < this.offered.length; d++) {
+            this.sampleShifts[d] = this.engaged ? sampleShift(this.offered[d], this.stepBudget) : 0;
+            this.offered[d] = 0;
+            this.admitted[d] = 0;
+            if (this.chunkCounts[d] != null) this.chunkCounts[d].reset();
+        }
+    }
+
+    /**
+     * Zero the counters reported by toJson().
+     */
+    void resetCounters() {
+        this.engagements = 0;
+        this.engagedTicks = 0;
+        this.weightedSteps = 0;
+    }
+
+    JsonObject toJson(IntFunction<String> dimensionNames) {
+        final JsonObject out = new JsonObject();
+        out.addProperty("engaged", this.engaged);
+        out.addProperty("engagements", this.engagements);
+        out.addProperty("engagedTicks", this.engagedTicks);
+        out.addProperty("lastTickMicros", this.lastTickNanos / 1000);
+        out.addProperty("weightedSteps", this.weightedSteps);
+        final JsonObject sampleRates = new JsonObject();
+        for (int d = 0; d < this.sampleShifts.length; d++) {
+            final String name = dimensionNames.apply(d);
+            if (name != null) sampleRates.addProperty(name, "1/" + (1 << this.sampleShifts[d]));
+        }
+        out.add("sampleRates", sampleRates);
+        return out;
+    }
+
+    // ===================================================================================
+    // Private
+
+    /**
+     * @return the smallest k such that offered / 2^k is within budget, up to MAX_SAMPLE_SHIFT.
+     */
+    private static int sampleShift(int offered, int budget) {
+        if (budget <= 0 || offered <= budget) return 0;
+        int shift = 0;
+        while (shift < MAX_SAMPLE_SHIFT && (offered >> shift) > budget) shift++;
+        return shift;
+    }
+
+    private void grow(int length) {
+        this.offered = Arrays.copyOf(this.offered, length);
+        this.admitted = Arrays.copyOf(this.admitted, length);
+        this.sampleShifts = Arrays.copyOf(this.sampleShifts, length);
+        this.chunkCounts = Arrays.copyOf(this.chunkCounts, length);
+    }
+
+    /**
+     * Step counts per chunk for the current tick.  Open addressing with a generation stamp on each slot, so
+     * reset() doesn't have to touch every slot after a tick that saw a lot of chunks; slots from earlier
+     * generations are empty.
+     */
+    private static final class ChunkCounts {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private int[] counts = new int[INITIAL_CAPACITY];
+        private int[] generations = new int[INITIAL_CAPACITY];
+        private int generation = 1;
+        private int size = 0;
+
+        /**
+         * @return the chunk's count before this step.
+         */
+        int increment(long chunkPos) {
+            final int mask = this.keys.length - 1;
+            int slot = (int) HashCommon.mix(chunkPos) & mask;
+            while (this.generations[slot] == this.generation) {
+                if (this.keys[slot] == chunkPos) return this.counts[slot]++;
+                slot = (slot + 1) & mask;
+            }
+            if ((this.size + 1) * 2 > this.keys.length) {
+                rehash(this.keys.length * 2);
+                return increment(chunkPos);
+            }
+            this.keys[slot] = chunkPos;
+            this.counts[slot] = 1;
+            this.generations[slot] = this.generation;
+            this.size++;
+            return 0;
+        }
+
+        void reset() {
+            this.size = 0;
+            if (++this.generation == 0) {
+                Arrays.fill(this.generations, 0);
+                this.generation = 1;
+            }
+        }
+
+        private void rehash(int capacity) {
+            final long[] oldKeys = this.keys;
+            final int[] oldCounts = this.counts, oldGenerations = this.generations;
+            this.keys = new long[capacity];
+            this.counts = new int[capacity];
+            this.generations = new int[capacity];
+            final int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldGenerations[i] != this.generation) continue;
+                int slot = (int) HashCommon.mix(oldKeys[i]) & mask;
+                while (this.generations[slot] == this.generation) slot = (slot + 1) & mask;
+                this.keys[slot] = oldKeys[i];
+                this.counts[slot] = oldCounts[i];
+                this.generations[slot] = this.generation;
+            }
+        }
+    }
+
+    /**
+     * xorshift64; sampling doesn't need anything better.
+     */
+    private int nextRandom() {
+        long x = this.randomState;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        this.randomState = x;
+        return (int) (x >>> 32);
+    }
+}
@@ -0,0 +1,225 @@
+package net.pcal.trailblazer;
+
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.nbt.Tag;
+import net.minecraft.util.datafix.DataFixTypes;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.saveddata.SavedData;
+import net.pcal.trailblazer.TrailblazerRuntimeConfig.CompiledRule;
+
+/**
+ * Blocks in one level that are waiting to regrow.  The scheduling is done by a RegrowthSchedule of
+ * BlockStates: pending blocks are kept in buckets by due tick, a block that's stepped on again has its due
+ * tick pushed back by touch(), which is just a hash lookup and a write, and tick() works through the buckets
+ * that have come due a bounded number of blocks at a time.  So nothing is ever scanned, no block ticks are
+ * scheduled with the level, and a pending block costs its slot in the schedule's parallel arrays, its index
+ * entry and 8 bytes in a bucket.
+ *
+ * When a block regrows, it's changed only if it's still the block that was made by the conversion, and if
+ * some rule says how the new block regrows in turn, it's queued again, so blocks can step back through a
+ * chain of rules (dirt path to coarse dirt to dirt to grass).  Blocks that come due in unloaded chunks are
+ * parked until chunkLoaded() says the chunk is back, so however many there are, they cost nothing until then.
+ *
+ * Saved with the level as SavedData.  touch() doesn't mark the queue dirty, since on a busy trail that would
+ * rewrite the whole queue at every autosave; so if nothing else about the queue has changed since it was
+ * last saved, a block stepped on since then may regrow up to its idle period early after a restart.  Must
+ * only be used on the thread that ticks the level.
+ */
+class RegrowthQueue extends SavedData {
+
+    // ===================================================================================
+    // Constants
+
+    static final String DATA_NAME = "trailblazer_regrowth";
+
+    // ===================================================================================
+    // Fields
+
+    private final RegrowthSchedule<BlockState> schedule = new RegrowthSchedule<>(this::setDirty);
+    private final LevelBlocks levelBlocks = new LevelBlocks();
+
+    // ===================================================================================
+    // Constructors
+
+    RegrowthQueue() {
+    }
+
+    /**
+     * Vanilla has no fixers for our tag, but in this version DimensionDataStorage hands every saved data tag
+     * it reads to its DataFixTypes without checking for null, so it needs one.  LEVEL's fixers look for
+     * level.dat's keys, none of which our tag has, so upgrading a world leaves it alone.
+     */
+    static SavedData.Factory<RegrowthQueue> factory() {
+        return new SavedData.Factory<>(RegrowthQueue::new, RegrowthQueue::load, DataFixTypes.LEVEL);
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * @return the number of blocks waiting to regrow.
+     */
+    int size() {
+        return this.schedule.size();
+    }
+
+    long getRegrownCount() {
+        return this.schedule.getRegrownCount();
+    }
+
+    /**
+     * @return the total number of blocks that were due to regrow but had been changed by something else.
+     */
+    long getDiscardedCount() {
+        return this.schedule.getDiscardedCount();
+    }
+
+    /**
+     * Arrange for the block at pos, which is being changed to expectedState, to change to regrowState once
+     * it hasn't been stepped on for idleTicks.  Replaces anything already pending for the block.
+     */
+    void schedule(long pos, BlockState expectedState, BlockState regrowState, int idleTicks, long now) {
+        this.schedule.schedule(pos, expectedState, regrowState, idleTicks, now);
+    }
+
+    /**
+     * Called when the block at pos is stepped on.  If it's waiting to regrow, start its idle period over.
+     * Doesn't mark the queue dirty; see the class comment.
+     */
+    void touch(long pos, long now) {
+        this.schedule.touch(pos, now);
+    }
+
+    /**
+     * Called when a chunk is loaded.  Blocks in it that came due while it was unloaded go back into the
+     * queue, to regrow as soon as tick() gets to them.
+     */
+    void chunkLoaded(long chunkPos) {
+        this.schedule.chunkLoaded(chunkPos);
+    }
+
+    /**
+     * Regrow blocks that are due as of tick 'now', looking at no more than maxWork of them; the rest wait
+     * for the next tick.  Blocks that regrow into something that regrows in turn are queued again according
+     * to the given config.
+     */
+    void tick(Level level, long now, int maxWork, TrailblazerRuntimeConfig config) {
+        this.levelBlocks.level = level;
+        this.levelBlocks.config = config;
+        try {
+            this.schedule.tick(now, maxWork, this.levelBlocks);
+        } finally {
+            this.levelBlocks.level = null;
+            this.levelBlocks.config = null;
+        }
+    }
+
+    // ===================================================================================
+    // SavedData
+
+    @Override
+    public CompoundTag save(CompoundTag tag) {
+        final int size = this.schedule.size();
+        final long[] positions = new long[size];
+        final long[] dueTicks = new long[size];
+        final int[] idleTicks = new int[size];
+        final int[] expected = new int[size];
+        final int[] regrow = new int[size];
+        final Reference2IntOpenHashMap<BlockState> palette = new Reference2IntOpenHashMap<>();
+        final ListTag paletteTag = new ListTag();
+        final int[] i = {0};
+        this.schedule.forEach((pos, dueTick, idle, expectedState, regrowState) -> {
+            positions[i[0]] = pos;
+            dueTicks[i[0]] = dueTick;
+            idleTicks[i[0]] = idle;
+            expected[i[0]] = paletteIndex(expectedState, palette, paletteTag);
+            regrow[i[0]] = paletteIndex(regrowState, palette, paletteTag);
+            i[0]++;
+        });
+        tag.put("Palette", paletteTag);
+        tag.putLongArray("Positions", positions);
+        tag.putLongArray("DueTicks", dueTicks);
+        tag.putIntArray("IdleTicks", idleTicks);
+        tag.putIntArray("ExpectedStates", expected);
+        tag.putIntArray("RegrowStates", regrow);
+        return tag;
+    }
+
+    static RegrowthQueue load(CompoundTag tag) {
+        final RegrowthQueue out = new RegrowthQueue();
+        final ListTag paletteTag = tag.getList("Palette", Tag.TAG_COMPOUND);
+        final BlockState[] palette = new BlockState[paletteTag.size()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = NbtUtils.readBlockState(BuiltInRegistries.BLOCK.asLookup(), paletteTag.getCompound(i));
+        }
+        final long[] positions = tag.getLongArray("Positions");
+        final long[] dueTicks = tag.getLongArray("DueTicks");
+        final int[] idleTicks = tag.getIntArray("IdleTicks");
+        final int[] expected = tag.getIntArray("ExpectedStates");
+        final int[] regrow = tag.getIntArray("RegrowStates");
+        for (final long dueTick : dueTicks) out.schedule.rewind(dueTick);
+        for (int i = 0; i < positions.length; i++) {
+            final BlockState expectedState = palette[expected[i]];
+            final BlockState regrowState = palette[regrow[i]];
+            // blocks from mods that have since been removed come back as air
+            if (expectedState.is(Blocks.AIR) || regrowState.is(Blocks.AIR)) continue;
+            out.schedule(positions[i], expectedState, regrowState, idleTicks[i], dueTicks[i] - idleTicks[i]);
+        }
+        out.setDirty(false);
+        return out;
+    }
+
+    // ===================================================================================
+    // Private
+
+    /**
+     * The level being ticked, as the schedule sees it.  Kept between ticks so ticking doesn't allocate.
+     */
+    private static final class LevelBlocks implements RegrowthSchedule.Blocks<BlockState> {
+
+        private final BlockPos.MutableBlockPos scratchPos = new BlockPos.MutableBlockPos();
+        private Level level;
+        private TrailblazerRuntimeConfig config;
+
+        @Override
+        public boolean isLoaded(long pos) {
+            return this.level.isLoaded(this.scratchPos.set(pos));
+        }
+
+        @Override
+        public boolean isUnchanged(long pos, BlockState expectedState) {
+            return this.level.getBlockState(this.scratchPos.set(pos)).is(expectedState.getBlock());
+        }
+
+        @Override
+        public void setState(long pos, BlockState state) {
+            this.level.setBlockAndUpdate(this.scratchPos.set(pos), state);
+        }
+
+        @Override
+        public BlockState getRegrowState(BlockState state) {
+            final CompiledRule next = this.config.getRegrowRule(state.getBlock());
+            return next == null ? null : next.getRegrowState(state);
+        }
+
+        @Override
+        public int getRegrowTicks(BlockState state) {
+            return this.config.getRegrowRule(state.getBlock()).rule.regrowTicks();
+        }
+    }
+
+    private static int paletteIndex(BlockState state, Reference2IntOpenHashMap<BlockState> palette, ListTag paletteTag) {
+        if (!palette.containsKey(state)) {
+            palette.put(state, paletteTag.size());
+            paletteTag.add(NbtUtils.writeBlockState(state));
+        }
+        return palette.getInt(state);
+    }
+}
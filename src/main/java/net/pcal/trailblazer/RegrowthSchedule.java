@@ -0,0 +1,318 @@
+package net.pcal.trailblazer;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The bookkeeping behind RegrowthQueue, in terms of packed BlockPos longs and some type of block state, so
+ * it knows nothing about Minecraft; the Blocks it's ticked with do the looking and changing.
+ *
+ * Each pending block has a due tick; a block that's stepped on again has its due tick pushed back by
+ * touch(), which is just a hash lookup and a write.  Pending blocks are found by due tick through buckets of
+ * 2^BUCKET_SHIFT ticks, each a list of positions, keyed by bucket number.  tick() works through the buckets
+ * that have come due, oldest first and a bounded number of blocks at a time, so blocks regrow up to a bucket
+ * early or late.  A block whose due tick has been pushed back since it was bucketed is simply moved to its
+ * new bucket then.  Emptied buckets are kept for reuse, so a steady trickle of conversions doesn't allocate.
+ *
+ * Blocks that come due in unloaded chunks are parked in a list per chunk, and go back into the buckets when
+ * chunkLoaded() says the chunk is back.
+ *
+ * Not thread safe.
+ */
+class RegrowthSchedule<S> {
+
+    // ===================================================================================
+    // Constants
+
+    static final int BUCKET_SHIFT = 6;
+
+    private static final int NO_SLOT = -1;
+    private static final long NO_CURSOR = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_SPARE_BUCKETS = 64;
+
+    // ===================================================================================
+    // Interfaces
+
+    /**
+     * The blocks of the level being ticked, and what the config says about how they regrow.
+     */
+    interface Blocks<S> {
+
+        boolean isLoaded(long pos);
+
+        /**
+         * @return true if the block at pos is still the block of expectedState, so it's safe to regrow.
+         */
+        boolean isUnchanged(long pos, S expectedState);
+
+        void setState(long pos, S state);
+
+        /**
+         * @return what blocks of the given state regrow to in turn, or null if they don't.
+         */
+        S getRegrowState(S state);
+
+        /**
+         * @return how long blocks of the given state, which getRegrowState() says regrow, wait to.
+         */
+        int getRegrowTicks(S state);
+    }
+
+    /**
+     * Given each pending block by forEach().
+     */
+    interface PendingVisitor<S> {
+        void visit(long pos, long dueTick, int idleTicks, S expectedState, S regrowState);
+    }
+
+    // ===================================================================================
+    // Fields
+
+    private final Runnable changeListener;
+    private final Long2IntOpenHashMap slots = new Long2IntOpenHashMap();
+    private final IntArrayList freeSlots = new IntArrayList();
+    private final Long2ObjectOpenHashMap<LongArrayList> buckets = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * Chunk position (as from StepHistoryStore.chunkOf()) -> positions in the chunk that came due while it
+     * was unloaded.
+     */
+    private final Long2ObjectOpenHashMap<LongArrayList> parked = new Long2ObjectOpenHashMap<>();
+
+    private final ArrayList<LongArrayList> spareBuckets = new ArrayList<>();
+    private long[] dueTicks = new long[INITIAL_CAPACITY];
+    private int[] idleTicks = new int[INITIAL_CAPACITY];
+    private Object[] expectedStates = new Object[INITIAL_CAPACITY];
+    private Object[] regrowStates = new Object[INITIAL_CAPACITY];
+    private int slotCount = 0;
+    private long cursor = NO_CURSOR;
+
+    private long regrownCount = 0;
+    private long discardedCount = 0;
+
+    // ===================================================================================
+    // Constructors
+
+    /**
+     * @param changeListener called whenever something that should be saved changes.
+     */
+    RegrowthSchedule(Runnable changeListener) {
+        this.changeListener = requireNonNull(changeListener);
+        this.slots.defaultReturnValue(NO_SLOT);
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * @return the number of blocks waiting to regrow.
+     */
+    int size() {
+        return this.slots.size();
+    }
+
+    /**
+     * @return the number of chunks with blocks parked in them.
+     */
+    int getParkedChunkCount() {
+        return this.parked.size();
+    }
+
+    long getRegrownCount() {
+        return this.regrownCount;
+    }
+
+    /**
+     * @return the total number of blocks that were due to regrow but had been changed by something else.
+     */
+    long getDiscardedCount() {
+        return this.discardedCount;
+    }
+
+    /**
+     * Make sure blocks due as early as the given tick will be picked up, for blocks being restored from a
+     * save.  Only has an effect before anything is scheduled.
+     */
+    void rewind(long tick) {
+        if (this.cursor == NO_CURSOR || (this.slots.isEmpty() && bucketOf(tick) < this.cursor)) {
+            this.cursor = bucketOf(tick);
+        }
+    }
+
+    /**
+     * Arrange for the block at pos, which is being changed to expectedState, to change to regrowState once
+     * it hasn't been stepped on for idleTicks.  Replaces anything already pending for the block.
+     */
+    void schedule(long pos, S expectedState, S regrowState, int idleTicks, long now) {
+        if (this.cursor == NO_CURSOR) this.cursor = bucketOf(now);
+        int slot = this.slots.get(pos);
+        if (slot == NO_SLOT) {
+            slot = allocateSlot();
+            this.slots.put(pos, slot);
+            // if it's already pending, it's already in a bucket; if that's too late, so be it
+            addToBucket(pos, now + idleTicks);
+        }
+        set(slot, expectedState, regrowState, idleTicks, now + idleTicks);
+    }
+
+    /**
+     * Called when the block at pos is stepped on.  If it's waiting to regrow, start its idle period over.
+     * Doesn't count as a change; see RegrowthQueue.
+     */
+    void touch(long pos, long now) {
+        final int slot = this.slots.get(pos);
+        if (slot == NO_SLOT) return;
+        this.dueTicks[slot] = now + this.idleTicks[slot];
+    }
+
+    /**
+     * Called when a chunk is loaded.  Blocks in it that came due while it was unloaded go back into the
+     * queue, to regrow as soon as tick() gets to them.
+     */
+    void chunkLoaded(long chunkPos) {
+        if (this.parked.isEmpty()) return;
+        final LongArrayList positions = this.parked.remove(chunkPos);
+        if (positions == null) return;
+        for (int i = 0; i < positions.size(); i++) {
+            final long pos = positions.getLong(i);
+            final int slot = this.slots.get(pos);
+            if (slot != NO_SLOT) addToBucket(pos, this.dueTicks[slot]);
+        }
+        recycle(positions);
+    }
+
+    /**
+     * Regrow blocks that are due as of tick 'now', looking at no more than maxWork of them; the rest wait
+     * for the next tick.  Blocks that regrow into something that regrows in turn are queued again.
+     */
+    void tick(long now, int maxWork, Blocks<S> blocks) {
+        if (this.buckets.isEmpty()) {
+            this.cursor = bucketOf(now);
+            return;
+        }
+        final long nowBucket = bucketOf(now);
+        int work = 0;
+        while (this.cursor <= nowBucket && work < maxWork) {
+            final LongArrayList bucket = this.buckets.get(this.cursor);
+            if (bucket == null) {
+                this.cursor++;
+                continue;
+            }
+            while (!bucket.isEmpty() && work < maxWork) {
+                final long pos = bucket.popLong();
+                work++;
+                visit(pos, now, blocks);
+            }
+            if (bucket.isEmpty()) {
+                this.buckets.remove(this.cursor);
+                recycle(bucket);
+                this.cursor++;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(PendingVisitor<S> visitor) {
+        for (final Long2IntMap.Entry e : this.slots.long2IntEntrySet()) {
+            final int slot = e.getIntValue();
+            visitor.visit(e.getLongKey(), this.dueTicks[slot], this.idleTicks[slot], (S) this.expectedStates[slot],
+                    (S) this.regrowStates[slot]);
+        }
+    }
+
+    // ===================================================================================
+    // Private
+
+    @SuppressWarnings("unchecked")
+    private void visit(long pos, long now, Blocks<S> blocks) {
+        final int slot = this.slots.get(pos);
+        if (slot == NO_SLOT) return;
+        if (bucketOf(this.dueTicks[slot]) > bucketOf(now)) {
+            // stepped on since it was bucketed
+            addToBucket(pos, this.dueTicks[slot]);
+            return;
+        }
+        if (!blocks.isLoaded(pos)) {
+            final long chunkPos = StepHistoryStore.chunkOf(pos);
+            LongArrayList positions = this.parked.get(chunkPos);
+            if (positions == null) this.parked.put(chunkPos, positions = newList());
+            positions.add(pos);
+            return;
+        }
+        if (!blocks.isUnchanged(pos, (S) this.expectedStates[slot])) {
+            this.discardedCount++;
+            freeSlot(pos, slot);
+            return;
+        }
+        final S regrowState = (S) this.regrowStates[slot];
+        blocks.setState(pos, regrowState);
+        this.regrownCount++;
+        this.changeListener.run();
+        final S nextState = blocks.getRegrowState(regrowState);
+        if (nextState != null) {
+            final int regrowTicks = blocks.getRegrowTicks(regrowState);
+            set(slot, regrowState, nextState, regrowTicks, now + regrowTicks);
+            addToBucket(pos, this.dueTicks[slot]);
+        } else {
+            freeSlot(pos, slot);
+        }
+    }
+
+    private void set(int slot, S expectedState, S regrowState, int idleTicks, long dueTick) {
+        this.dueTicks[slot] = dueTick;
+        this.idleTicks[slot] = idleTicks;
+        this.expectedStates[slot] = expectedState;
+        this.regrowStates[slot] = regrowState;
+        this.changeListener.run();
+    }
+
+    private void addToBucket(long pos, long dueTick) {
+        final long bucket = Math.max(bucketOf(dueTick), this.cursor);
+        LongArrayList list = this.buckets.get(bucket);
+        if (list == null) this.buckets.put(bucket, list = newList());
+        list.add(pos);
+    }
+
+    private LongArrayList newList() {
+        return this.spareBuckets.isEmpty() ? new LongArrayList() : this.spareBuckets.remove(this.spareBuckets.size() - 1);
+    }
+
+    private void recycle(LongArrayList list) {
+        if (this.spareBuckets.size() >= MAX_SPARE_BUCKETS) return;
+        list.clear();
+        this.spareBuckets.add(list);
+    }
+
+    private int allocateSlot() {
+        if (!this.freeSlots.isEmpty()) return this.freeSlots.popInt();
+        if (this.slotCount == this.dueTicks.length) {
+            final int newCapacity = this.slotCount * 2;
+            this.dueTicks = Arrays.copyOf(this.dueTicks, newCapacity);
+            this.idleTicks = Arrays.copyOf(this.idleTicks, newCapacity);
+            this.expectedStates = Arrays.copyOf(this.expectedStates, newCapacity);
+            this.regrowStates = Arrays.copyOf(this.regrowStates, newCapacity);
+        }
+        return this.slotCount++;
+    }
+
+    private void freeSlot(long pos, int slot) {
+        this.slots.remove(pos);
+        this.expectedStates[slot] = null;
+        this.regrowStates[slot] = null;
+        this.freeSlots.add(slot);
+        this.changeListener.run();
+    }
+
+    private static long bucketOf(long tick) {
+        return tick >> BUCKET_SHIFT;
+    }
+}
@@ -0,0 +1,169 @@
+package net.pcal.trailblazer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The core of Trailblazer: given a step by some entity type on some block state, find the rule that applies,
+ * check the entity's boots against it and update the block's step history.  Everything here is in terms of
+ * plain numbers (registry raw ids, BlockState ids, BlockPos.asLong(), boot fingerprints), so it knows nothing
+ * about Minecraft; TrailblazerService adapts game events to it, and StepTraceReplayer drives it from a trace.
+ *
+ * Not thread safe.
+ */
+class StepEngine<R extends StepEngine.StepRule> {
+
+    // ===================================================================================
+    // Interfaces
+
+    /**
+     * A compiled rule, as far as the engine cares.
+     */
+    interface StepRule {
+        /**
+         * @return the rule's position in its config, which is what step histories remember it by.
+         */
+        int index();
+
+        int stepCount();
+
+        int timeoutTicks();
+
+        /**
+         * @return true if stepCount is a number of distinct entities rather than of steps.
+         */
+        boolean distinctEntities();
+
+        /**
+         * @return masks of which at least one must be fully present in the boot fingerprint, or an empty array.
+         */
+        long[] onlyIfBootMasks();
+
+        /**
+         * @return masks of which none may be fully present in the boot fingerprint.
+         */
+        long[] skipIfBootMasks();
+    }
+
+    /**
+     * Looks up the rules that apply to an entity type stepping on a block state.
+     */
+    interface RuleTable<R> {
+        /**
+         * @return the rules in order of precedence, or null if there aren't any.
+         */
+        R[] getRules(int entityTypeId, int stateId);
+    }
+
+    /**
+     * Told whenever a block's step history changes.
+     */
+    interface HistoryListener {
+        /**
+         * A stepCount of 0 means the block's history has been forgotten.
+         */
+        void historyChanged(int dimension, long pos, int stepCount, long tick);
+    }
+
+    enum Outcome {
+        /**
+         * No rule applies to the entity type and block state.
+         */
+        NO_RULES,
+        /**
+         * Rules apply, but the entity's boots ruled all of them out.
+         */
+        BOOT_MISMATCH,
+        /**
+         * A rule applied and the step was counted.
+         */
+        COUNTED,
+        /**
+         * A rule applied and the block has now been stepped on enough to be converted.
+         */
+        CONVERTED
+    }
+
+    // ===================================================================================
+    // Fields
+
+    private final StepHistoryStore store;
+    private final HistoryListener listener;
+    private R lastRule;
+
+    // ===================================================================================
+    // Constructors
+
+    StepEngine(StepHistoryStore store, HistoryListener listener) {
+        this.store = requireNonNull(store);
+        this.listener = requireNonNull(listener);
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * Process a step on a block.  If a rule applies, it's available from getLastRule() until the next call.
+     * entityHash identifies the entity for rules that count distinct entities.  The step counts as 'weight'
+     * steps, except under those rules.
+     */
+    Outcome step(RuleTable<R> rules, int entityTypeId, int stateId, long bootFingerprint, int entityHash, int weight,
+                 int dimension, long pos, long tick) {
+        this.lastRule = null;
+        final R[] candidates = rules.getRules(entityTypeId, stateId);
+        if (candidates == null) return Outcome.NO_RULES;
+        for (final R rule : candidates) {
+            if (rule.onlyIfBootMasks().length > 0) {
+                if (!matchesAny(bootFingerprint, rule.onlyIfBootMasks())) continue;
+            }
+            if (rule.skipIfBootMasks().length > 0) {
+                if (matchesAny(bootFingerprint, rule.skipIfBootMasks())) continue;
+            }
+            this.lastRule = rule;
+            return count(rule, entityHash, weight, dimension, pos, tick);
+        }
+        return Outcome.BOOT_MISMATCH;
+    }
+
+    /**
+     * @return the rule that applied to the last step, or null if none did.
+     */
+    R getLastRule() {
+        return this.lastRule;
+    }
+
+    StepHistoryStore getStore() {
+        return this.store;
+    }
+
+    // ===================================================================================
+    // Private
+
+    private Outcome count(R rule, int entityHash, int weight, int dimension, long pos, long tick) {
+        final int blockStepCount;
+        if (rule.stepCount() <= (rule.distinctEntities() ? 1 : weight)) {
+            // no need to remember anything, this step is enough
+            blockStepCount = 1;
+        } else {
+            blockStepCount = rule.distinctEntities() ?
+                    this.store.incrementDistinct(dimension, pos, tick, rule.timeoutTicks(), rule.index(), entityHash) :
+                    this.store.increment(dimension, pos, tick, rule.timeoutTicks(), rule.index(), weight);
+            if (blockStepCount < rule.stepCount()) {
+                this.listener.historyChanged(dimension, pos, blockStepCount, tick);
+                return Outcome.COUNTED;
+            }
+        }
+        forget(dimension, pos, tick);
+        return Outcome.CONVERTED;
+    }
+
+    private void forget(int dimension, long pos, long tick) {
+        if (this.store.remove(dimension, pos)) this.listener.historyChanged(dimension, pos, 0, tick);
+    }
+
+    private static boolean matchesAny(long bootFingerprint, long[] masks) {
+        for (final long mask : masks) {
+            if ((bootFingerprint & mask) == mask) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,426 @@
+package net.pcal.trailblazer;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped file of step history records for one dimension.  The file is a 32 byte header followed by
+ * fixed-width 24 byte records (BlockPos.asLong(), last step tick, step count, checksum).  The records start
+ * with a sorted section, written by compaction: the live records as of the last compaction, grouped by chunk
+ * in ascending ChunkPos.toLong() order.  After it comes the tail, records appended since, in the order they
+ * were appended.  A later record for a position supersedes earlier ones, and a step count of 0 means the
+ * position has been forgotten.
+ *
+ * Crash consistency: the header holds the length of the committed part of the file.  commit() forces the
+ * appended records to disk before it updates and forces the header, so after a crash the file reads back
+ * exactly as of the last commit, and anything after the committed length is ignored.  Records are also
+ * checksummed, and reading stops at the first one that doesn't check out.
+ *
+ * Compaction writes the live records to the next generation of the file (the given path with ".1", ".2"...
+ * appended; the path itself is generation 0), writing the header's magic number last, and switches to it.
+ * open() uses the newest generation with a valid header and deletes the others.  The old generation is
+ * never moved, replaced or truncated while it's mapped, which Windows doesn't allow; if deleting it fails for
+ * the same reason, it's deleted the next time the file is compacted or opened.  Records whose timeout has
+ * passed are left out, so histories the store has forgotten without telling anyone (evicted, or in chunks
+ * that unloaded and never came back) don't pile up.
+ *
+ * Only the tail is indexed in memory, by chunk.  A chunk's records in the sorted section are found with a
+ * binary search when the chunk is read (and checksummed then), and compaction happens once the tail is as
+ * big as the sorted section, so opening a file reads no more than half of it and the index never holds more
+ * than half of its records.
+ *
+ * Not thread safe.  In practice, only StepHistoryPersistence's background thread touches these.
+ */
+class StepHistoryFile implements Closeable {
+
+    // ===================================================================================
+    // Constants
+
+    private static final int MAGIC = 0x54425348; // 'TBSH'
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int COMMITTED_LENGTH_OFFSET = 8;
+    private static final int SORTED_LENGTH_OFFSET = 16;
+    private static final int RECORD_SIZE = 24;
+    private static final int MIN_MAPPED_SIZE = HEADER_SIZE + RECORD_SIZE * 4096;
+    private static final int MAX_MAPPED_SIZE = Integer.MAX_VALUE - RECORD_SIZE;
+    private static final int MIN_RECORDS_TO_COMPACT = 16384;
+
+    // ===================================================================================
+    // Fields
+
+    private final Path basePath;
+    private Path path;
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int sortedLength;
+    private int committedLength;
+    private int writeOffset;
+    private int tailCount = 0;
+
+    /**
+     * ChunkPos.toLong() -> offsets of the chunk's records in the tail, oldest first.
+     */
+    private final Long2ObjectOpenHashMap<IntArrayList> tailIndex = new Long2ObjectOpenHashMap<>();
+
+    // ===================================================================================
+    // Constructors
+
+    private StepHistoryFile(Path basePath) {
+        this.basePath = basePath;
+    }
+
+    /**
+     * Open the newest generation of the file at the given path, creating it if there isn't one, and index
+     * its tail.
+     */
+    static StepHistoryFile open(Path path) throws IOException {
+        final StepHistoryFile out = new StepHistoryFile(path);
+        Files.createDirectories(path.getParent());
+        out.generation = newestGeneration(path);
+        out.path = generationPath(path, out.generation);
+        out.map(Files.exists(out.path));
+        out.deleteOtherGenerations();
+        return out;
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * Append a record for the given position.  A stepCount of zero records that it's been forgotten.  The
+     * record isn't durable until commit() is called.
+     */
+    void append(long pos, int stepCount, long lastStepTick) throws IOException {
+        if (this.writeOffset + RECORD_SIZE > this.buffer.capacity()) grow();
+        final int offset = this.writeOffset;
+        this.buffer.putLong(offset, pos);
+        this.buffer.putLong(offset + 8, lastStepTick);
+        this.buffer.putInt(offset + 16, stepCount);
+        this.buffer.putInt(offset + 20, checksum(pos, lastStepTick, stepCount));
+        this.writeOffset += RECORD_SIZE;
+        indexRecord(pos, offset);
+    }
+
+    /**
+     * Make everything appended so far durable.
+     */
+    void commit() {
+        if (this.writeOffset == this.committedLength) return;
+        this.buffer.force();
+        this.buffer.putLong(COMMITTED_LENGTH_OFFSET, this.writeOffset);
+        this.buffer.force();
+        this.committedLength = this.writeOffset;
+    }
+
+    /**
+     * Read the latest record for every position in the given chunk that hasn't been forgotten.  Returns
+     * null if there aren't any.
+     */
+    StepHistoryPersistence.LoadedChunk readChunk(int dimension, long chunkPos) {
+        final Long2IntOpenHashMap latest = new Long2IntOpenHashMap();
+        collectLatest(chunkPos, findSorted(chunkPos), this.tailIndex.get(chunkPos), latest);
+        if (latest.isEmpty()) return null;
+        final int count = latest.size();
+        final long[] positions = new long[count];
+        final int[] stepCounts = new int[count];
+        final long[] lastStepTicks = new long[count];
+        int i = 0;
+        for (final Long2IntMap.Entry e : latest.long2IntEntrySet()) {
+            final int offset = e.getIntValue();
+            positions[i] = this.buffer.getLong(offset);
+            lastStepTicks[i] = this.buffer.getLong(offset + 8);
+            stepCounts[i] = this.buffer.getInt(offset + 16);
+            i++;
+        }
+        return new StepHistoryPersistence.LoadedChunk(dimension, chunkPos, positions, stepCounts, lastStepTicks);
+    }
+
+    /**
+     * Rewrite the file as a new generation with only its live records, if the tail has grown as big as the
+     * sorted section.  Records last stepped on more than timeoutTicks before tick 'now' are left out, unless
+     * timeoutTicks isn't positive.  Should only be called right after commit().
+     */
+    void compactIfNeeded(long now, int timeoutTicks) throws IOException {
+        final int sortedCount = (this.sortedLength - HEADER_SIZE) / RECORD_SIZE;
+        if (this.tailCount < MIN_RECORDS_TO_COMPACT || this.tailCount < sortedCount) return;
+        final long nextGeneration = this.generation + 1;
+        final Path nextPath = generationPath(this.basePath, nextGeneration);
+        final long[] tailChunks = new long[this.tailIndex.size()];
+        int t = 0;
+        for (final Long2ObjectMap.Entry<IntArrayList> e : this.tailIndex.long2ObjectEntrySet()) {
+            tailChunks[t++] = e.getLongKey();
+        }
+        Arrays.sort(tailChunks);
+        long liveLength = HEADER_SIZE;
+        try (final FileChannel out = FileChannel.open(nextPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // the magic number goes in last, so a partly written generation is never mistaken for a good one
+            out.write(ByteBuffer.allocate(HEADER_SIZE), 0);
+            out.position(HEADER_SIZE);
+            final ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            final Long2IntOpenHashMap latest = new Long2IntOpenHashMap();
+            int sorted = HEADER_SIZE;
+            t = 0;
+            // merge the sorted section's chunks with the tail's, in chunk order
+            while (sorted < this.sortedLength || t < tailChunks.length) {
+                final long chunkPos;
+                if (t == tailChunks.length) {
+                    chunkPos = chunkAt(sorted);
+                } else if (sorted == this.sortedLength) {
+                    chunkPos = tailChunks[t];
+                } else {
+                    chunkPos = Math.min(chunkAt(sorted), tailChunks[t]);
+                }
+                final int sortedStart = sorted;
+                while (sorted < this.sortedLength && chunkAt(sorted) == chunkPos) sorted += RECORD_SIZE;
+                IntArrayList tailOffsets = null;
+                if (t < tailChunks.length && tailChunks[t] == chunkPos) tailOffsets = this.tailIndex.get(tailChunks[t++]);
+                latest.clear();
+                collectLatest(chunkPos, sortedStart, tailOffsets, latest);
+                for (final Long2IntMap.Entry e : latest.long2IntEntrySet()) {
+                    final int offset = e.getIntValue();
+                    if (timeoutTicks > 0 && now - this.buffer.getLong(offset + 8) > timeoutTicks) continue;
+                    if (!records.hasRemaining()) {
+                        records.flip();
+                        while (records.hasRemaining()) out.write(records);
+                        records.clear();
+                    }
+                    records.put(this.buffer.slice(offset, RECORD_SIZE));
+                    liveLength += RECORD_SIZE;
+                }
+            }
+            records.flip();
+            while (records.hasRemaining()) out.write(records);
+            out.force(true);
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(0, MAGIC).putInt(4, VERSION).putLong(COMMITTED_LENGTH_OFFSET, liveLength)
+                    .putLong(SORTED_LENGTH_OFFSET, liveLength);
+            out.write(header, 0);
+            out.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(nextPath);
+            throw e;
+        }
+        // switch over; from here on, the old generation is just garbage
+        this.buffer = null;
+        this.channel.close();
+        this.tailIndex.clear();
+        this.tailIndex.trim();
+        this.tailCount = 0;
+        this.generation = nextGeneration;
+        this.path = nextPath;
+        map(true);
+        deleteOtherGenerations();
+    }
+
+    /**
+     * @return the generation of the file in use.
+     */
+    Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * @return the number of records held in the in-memory index.
+     */
+    int getIndexedCount() {
+        return this.tailCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.channel == null) return;
+        commit();
+        this.buffer = null;
+        this.channel.close();
+        this.channel = null;
+    }
+
+    // ===================================================================================
+    // Private
+
+    private void map(boolean exists) throws IOException {
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long fileSize = this.channel.size();
+        if (exists && fileSize >= HEADER_SIZE) {
+            if (fileSize > MAX_MAPPED_SIZE) throw new IOException(this.path + " is too large");
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(fileSize, MIN_MAPPED_SIZE));
+            if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+                throw new IOException(this.path + " is not a step history file");
+            }
+            final long committed = this.buffer.getLong(COMMITTED_LENGTH_OFFSET);
+            final long end = Math.min(committed, fileSize) - RECORD_SIZE;
+            // files written before there was a sorted section have zero here
+            final long sorted = Math.max(this.buffer.getLong(SORTED_LENGTH_OFFSET), HEADER_SIZE);
+            this.sortedLength = (int) Math.min(sorted, end + RECORD_SIZE);
+            this.committedLength = this.sortedLength;
+            for (int offset = this.sortedLength; offset <= end; offset += RECORD_SIZE) {
+                if (!checksumMatches(offset)) break;
+                indexRecord(this.buffer.getLong(offset), offset);
+                this.committedLength = offset + RECORD_SIZE;
+            }
+        } else {
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, MIN_MAPPED_SIZE);
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putInt(4, VERSION);
+            this.sortedLength = HEADER_SIZE;
+            this.committedLength = HEADER_SIZE;
+        }
+        // if we stopped early, make sure a torn tail can never be mistaken for committed data
+        this.buffer.putLong(COMMITTED_LENGTH_OFFSET, this.committedLength);
+        this.buffer.putLong(SORTED_LENGTH_OFFSET, this.sortedLength);
+        this.buffer.force();
+        this.writeOffset = this.committedLength;
+    }
+
+    private void grow() throws IOException {
+        final long newSize = Math.min((long) this.buffer.capacity() * 2, MAX_MAPPED_SIZE);
+        if (newSize < this.writeOffset + RECORD_SIZE) throw new IOException(this.path + " is full");
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    private void indexRecord(long pos, int offset) {
+        this.tailCount++;
+        final long chunkPos = StepHistoryStore.chunkOf(pos);
+        IntArrayList offsets = this.tailIndex.get(chunkPos);
+        if (offsets == null) this.tailIndex.put(chunkPos, offsets = new IntArrayList(4));
+        offsets.add(offset);
+    }
+
+    /**
+     * @return the offset of the given chunk's first record in the sorted section, or sortedLength if it has
+     * none there.
+     */
+    private int findSorted(long chunkPos) {
+        int low = 0, high = (this.sortedLength - HEADER_SIZE) / RECORD_SIZE;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (chunkAt(HEADER_SIZE + mid * RECORD_SIZE) < chunkPos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return HEADER_SIZE + low * RECORD_SIZE;
+    }
+
+    /**
+     * Map each position in the given chunk to the offset of its latest record, starting with the chunk's
+     * run of records in the sorted section at sortedStart and then the given tail offsets (which may be
+     * null).  Forgotten positions are left out.
+     */
+    private void collectLatest(long chunkPos, int sortedStart, IntArrayList tailOffsets, Long2IntOpenHashMap out) {
+        for (int offset = sortedStart; offset < this.sortedLength && chunkAt(offset) == chunkPos; offset += RECORD_SIZE) {
+            // the sorted section isn't checked when the file is opened, so check records as they're read
+            if (checksumMatches(offset)) out.put(this.buffer.getLong(offset), offset);
+        }
+        if (tailOffsets == null) return;
+        for (int i = 0; i < tailOffsets.size(); i++) {
+            final int offset = tailOffsets.getInt(i);
+            if (this.buffer.getInt(offset + 16) > 0) {
+                out.put(this.buffer.getLong(offset), offset);
+            } else {
+                out.remove(this.buffer.getLong(offset));
+            }
+        }
+    }
+
+    private long chunkAt(int offset) {
+        return StepHistoryStore.chunkOf(this.buffer.getLong(offset));
+    }
+
+    private boolean checksumMatches(int offset) {
+        return this.buffer.getInt(offset + 20) ==
+                checksum(this.buffer.getLong(offset), this.buffer.getLong(offset + 8), this.buffer.getInt(offset + 16));
+    }
+
+    /**
+     * Delete every generation but the one in use, and anything a crash left behind.  Failing to is harmless;
+     * they're tried again next time.
+     */
+    private void deleteOtherGenerations() {
+        try (final DirectoryStream<Path> siblings = Files.newDirectoryStream(this.basePath.getParent(),
+                this.basePath.getFileName() + "*")) {
+            for (final Path sibling : siblings) {
+                if (sibling.equals(this.path) || parseGeneration(this.basePath, sibling) < 0) continue;
+                try {
+                    Files.deleteIfExists(sibling);
+                } catch (IOException e) {
+                    // most likely still mapped on Windows
+                }
+            }
+        } catch (IOException e) {
+            // try again next time
+        }
+    }
+
+    /**
+     * @return the newest generation of the file at the given path whose header is complete, or 0 if there
+     * are none.
+     */
+    private static long newestGeneration(Path basePath) throws IOException {
+        long newest = 0;
+        try (final DirectoryStream<Path> siblings = Files.newDirectoryStream(basePath.getParent(),
+                basePath.getFileName() + "*")) {
+            for (final Path sibling : siblings) {
+                final long generation = parseGeneration(basePath, sibling);
+                if (generation > newest && hasMagic(sibling)) newest = generation;
+            }
+        }
+        return newest;
+    }
+
+    private static Path generationPath(Path basePath, long generation) {
+        return generation == 0 ? basePath : basePath.resolveSibling(basePath.getFileName() + "." + generation);
+    }
+
+    /**
+     * @return the generation that the given path is of the file at basePath, or -1 if it isn't one.
+     */
+    private static long parseGeneration(Path basePath, Path path) {
+        final String base = basePath.getFileName().toString(), name = path.getFileName().toString();
+        if (name.equals(base)) return 0;
+        if (!name.startsWith(base + ".")) return -1;
+        try {
+            final long generation = Long.parseLong(name.substring(base.length() + 1));
+            return generation > 0 ? generation : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean hasMagic(Path path) {
+        try (final FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (in.read(header) < 0) return false;
+            }
+            return header.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int checksum(long pos, long lastStepTick, int stepCount) {
+        long h = pos * 0x9E3779B97F4A7C15L ^ lastStepTick * 0xC2B2AE3D27D4EB4FL ^ stepCount;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        return (int) (h ^ (h >>> 32)) | 1; // never zero, so zero-filled space never checks out
+    }
+}
@@ -0,0 +1,331 @@
+package net.pcal.trailblazer;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+import static net.pcal.trailblazer.TrailblazerService.LOGGER_NAME;
+import static net.pcal.trailblazer.TrailblazerService.LOG_PREFIX;
+
+/**
+ * Optional persistent backend for step history, so that partly worn trails survive restarts and chunk
+ * unloads.  Each dimension gets a StepHistoryFile.  All file I/O happens on a single background thread:
+ * the level thread only appends changes to an in-memory batch, which is handed off at the end of each tick,
+ * and asks for a chunk's saved history when the chunk loads, which comes back in a later tick.
+ *
+ * Steps taken in a chunk between the request for its saved history and its arrival win over what was saved.
+ *
+ * The level thread never waits for the background thread.  If the background thread falls
+ * MAX_BATCHES_IN_FLIGHT batches behind (a stalled disk, say), changes keep collecting in the current batch
+ * instead; if that reaches MAX_BATCH_SIZE too, it's dropped and counted, and those blocks' histories may
+ * restore slightly out of date.
+ *
+ * Apart from the constructor's thread and the LoadedChunk hand-off, methods must be called on the thread
+ * that ticks the level(s) it's persisting; TrailblazerLevelService gives each level its own.
+ */
+class StepHistoryPersistence {
+
+    // ===================================================================================
+    // Constants
+
+    private static final int INITIAL_BATCH_CAPACITY = 256;
+    private static final int MAX_BATCHES_IN_FLIGHT = 64;
+    private static final int MAX_BATCH_SIZE = 1 << 16;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    // ===================================================================================
+    // Fields
+
+    private final Logger logger = LogManager.getLogger(LOGGER_NAME);
+    private final ScheduledExecutorService ioThread;
+    private final ConcurrentLinkedQueue<LoadedChunk> loadedChunks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<WriteBatch> freeBatches = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger batchesInFlight = new AtomicInteger();
+    private WriteBatch pending = new WriteBatch();
+    private long droppedCount = 0;
+
+    /**
+     * The game tick and history timeout as of the last tickEnded(), for compaction to age records out by.
+     */
+    private volatile long lastTick = 0;
+    private volatile int timeoutTicks = -1;
+
+    /**
+     * Indexed by dimension number.  Null for dimensions that aren't open.
+     */
+    private DimensionState[] dimensions = new DimensionState[0];
+
+    /**
+     * Indexed by dimension number.  Only touched on the background thread.
+     */
+    private StepHistoryFile[] files = new StepHistoryFile[0];
+
+    // ===================================================================================
+    // Constructors
+
+    StepHistoryPersistence(int flushIntervalSeconds) {
+        this.ioThread = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "Trailblazer step history");
+            t.setDaemon(true);
+            return t;
+        });
+        this.ioThread.scheduleWithFixedDelay(this::commitAll, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // ===================================================================================
+    // Level thread methods
+
+    /**
+     * Start persisting history for the given dimension in the file at the given path.
+     */
+    void openDimension(int dimension, Path path) {
+        requireNonNull(path);
+        if (dimension >= this.dimensions.length) {
+            this.dimensions = Arrays.copyOf(this.dimensions, dimension + 1);
+        }
+        this.dimensions[dimension] = new DimensionState();
+        this.ioThread.execute(() -> {
+            try {
+                if (dimension >= this.files.length) this.files = Arrays.copyOf(this.files, dimension + 1);
+                this.files[dimension] = StepHistoryFile.open(path);
+            } catch (IOException | RuntimeException e) {
+                logger.error(LOG_PREFIX + "Unable to open " + path + "; step history won't be saved", e);
+            }
+        });
+    }
+
+    /**
+     * Write out everything recorded for the given dimension and close its file.
+     */
+    void closeDimension(int dimension) {
+        if (dimension >= this.dimensions.length || this.dimensions[dimension] == null) return;
+        this.dimensions[dimension] = null;
+        handOff(true);
+        this.ioThread.execute(() -> {
+            final StepHistoryFile file = this.files[dimension];
+            if (file == null) return;
+            this.files[dimension] = null;
+            try {
+                file.close();
+            } catch (IOException | RuntimeException e) {
+                logger.error(LOG_PREFIX + "Error closing step history for dimension " + dimension, e);
+            }
+        });
+    }
+
+    /**
+     * Ask for the saved history of the given chunk to be loaded.  It will be restored into the store by some
+     * later call to tickEnded().
+     */
+    void chunkLoaded(int dimension, long chunkPos) {
+        final DimensionState state = getState(dimension);
+        if (state == null) return;
+        state.loadingChunks.add(chunkPos);
+        this.ioThread.execute(() -> {
+            final StepHistoryFile file = dimension < this.files.length ? this.files[dimension] : null;
+            LoadedChunk loaded = file == null ? null : file.readChunk(dimension, chunkPos);
+            if (loaded == null) loaded = new LoadedChunk(dimension, chunkPos, null, null, null);
+            this.loadedChunks.add(loaded);
+        });
+    }
+
+    /**
+     * Note that a block's history has changed.  A stepCount of 0 means it has been forgotten.
+     */
+    void recordChange(int dimension, long pos, int stepCount, long lastStepTick) {
+        final DimensionState state = getState(dimension);
+        if (state == null) return;
+        if (!state.loadingChunks.isEmpty() && state.loadingChunks.contains(StepHistoryStore.chunkOf(pos))) {
+            state.touchedWhileLoading.add(pos);
+        }
+        this.pending.add(dimension, pos, stepCount, lastStepTick);
+    }
+
+    /**
+     * Called at the end of every server tick.  Hands the tick's changes to the background thread and restores
+     * any chunk histories that have finished loading, with the given timeout.  Saved histories more than
+     * timeoutTicks older than tick 'now' are dropped the next time the file is compacted.
+     */
+    void tickEnded(StepHistoryStore store, long now, int timeoutTicks) {
+        this.lastTick = now;
+        this.timeoutTicks = timeoutTicks;
+        handOff(false);
+        LoadedChunk loaded;
+        while ((loaded = this.loadedChunks.poll()) != null) {
+            final DimensionState state = getState(loaded.dimension());
+            // skip it if the chunk has been unloaded in the meantime
+            if (state == null || !state.loadingChunks.remove(loaded.chunkPos())) continue;
+            if (loaded.positions() != null) {
+                for (int i = 0; i < loaded.positions().length; i++) {
+                    if (state.touchedWhileLoading.contains(loaded.positions()[i])) continue;
+                    store.restore(loaded.dimension(), loaded.positions()[i], loaded.stepCounts()[i], loaded.lastStepTicks()[i],
+                            timeoutTicks);
+                }
+            }
+            if (!state.touchedWhileLoading.isEmpty()) {
+                final LongIterator i = state.touchedWhileLoading.iterator();
+                while (i.hasNext()) {
+                    if (StepHistoryStore.chunkOf(i.nextLong()) == loaded.chunkPos()) i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the given chunk's saved history has been asked for but not restored yet.
+     */
+    boolean isLoading(int dimension, long chunkPos) {
+        final DimensionState state = getState(dimension);
+        return state != null && state.loadingChunks.contains(chunkPos);
+    }
+
+    /**
+     * Called when a chunk is unloaded.  If its history hasn't finished loading, it's discarded when it does.
+     */
+    void chunkUnloaded(int dimension, long chunkPos) {
+        final DimensionState state = getState(dimension);
+        if (state != null) state.loadingChunks.remove(chunkPos);
+    }
+
+    /**
+     * Write out and close everything, waiting for the background thread to finish.
+     */
+    void shutdown() {
+        for (int i = 0; i < this.dimensions.length; i++) closeDimension(i);
+        if (this.droppedCount > 0) {
+            logger.warn(LOG_PREFIX + "Saving step history fell behind; " + this.droppedCount + " changes weren't saved");
+        }
+        this.ioThread.shutdown();
+        try {
+            if (!this.ioThread.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn(LOG_PREFIX + "Timed out waiting for step history to be saved");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ===================================================================================
+    // Private
+
+    private DimensionState getState(int dimension) {
+        return dimension < this.dimensions.length ? this.dimensions[dimension] : null;
+    }
+
+    /**
+     * Hand the pending batch to the background thread, unless it's too far behind and force is false.
+     */
+    private void handOff(boolean force) {
+        if (this.pending.size == 0) return;
+        if (!force && this.batchesInFlight.get() >= MAX_BATCHES_IN_FLIGHT) {
+            if (this.pending.size < MAX_BATCH_SIZE) return;
+            this.droppedCount += this.pending.size;
+            this.pending.size = 0;
+            return;
+        }
+        final WriteBatch batch = this.pending;
+        final WriteBatch next = this.freeBatches.poll();
+        this.pending = next != null ? next : new WriteBatch();
+        this.batchesInFlight.incrementAndGet();
+        this.ioThread.execute(() -> write(batch));
+    }
+
+    /**
+     * @return the number of changes dropped because the background thread was too far behind.
+     */
+    long getDroppedCount() {
+        return this.droppedCount;
+    }
+
+    /**
+     * Runs on the background thread.
+     */
+    private void write(WriteBatch batch) {
+        for (int i = 0; i < batch.size; i++) {
+            final int dimension = batch.dimensions[i];
+            final StepHistoryFile file = dimension < this.files.length ? this.files[dimension] : null;
+            if (file == null) continue;
+            try {
+                file.append(batch.positions[i], batch.stepCounts[i], batch.lastStepTicks[i]);
+            } catch (IOException | RuntimeException e) {
+                logger.error(LOG_PREFIX + "Unable to save step history for dimension " + dimension, e);
+                this.files[dimension] = null;
+            }
+        }
+        batch.size = 0;
+        this.freeBatches.add(batch);
+        this.batchesInFlight.decrementAndGet();
+    }
+
+    /**
+     * Runs on the background thread.
+     */
+    private void commitAll() {
+        final long now = this.lastTick;
+        final int timeoutTicks = this.timeoutTicks;
+        for (final StepHistoryFile file : this.files) {
+            if (file == null) continue;
+            try {
+                file.commit();
+                file.compactIfNeeded(now, timeoutTicks);
+            } catch (IOException | RuntimeException e) {
+                logger.error(LOG_PREFIX + "Unable to save step history", e);
+            }
+        }
+    }
+
+    // ===================================================================================
+    // Inner classes
+
+    /**
+     * Server-thread bookkeeping for an open dimension.
+     */
+    private static final class DimensionState {
+        final LongOpenHashSet loadingChunks = new LongOpenHashSet();
+        final LongOpenHashSet touchedWhileLoading = new LongOpenHashSet();
+    }
+
+    /**
+     * Changes recorded on the level thread during a tick, in parallel arrays.  Recycled once written.
+     */
+    private static final class WriteBatch {
+        int size = 0;
+        int[] dimensions = new int[INITIAL_BATCH_CAPACITY];
+        long[] positions = new long[INITIAL_BATCH_CAPACITY];
+        int[] stepCounts = new int[INITIAL_BATCH_CAPACITY];
+        long[] lastStepTicks = new long[INITIAL_BATCH_CAPACITY];
+
+        void add(int dimension, long pos, int stepCount, long lastStepTick) {
+            if (this.size == this.positions.length) {
+                final int newCapacity = this.size * 2;
+                this.dimensions = Arrays.copyOf(this.dimensions, newCapacity);
+                this.positions = Arrays.copyOf(this.positions, newCapacity);
+                this.stepCounts = Arrays.copyOf(this.stepCounts, newCapacity);
+                this.lastStepTicks = Arrays.copyOf(this.lastStepTicks, newCapacity);
+            }
+            this.dimensions[this.size] = dimension;
+            this.positions[this.size] = pos;
+            this.stepCounts[this.size] = stepCount;
+            this.lastStepTicks[this.size] = lastStepTick;
+            this.size++;
+        }
+    }
+
+    /**
+     * The saved history for one chunk, read on the background thread.  The arrays are null if nothing was
+     * saved.
+     */
+    record LoadedChunk(int dimension, long chunkPos, long[] positions, int[] stepCounts, long[] lastStepTicks) {
+    }
+}
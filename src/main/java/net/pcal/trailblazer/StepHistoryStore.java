@@ -0,0 +1,585 @@
+package net.pcal.trailblazer;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Remembers how many times blocks have been stepped on.  Entries are keyed by a dimension number and
+ * BlockPos.asLong(), and are stored in parallel primitive arrays of an open-addressed (linear probing)
+ * table, so get/increment/remove never allocate.  When the table holds maxSize entries, inserting a new
+ * entry evicts an old one using the clock (second chance) approximation of LRU.
+ *
+ * Entries are also partitioned by chunk.  Each entry is stamped with its chunk's partition number and the
+ * partition's generation; retiring a chunk just bumps its partition's generation, which makes all of the
+ * chunk's entries stale in O(1).  Stale entries are treated as missing by lookups and are the first thing
+ * the clock hand reclaims, so histories for unloaded chunks don't crowd out those in loaded ones.  maxSize
+ * still applies to the table as a whole, across all chunks and dimensions.
+ *
+ * Entries also expire on their own once the timeoutTicks they were last stepped on with has passed, since
+ * the next step would just start the count over anyway.  Each entry with a timeout has a node in an
+ * ExpiryWheel, whose handle the slot keeps so that removing the entry any other way (eviction, remove(),
+ * remapRules()) takes the node out too.  expire() advances the wheel a bounded amount each tick, and the
+ * table and the wheel shrink again as they empty out, so memory follows the number of trails actually being
+ * worn rather than maxSize.
+ *
+ * Each entry also records the index of the rule that last stepped on it, so that when the config is
+ * reloaded, histories belonging to rules that no longer exist can be dropped and the rest kept.
+ *
+ * For rules that count distinct entities rather than steps, each entry also carries a 128-bit
+ * DistinctSketch of the entities that have stepped on it, and its step count is the sketch's estimate.
+ *
+ * Memory: each entry in the LinkedHashMap<BlockPos, BlockHistory> this replaces cost a LinkedHashMap.Entry
+ * (40 bytes), a BlockPos (24 bytes), a BlockHistory (24 bytes) and a table reference, so a bit under 100
+ * bytes with compressed oops.  Here a slot costs 8 (pos) + 4 (dimension) + 4 (stepCount) + 8 (lastStepTick)
+ * + 4 (rule) + 4 (timeout) + 4 (wheel node) + 8 (partition and generation) + 1 (clock bit) + 16 (sketch)
+ * = 61 bytes.  A full table is 3/8 to 3/4 occupied, and the wheel's node arrays are up to half empty too.
+ * Measured by StepHistoryStoreTest, a full store of about 100,000 entries costs 124 bytes per entry just before
+ * the table doubles and 204 just after, in a couple of dozen objects however many entries there are: more memory
+ * at worst, but nothing for the collector to trace and only entries that can still matter.
+ *
+ * Not thread safe.
+ */
+class StepHistoryStore {
+
+    // ===================================================================================
+    // Constants
+
+    /**
+     * Dimension number that marks an empty slot.  Dimension numbers passed in must be greater than this.
+     */
+    static final int NO_DIMENSION = 0;
+
+    private static final int MIN_TABLE_SIZE = 16;
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+    private static final int NO_PARTITION = -1;
+    private static final int NOT_SCHEDULED = ExpiryWheel.NO_NODE;
+
+    /**
+     * Rule index for entries whose rule isn't known, such as restored ones.
+     */
+    static final int NO_RULE = -1;
+
+    // ===================================================================================
+    // Fields
+
+    private int maxSize;
+    private int size = 0;
+    private int mask;
+    private int clockHand = 0;
+    private long[] positions;
+    private int[] dimensions;
+    private int[] stepCounts;
+    private long[] lastStepTicks;
+    private int[] rules;
+    private long[] sketchLows;
+    private long[] sketchHighs;
+    private int[] timeouts;
+    private int[] wheelNodes;
+    private int[] partitions;
+    private int[] generations;
+    private boolean[] referenced;
+
+    /**
+     * Indexed by dimension number, maps ChunkPos.toLong() to partition number.
+     */
+    private Long2IntOpenHashMap[] chunkPartitions = new Long2IntOpenHashMap[0];
+    private int[] partitionGenerations = new int[MIN_TABLE_SIZE];
+    private final IntArrayList freePartitions = new IntArrayList();
+    private int partitionCount = 0;
+
+    private final ExpiryWheel wheel = new ExpiryWheel();
+    private final ExpiryWheel.Visitor wheelVisitor = this::visitScheduled;
+    private long expiringAt;
+    private DropListener expiryListener;
+    private long expiredCount = 0;
+    private long evictedCount = 0;
+
+    // ===================================================================================
+    // Constructors
+
+    StepHistoryStore(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        allocate(MIN_TABLE_SIZE);
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * @return the number of slots in use, including stale entries for retired chunks that haven't been
+     * reclaimed yet.
+     */
+    int size() {
+        return this.size;
+    }
+
+    int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * @return the number of chunks that currently have a partition.
+     */
+    int getChunkCount() {
+        return this.partitionCount - this.freePartitions.size();
+    }
+
+    /**
+     * Change the maximum number of entries, evicting entries if the store is now over capacity.
+     */
+    void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        while (this.size > this.maxSize) evictOne();
+    }
+
+    /**
+     * @return the step count recorded for the given block, or 0 if it's not being remembered.
+     */
+    int get(int dimension, long pos) {
+        final int slot = find(dimension, pos);
+        return slot < 0 ? 0 : this.stepCounts[slot];
+    }
+
+    /**
+     * Record a step on the given block at tick 'now' by the given rule and return its new step count.  If the
+     * last recorded step is more than timeoutTicks old (and timeoutTicks is positive), the count starts over
+     * at 1.  If the block isn't being remembered yet, it's added with a count of 1, evicting another block if
+     * necessary.
+     */
+    int increment(int dimension, long pos, long now, int timeoutTicks, int rule) {
+        return increment(dimension, pos, now, timeoutTicks, rule, 1);
+    }
+
+    /**
+     * Like increment(), but counts the step as 'weight' steps.
+     */
+    int increment(int dimension, long pos, long now, int timeoutTicks, int rule, int weight) {
+        int slot = find(dimension, pos);
+        if (slot >= 0) {
+            if (timeoutTicks > 0 && (now - this.lastStepTicks[slot]) > timeoutTicks) {
+                this.stepCounts[slot] = weight;
+                this.sketchLows[slot] = 0;
+                this.sketchHighs[slot] = 0;
+            } else {
+                this.stepCounts[slot] += weight;
+            }
+            this.lastStepTicks[slot] = now;
+            this.rules[slot] = rule;
+            this.timeouts[slot] = timeoutTicks;
+            this.referenced[slot] = true;
+            if (this.wheelNodes[slot] == NOT_SCHEDULED) schedule(slot);
+            return this.stepCounts[slot];
+        }
+        insert(dimension, pos, weight, now, timeoutTicks, rule);
+        return weight;
+    }
+
+    /**
+     * Like increment(), but counts the distinct entities that have stepped on the block rather than steps,
+     * entityHash being some hash of the entity's identity.  Counts are estimates past a handful of entities
+     * (see DistinctSketch) and never go down until the timeout passes.  A restored history's count is kept
+     * as a floor, since its sketch wasn't saved.
+     */
+    int incrementDistinct(int dimension, long pos, long now, int timeoutTicks, int rule, int entityHash) {
+        final int fingerprint = DistinctSketch.fingerprint(entityHash);
+        int slot = find(dimension, pos);
+        if (slot < 0) {
+            slot = insert(dimension, pos, 1, now, timeoutTicks, rule);
+            this.sketchLows[slot] = DistinctSketch.addLow(0, 0, fingerprint);
+            return 1;
+        }
+        if (timeoutTicks > 0 && (now - this.lastStepTicks[slot]) > timeoutTicks) {
+            this.stepCounts[slot] = 0;
+            this.sketchLows[slot] = 0;
+            this.sketchHighs[slot] = 0;
+        }
+        final long low = this.sketchLows[slot];
+        final long high = this.sketchHighs[slot];
+        this.sketchLows[slot] = DistinctSketch.addLow(low, high, fingerprint);
+        this.sketchHighs[slot] = DistinctSketch.addHigh(low, high, fingerprint);
+        final int count = DistinctSketch.count(this.sketchLows[slot], this.sketchHighs[slot]);
+        if (count > this.stepCounts[slot]) this.stepCounts[slot] = count;
+        this.lastStepTicks[slot] = now;
+        this.rules[slot] = rule;
+        this.timeouts[slot] = timeoutTicks;
+        this.referenced[slot] = true;
+        if (this.wheelNodes[slot] == NOT_SCHEDULED) schedule(slot);
+        return this.stepCounts[slot];
+    }
+
+    /**
+     * Remember a block's history as it was previously saved, unless the block is already being remembered.
+     * Saved histories don't say which rule they belong to.
+     */
+    void restore(int dimension, long pos, int stepCount, long lastStepTick, int timeoutTicks) {
+        if (find(dimension, pos) < 0) insert(dimension, pos, stepCount, lastStepTick, timeoutTicks, NO_RULE);
+    }
+
+    /**
+     * Told about blocks that the store forgets on its own.
+     */
+    interface DropListener {
+        void dropped(int dimension, long pos);
+    }
+
+    /**
+     * Forget blocks whose timeouts have passed as of tick 'now', looking at no more than maxWork scheduled
+     * entries; the rest are picked up on the next call.  The listener is told about each expired block.
+     */
+    void expire(long now, int maxWork, DropListener listener) {
+        this.expiringAt = now;
+        this.expiryListener = listener;
+        try {
+            this.wheel.advance(now, maxWork, this.wheelVisitor);
+        } finally {
+            this.expiryListener = null;
+        }
+        if (this.mask + 1 > MIN_TABLE_SIZE && this.size < (this.mask + 1) >> 3) {
+            rehash((this.mask + 1) >> 1);
+        } else if (this.wheel.capacity() > MIN_TABLE_SIZE && this.wheel.size() < this.wheel.capacity() >> 3) {
+            rebuildWheel();
+        }
+    }
+
+    /**
+     * @return the total number of entries that have expired.
+     */
+    long getExpiredCount() {
+        return this.expiredCount;
+    }
+
+    /**
+     * @return the number of entries waiting in the expiry wheel.
+     */
+    int getScheduledCount() {
+        return this.wheel.size();
+    }
+
+    /**
+     * @return the total number of live entries that have been evicted to make room for others.
+     */
+    long getEvictedCount() {
+        return this.evictedCount;
+    }
+
+    /**
+     * Renumber the rule of every entry after a config change: an entry for rule r now belongs to rule
+     * newRules[r], or is forgotten if that's NO_RULE.  Entries whose rule isn't known are left alone.  The
+     * listener is told about each forgotten block.
+     */
+    void remapRules(int[] newRules, DropListener listener) {
+        final IntArrayList dropped = new IntArrayList();
+        for (int slot = 0; slot <= this.mask; slot++) {
+            if (this.dimensions[slot] == NO_DIMENSION || isStale(slot)) continue;
+            final int rule = this.rules[slot];
+            if (rule == NO_RULE) continue;
+            final int newRule = rule < newRules.length ? newRules[rule] : NO_RULE;
+            if (newRule == NO_RULE) {
+                dropped.add(slot);
+            } else {
+                this.rules[slot] = newRule;
+            }
+        }
+        // removing shifts entries around, so collect the keys before removing any
+        final int[] droppedDimensions = new int[dropped.size()];
+        final long[] droppedPositions = new long[dropped.size()];
+        for (int i = 0; i < dropped.size(); i++) {
+            droppedDimensions[i] = this.dimensions[dropped.getInt(i)];
+            droppedPositions[i] = this.positions[dropped.getInt(i)];
+        }
+        for (int i = 0; i < droppedDimensions.length; i++) {
+            if (remove(droppedDimensions[i], droppedPositions[i]) && listener != null) {
+                listener.dropped(droppedDimensions[i], droppedPositions[i]);
+            }
+        }
+    }
+
+    /**
+     * Forget the given block.  Returns true if it was being remembered.
+     */
+    boolean remove(int dimension, long pos) {
+        final int slot = find(dimension, pos);
+        if (slot < 0) return false;
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Forget everything remembered about blocks in the given chunk, in constant time.
+     */
+    void retireChunk(int dimension, long chunkPos) {
+        if (dimension >= this.chunkPartitions.length || this.chunkPartitions[dimension] == null) return;
+        final int partition = this.chunkPartitions[dimension].remove(chunkPos);
+        if (partition != NO_PARTITION) retirePartition(partition);
+    }
+
+    /**
+     * Forget everything.
+     */
+    void clear() {
+        this.wheel.clear();
+        Arrays.fill(this.dimensions, NO_DIMENSION);
+        Arrays.fill(this.referenced, false);
+        this.size = 0;
+        this.clockHand = 0;
+        this.chunkPartitions = new Long2IntOpenHashMap[0];
+        this.freePartitions.clear();
+        this.partitionCount = 0;
+    }
+
+    // ===================================================================================
+    // Private
+
+    private int find(int dimension, long pos) {
+        int slot = mix(dimension, pos) & this.mask;
+        int d;
+        while ((d = this.dimensions[slot]) != NO_DIMENSION) {
+            if (d == dimension && this.positions[slot] == pos) {
+                if (isStale(slot)) {
+                    removeSlot(slot);
+                    return -1;
+                }
+                return slot;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add an entry for a block that isn't in the table, evicting another if necessary.  Returns its slot.
+     */
+    private int insert(int dimension, long pos, int stepCount, long lastStepTick, int timeoutTicks, int rule) {
+        if (this.size >= this.maxSize) {
+            evictOne();
+        } else if (this.size >= (this.mask + 1) - ((this.mask + 1) >> 2) && this.mask + 1 < MAX_TABLE_SIZE) {
+            rehash((this.mask + 1) << 1);
+        }
+        final int partition = getOrCreatePartition(dimension, chunkOf(pos));
+        int slot = mix(dimension, pos) & this.mask;
+        while (this.dimensions[slot] != NO_DIMENSION) slot = (slot + 1) & this.mask;
+        this.positions[slot] = pos;
+        this.dimensions[slot] = dimension;
+        this.stepCounts[slot] = stepCount;
+        this.lastStepTicks[slot] = lastStepTick;
+        this.rules[slot] = rule;
+        this.sketchLows[slot] = 0;
+        this.sketchHighs[slot] = 0;
+        this.timeouts[slot] = timeoutTicks;
+        this.wheelNodes[slot] = NOT_SCHEDULED;
+        this.partitions[slot] = partition;
+        this.generations[slot] = this.partitionGenerations[partition];
+        this.referenced[slot] = false;
+        this.size++;
+        schedule(slot);
+        return slot;
+    }
+
+    /**
+     * Put the entry in the expiry wheel if it has a timeout.
+     */
+    private void schedule(int slot) {
+        if (this.timeouts[slot] <= 0) return;
+        this.wheelNodes[slot] = this.wheel.schedule(this.dimensions[slot], this.positions[slot],
+                this.lastStepTicks[slot] + this.timeouts[slot] + 1);
+    }
+
+    /**
+     * Called by the wheel when an entry's scheduled tick arrives.  The entry may have been stepped on again
+     * since it was scheduled; entries that are removed take their nodes out of the wheel.
+     */
+    private long visitScheduled(int dimension, long pos, long scheduledTick) {
+        final int slot = find(dimension, pos);
+        if (slot < 0) return ExpiryWheel.NO_TICK; // stale, and find() has just removed it
+        if (this.timeouts[slot] <= 0) {
+            this.wheelNodes[slot] = NOT_SCHEDULED;
+            return ExpiryWheel.NO_TICK;
+        }
+        final long expiryTick = this.lastStepTicks[slot] + this.timeouts[slot] + 1;
+        if (expiryTick <= this.expiringAt) {
+            // the wheel frees the node itself
+            this.wheelNodes[slot] = NOT_SCHEDULED;
+            removeSlot(slot);
+            this.expiredCount++;
+            if (this.expiryListener != null) this.expiryListener.dropped(dimension, pos);
+            return ExpiryWheel.NO_TICK;
+        }
+        return expiryTick;
+    }
+
+    /**
+     * Rebuild the expiry wheel from the table, so its arrays are no bigger than the entries scheduled in it.
+     */
+    private void rebuildWheel() {
+        this.wheel.clear();
+        for (int slot = 0; slot <= this.mask; slot++) {
+            this.wheelNodes[slot] = NOT_SCHEDULED;
+            if (this.dimensions[slot] != NO_DIMENSION) schedule(slot);
+        }
+    }
+
+    private boolean isStale(int slot) {
+        return this.generations[slot] != this.partitionGenerations[this.partitions[slot]];
+    }
+
+    /**
+     * Advance the clock hand until it finds a stale slot or one that hasn't been referenced since the last
+     * sweep, and remove it.
+     */
+    private void evictOne() {
+        if (this.size == 0) return;
+        while (true) {
+            final int slot = this.clockHand;
+            this.clockHand = (slot + 1) & this.mask;
+            if (this.dimensions[slot] == NO_DIMENSION) continue;
+            if (this.referenced[slot] && !isStale(slot)) {
+                this.referenced[slot] = false;
+            } else {
+                if (!isStale(slot)) this.evictedCount++;
+                removeSlot(slot);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the entry in the given slot, shifting later entries in the probe sequence back so that
+     * lookups never need tombstones.
+     */
+    private void removeSlot(int slot) {
+        if (this.wheelNodes[slot] != NOT_SCHEDULED) this.wheel.cancel(this.wheelNodes[slot]);
+        int hole = slot;
+        int next = (hole + 1) & this.mask;
+        while (this.dimensions[next] != NO_DIMENSION) {
+            final int home = mix(this.dimensions[next], this.positions[next]) & this.mask;
+            // move the entry back into the hole unless its home lies cyclically in (hole, next]
+            if (((next - home) & this.mask) >= ((next - hole) & this.mask)) {
+                this.positions[hole] = this.positions[next];
+                this.dimensions[hole] = this.dimensions[next];
+                this.stepCounts[hole] = this.stepCounts[next];
+                this.lastStepTicks[hole] = this.lastStepTicks[next];
+                this.rules[hole] = this.rules[next];
+                this.sketchLows[hole] = this.sketchLows[next];
+                this.sketchHighs[hole] = this.sketchHighs[next];
+                this.timeouts[hole] = this.timeouts[next];
+                this.wheelNodes[hole] = this.wheelNodes[next];
+                this.partitions[hole] = this.partitions[next];
+                this.generations[hole] = this.generations[next];
+                this.referenced[hole] = this.referenced[next];
+                hole = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+        this.dimensions[hole] = NO_DIMENSION;
+        this.referenced[hole] = false;
+        this.size--;
+    }
+
+    private int getOrCreatePartition(int dimension, long chunkPos) {
+        if (dimension >= this.chunkPartitions.length) {
+            this.chunkPartitions = Arrays.copyOf(this.chunkPartitions, dimension + 1);
+        }
+        Long2IntOpenHashMap partitions = this.chunkPartitions[dimension];
+        if (partitions == null) {
+            partitions = this.chunkPartitions[dimension] = new Long2IntOpenHashMap();
+            partitions.defaultReturnValue(NO_PARTITION);
+        }
+        int partition = partitions.get(chunkPos);
+        if (partition == NO_PARTITION) {
+            if (!this.freePartitions.isEmpty()) {
+                partition = this.freePartitions.popInt();
+            } else {
+                partition = this.partitionCount++;
+                if (partition == this.partitionGenerations.length) {
+                    this.partitionGenerations = Arrays.copyOf(this.partitionGenerations, partition * 2);
+                }
+            }
+            partitions.put(chunkPos, partition);
+        }
+        return partition;
+    }
+
+    private void retirePartition(int partition) {
+        this.partitionGenerations[partition]++;
+        this.freePartitions.add(partition);
+    }
+
+    private void rehash(int newTableSize) {
+        final long[] oldPositions = this.positions;
+        final int[] oldDimensions = this.dimensions;
+        final int[] oldStepCounts = this.stepCounts;
+        final long[] oldLastStepTicks = this.lastStepTicks;
+        final int[] oldRules = this.rules;
+        final long[] oldSketchLows = this.sketchLows;
+        final long[] oldSketchHighs = this.sketchHighs;
+        final int[] oldTimeouts = this.timeouts;
+        final int[] oldPartitions = this.partitions;
+        final int[] oldGenerations = this.generations;
+        final boolean[] oldReferenced = this.referenced;
+        allocate(newTableSize);
+        for (int i = 0; i < oldDimensions.length; i++) {
+            if (oldDimensions[i] == NO_DIMENSION) continue;
+            if (oldGenerations[i] != this.partitionGenerations[oldPartitions[i]]) {
+                this.size--; // stale, no point in keeping it
+                continue;
+            }
+            int slot = mix(oldDimensions[i], oldPositions[i]) & this.mask;
+            while (this.dimensions[slot] != NO_DIMENSION) slot = (slot + 1) & this.mask;
+            this.positions[slot] = oldPositions[i];
+            this.dimensions[slot] = oldDimensions[i];
+            this.stepCounts[slot] = oldStepCounts[i];
+            this.lastStepTicks[slot] = oldLastStepTicks[i];
+            this.rules[slot] = oldRules[i];
+            this.sketchLows[slot] = oldSketchLows[i];
+            this.sketchHighs[slot] = oldSketchHighs[i];
+            this.timeouts[slot] = oldTimeouts[i];
+            this.partitions[slot] = oldPartitions[i];
+            this.generations[slot] = oldGenerations[i];
+            this.referenced[slot] = oldReferenced[i];
+        }
+        this.clockHand = 0;
+        // the wheel still has nodes for the stale entries that were just dropped
+        rebuildWheel();
+    }
+
+    private void allocate(int tableSize) {
+        this.mask = tableSize - 1;
+        this.positions = new long[tableSize];
+        this.dimensions = new int[tableSize];
+        this.stepCounts = new int[tableSize];
+        this.lastStepTicks = new long[tableSize];
+        this.rules = new int[tableSize];
+        this.sketchLows = new long[tableSize];
+        this.sketchHighs = new long[tableSize];
+        this.timeouts = new int[tableSize];
+        this.wheelNodes = new int[tableSize];
+        this.partitions = new int[tableSize];
+        this.generations = new int[tableSize];
+        this.referenced = new boolean[tableSize];
+    }
+
+    /**
+     * @return the ChunkPos.toLong() of the chunk containing the given BlockPos.asLong().
+     */
+    static long chunkOf(long pos) {
+        // BlockPos packs x into the top 26 bits and z into the next 26
+        final int chunkX = (int) (pos >> 38) >> 4;
+        final int chunkZ = (int) (pos << 26 >> 38) >> 4;
+        return (long) chunkX & 0xFFFFFFFFL | ((long) chunkZ & 0xFFFFFFFFL) << 32;
+    }
+
+    /**
+     * murmur3 finalizer over the position, folded with the dimension.
+     */
+    private static int mix(int dimension, long pos) {
+        long h = pos ^ ((long) dimension * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe1a85ec3L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
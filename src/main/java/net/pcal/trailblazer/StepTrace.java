@@ -0,0 +1,239 @@
+package net.pcal.trailblazer;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The format of step trace files written by StepTraceRecorder and read by StepTraceReplayer.
+ *
+ * A trace is a header (MAGIC, VERSION as ints) followed by records, each starting with a tag byte.  Entity
+ * types, block states, boots and dimensions are written out by name the first time they're seen and are
+ * referred to by number after that, so traces can be replayed against a different config (or mod version)
+ * than the one they were recorded with:
+ *
+ *   ENTITY_TYPE  varint id, utf entity type id
+ *   BLOCK_STATE  varint id, utf block state string, as in commands ('minecraft:snow[layers=2]')
+ *   BOOTS        varint id, utf boot item id ('' for barefoot), varint count, count x utf enchantment id
+ *   DIMENSION    varint id, utf dimension id
+ *   STEP         varint entity type, varint block state, varint boots, varint dimension,
+ *                long BlockPos.asLong() of the block stepped on, zigzag varlong ticks since the previous step,
+ *                int hash of the entity's UUID (version 2 and later)
+ *
+ * A step is about 19 bytes.  Writer writes traces and read() reads them, both in terms of names and numbers,
+ * so neither needs Minecraft.
+ */
+final class StepTrace {
+
+    static final int MAGIC = 0x54425452; // 'TBTR'
+    static final int VERSION = 2;
+
+    /**
+     * The first version whose steps identify the entity.
+     */
+    static final int ENTITY_HASH_VERSION = 2;
+
+    static final byte ENTITY_TYPE = 1;
+    static final byte BLOCK_STATE = 2;
+    static final byte BOOTS = 3;
+    static final byte DIMENSION = 4;
+    static final byte STEP = 5;
+
+    private StepTrace() {
+    }
+
+    /**
+     * Told about each record read by read().  Ids are the trace's own numbering, which is dense from 0 for
+     * each kind of record.
+     */
+    interface Visitor {
+        void entityType(int id, String name) throws IOException;
+
+        void blockState(int id, String name) throws IOException;
+
+        /**
+         * @param bootId the boot item id, or '' for barefoot.
+         */
+        void boots(int id, String bootId, List<String> enchantmentIds) throws IOException;
+
+        void dimension(int id, String name) throws IOException;
+
+        /**
+         * @param entityHash the hash of the entity's UUID, or 0 in traces from before ENTITY_HASH_VERSION.
+         */
+        void step(int entityType, int blockState, int boots, int dimension, long pos, long tick, int entityHash)
+                throws IOException;
+    }
+
+    /**
+     * Writes a trace, numbering entity types, block states, boots and dimensions the first time they're
+     * seen.  Each is identified by a key, which is compared with equals(), and only named when it's new, so
+     * steps by things already seen cost a hash lookup each.  Writes the header when it's created.
+     *
+     * Not thread safe.
+     */
+    static final class Writer {
+
+        private final DataOutput out;
+        private final Object2IntOpenHashMap<Object> entityTypeIds = new Object2IntOpenHashMap<>();
+        private final Object2IntOpenHashMap<Object> stateIds = new Object2IntOpenHashMap<>();
+        private final Object2IntOpenHashMap<Object> bootsIds = new Object2IntOpenHashMap<>();
+        private final Object2IntOpenHashMap<Object> dimensionIds = new Object2IntOpenHashMap<>();
+        private long lastTick = 0;
+
+        Writer(DataOutput out) throws IOException {
+            this.out = out;
+            for (final Object2IntOpenHashMap<Object> ids : List.of(this.entityTypeIds, this.stateIds, this.bootsIds, this.dimensionIds)) {
+                ids.defaultReturnValue(-1);
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        <K> int getEntityTypeId(K key, Function<? super K, String> namer) throws IOException {
+            return getId(this.entityTypeIds, ENTITY_TYPE, key, namer);
+        }
+
+        <K> int getStateId(K key, Function<? super K, String> namer) throws IOException {
+            return getId(this.stateIds, BLOCK_STATE, key, namer);
+        }
+
+        <K> int getDimensionId(K key, Function<? super K, String> namer) throws IOException {
+            return getId(this.dimensionIds, DIMENSION, key, namer);
+        }
+
+        /**
+         * Boots are identified by their item and enchantment ids, the same things boot rules can match on.
+         *
+         * @param bootId the boot item id, or '' for barefoot.
+         */
+        int getBootsId(String bootId, List<String> enchantmentIds) throws IOException {
+            final String key = bootId + " " + String.join(" ", enchantmentIds);
+            int id = this.bootsIds.getInt(key);
+            if (id < 0) {
+                this.bootsIds.put(key, id = this.bootsIds.size());
+                this.out.writeByte(BOOTS);
+                writeVarInt(this.out, id);
+                this.out.writeUTF(bootId);
+                writeVarInt(this.out, enchantmentIds.size());
+                for (final String enchantmentId : enchantmentIds) this.out.writeUTF(enchantmentId);
+            }
+            return id;
+        }
+
+        /**
+         * Write a step, in terms of ids returned by the other methods.
+         */
+        void writeStep(int entityTypeId, int stateId, int bootsId, int dimensionId, long pos, long tick, int entityHash)
+                throws IOException {
+            this.out.writeByte(STEP);
+            writeVarInt(this.out, entityTypeId);
+            writeVarInt(this.out, stateId);
+            writeVarInt(this.out, bootsId);
+            writeVarInt(this.out, dimensionId);
+            this.out.writeLong(pos);
+            writeZigZagVarLong(this.out, tick - this.lastTick);
+            this.out.writeInt(entityHash);
+            this.lastTick = tick;
+        }
+
+        private <K> int getId(Object2IntOpenHashMap<Object> ids, byte tag, K key, Function<? super K, String> namer)
+                throws IOException {
+            int id = ids.getInt(key);
+            if (id < 0) {
+                ids.put(key, id = ids.size());
+                this.out.writeByte(tag);
+                writeVarInt(this.out, id);
+                this.out.writeUTF(namer.apply(key));
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Read a trace, from its header to the end of the input.
+     *
+     * @param name what to call the input in exceptions.
+     */
+    static void read(DataInput in, String name, Visitor visitor) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException(name + " is not a step trace");
+        final int version = in.readInt();
+        if (version < 1 || version > VERSION) throw new IOException(name + " has unsupported version " + version);
+        final List<String> enchantmentIds = new ArrayList<>();
+        long tick = 0;
+        while (true) {
+            final int tag;
+            try {
+                tag = in.readByte();
+            } catch (EOFException e) {
+                break;
+            }
+            switch (tag) {
+                case ENTITY_TYPE -> visitor.entityType(readVarInt(in), in.readUTF());
+                case BLOCK_STATE -> visitor.blockState(readVarInt(in), in.readUTF());
+                case BOOTS -> {
+                    final int id = readVarInt(in);
+                    final String bootId = in.readUTF();
+                    enchantmentIds.clear();
+                    for (int i = readVarInt(in); i > 0; i--) enchantmentIds.add(in.readUTF());
+                    visitor.boots(id, bootId, enchantmentIds);
+                }
+                case DIMENSION -> visitor.dimension(readVarInt(in), in.readUTF());
+                case STEP -> {
+                    final int entityType = readVarInt(in);
+                    final int blockState = readVarInt(in);
+                    final int boots = readVarInt(in);
+                    final int dimension = readVarInt(in);
+                    final long pos = in.readLong();
+                    tick += readZigZagVarLong(in);
+                    final int entityHash = version >= ENTITY_HASH_VERSION ? in.readInt() : 0;
+                    visitor.step(entityType, blockState, boots, dimension, pos, tick, entityHash);
+                }
+                default -> throw new IOException(name + " has unknown record type " + tag);
+            }
+        }
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeZigZagVarLong(DataOutput out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    static long readZigZagVarLong(DataInput in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            final byte b = in.readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("Malformed varlong");
+    }
+}
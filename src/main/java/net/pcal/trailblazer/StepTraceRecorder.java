@@ -0,0 +1,166 @@
+package net.pcal.trailblazer;
+
+import net.minecraft.commands.arguments.blocks.BlockStateParser;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.EquipmentSlot;
+import net.minecraft.world.item.ArmorItem;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static net.pcal.trailblazer.TrailblazerService.LOGGER_NAME;
+import static net.pcal.trailblazer.TrailblazerService.LOG_PREFIX;
+
+/**
+ * Records the steps that reach the rule engine to a StepTrace file, for replaying with StepTraceReplayer.
+ * Records are encoded by a StepTrace.Writer into an in-memory buffer on the thread that records them; full
+ * buffers are written to the file on a background thread.
+ *
+ * Only steps by entity types that the current config has rules for are recorded, since EntityMixin never
+ * reports the others.
+ *
+ * record() may be called from any number of level threads at once; records from different threads are
+ * interleaved whole.  Steps recorded after close() are ignored.
+ */
+class StepTraceRecorder implements Closeable {
+
+    // ===================================================================================
+    // Constants
+
+    private static final int FLUSH_BYTES = 1 << 16;
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    // ===================================================================================
+    // Fields
+
+    private final Logger logger = LogManager.getLogger(LOGGER_NAME);
+    private final Path path;
+    private final OutputStream file;
+    private final ExecutorService writer;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(FLUSH_BYTES * 2);
+    private final StepTrace.Writer trace;
+    private long stepCount = 0;
+    private boolean closed = false;
+    private volatile boolean failed = false;
+
+    // ===================================================================================
+    // Constructors
+
+    StepTraceRecorder(Path path) throws IOException {
+        this.path = path;
+        this.file = Files.newOutputStream(path);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, "Trailblazer trace writer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.trace = new StepTrace.Writer(new DataOutputStream(this.buffer));
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    Path getPath() {
+        return this.path;
+    }
+
+    synchronized long getStepCount() {
+        return this.stepCount;
+    }
+
+    synchronized void record(Entity entity, BlockState state, Level world, long pos, long tick) {
+        if (this.failed || this.closed) return;
+        try {
+            final int entityTypeId = this.trace.getEntityTypeId(entity.getType(),
+                    type -> BuiltInRegistries.ENTITY_TYPE.getKey(type).toString());
+            final int stateId = this.trace.getStateId(state, BlockStateParser::serialize);
+            final int bootsId = getBootsId(entity.getArmorSlots());
+            final int dimensionId = this.trace.getDimensionId(world.dimension(), dimension -> dimension.location().toString());
+            this.trace.writeStep(entityTypeId, stateId, bootsId, dimensionId, pos, tick, entity.getUUID().hashCode());
+            this.stepCount++;
+            if (this.buffer.size() >= FLUSH_BYTES) handOff();
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw, but if it somehow did, the buffer is in an unknown state
+            logger.error(LOG_PREFIX + "Unable to record a step to " + this.path + "; recording stopped", e);
+            this.failed = true;
+        }
+    }
+
+    /**
+     * Write out everything recorded and close the file, waiting for the background thread to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (this.closed) return;
+            this.closed = true;
+            handOff();
+        }
+        this.writer.execute(() -> {
+            try {
+                this.file.close();
+            } catch (IOException e) {
+                logger.error(LOG_PREFIX + "Error closing " + this.path, e);
+            }
+        });
+        this.writer.shutdown();
+        try {
+            if (!this.writer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("Timed out writing " + this.path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ===================================================================================
+    // Private
+
+    private void handOff() {
+        if (this.buffer.size() == 0) return;
+        final byte[] bytes = this.buffer.toByteArray();
+        this.buffer.reset();
+        this.writer.execute(() -> {
+            if (this.failed) return;
+            try {
+                this.file.write(bytes);
+            } catch (IOException e) {
+                logger.error(LOG_PREFIX + "Unable to write " + this.path + "; recording stopped", e);
+                this.failed = true;
+            }
+        });
+    }
+
+    private int getBootsId(Iterable<ItemStack> armorSlots) throws IOException {
+        String bootId = "";
+        final List<String> enchantmentIds = new ArrayList<>();
+        for (final ItemStack armor : armorSlots) {
+            if (!(armor.getItem() instanceof final ArmorItem armorItem)) continue;
+            if (armorItem.getEquipmentSlot() != EquipmentSlot.FEET) continue;
+            bootId = BuiltInRegistries.ITEM.getKey(armorItem).toString();
+            for (final Tag enchant : armor.getEnchantmentTags()) {
+                if (enchant instanceof final CompoundTag compound) enchantmentIds.add(compound.getString("id"));
+            }
+            break;
+        }
+        return this.trace.getBootsId(bootId, enchantmentIds);
+    }
+}
@@ -0,0 +1,225 @@
+package net.pcal.trailblazer;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import net.minecraft.SharedConstants;
+import net.minecraft.commands.arguments.blocks.BlockStateParser;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.block.Block;
+import net.pcal.trailblazer.TrailblazerRuntimeConfig.CompiledRule;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replays a trace recorded with '/trailblazer trace start' through the rule engine, without a server, and
+ * reports how it performed.  Useful for comparing configs, or changes to the engine, against real traffic:
+ *
+ *   ./gradlew replayTrace -PtraceArgs="trailblazer-20240101-120000.trace [config.json5]"
+ *
+ * The config defaults to the built-in default config.  Block tags aren't bound outside a server, so rules
+ * that match on tags don't match anything.  Conversions aren't applied to anything, so a converted block is
+ * still the recorded block the next time it's stepped on.
+ */
+public class StepTraceReplayer {
+
+    // ===================================================================================
+    // Constants
+
+    private static final int MAX_EXPIRATIONS_PER_TICK = 1024;
+
+    // ===================================================================================
+    // Fields
+
+    private final TrailblazerRuntimeConfig config;
+    private final int[] entityTypes;
+    private final int[] states;
+    private final long[] boots;
+    private final int[] dimensions;
+    private final long[] positions;
+    private final long[] ticks;
+    private final int[] entityHashes;
+
+    private final long[] outcomeCounts = new long[StepEngine.Outcome.values().length];
+    private final Object2LongOpenHashMap<String> conversionsPerRule = new Object2LongOpenHashMap<>();
+    private int peakStoreSize;
+
+    // ===================================================================================
+    // Main
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: StepTraceReplayer <trace file> [config file]");
+            System.exit(1);
+        }
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        final TrailblazerRuntimeConfig config = TrailblazerInitializer.loadConfig(TrailblazerInitializer.parseConfig(
+                args.length > 1 ? Files.readString(Path.of(args[1])) : TrailblazerInitializer.readDefaultConfig()));
+        final StepTraceReplayer replayer = new StepTraceReplayer(Path.of(args[0]), config);
+        System.out.println("Replaying " + replayer.ticks.length + " steps from " + args[0]);
+        replayer.replay(); // warm up
+        replayer.report(replayer.replay());
+    }
+
+    // ===================================================================================
+    // Constructors
+
+    /**
+     * Read a trace, resolving its names against the registries and the given config.
+     */
+    StepTraceReplayer(Path tracePath, TrailblazerRuntimeConfig config) throws IOException {
+        this.config = config;
+        final IntArrayList entityTypeIds = new IntArrayList();
+        final IntArrayList stateIds = new IntArrayList();
+        final LongArrayList bootFingerprints = new LongArrayList();
+        final IntArrayList dimensionIds = new IntArrayList();
+        final IntArrayList entityTypes = new IntArrayList();
+        final IntArrayList states = new IntArrayList();
+        final LongArrayList boots = new LongArrayList();
+        final IntArrayList dimensions = new IntArrayList();
+        final LongArrayList positions = new LongArrayList();
+        final LongArrayList ticks = new LongArrayList();
+        final IntArrayList entityHashes = new IntArrayList();
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(tracePath)))) {
+            StepTrace.read(in, tracePath.toString(), new StepTrace.Visitor() {
+                @Override
+                public void entityType(int id, String name) {
+                    set(entityTypeIds, id, getEntityTypeId(name));
+                }
+
+                @Override
+                public void blockState(int id, String name) {
+                    set(stateIds, id, getStateId(name));
+                }
+
+                @Override
+                public void boots(int id, String bootId, List<String> enchantmentIds) {
+                    final Set<ResourceLocation> worn = new HashSet<>();
+                    worn.add(bootId.isEmpty() ? TrailblazerRuntimeConfig.BAREFOOT_ID : new ResourceLocation(bootId));
+                    for (final String name : enchantmentIds) {
+                        final ResourceLocation enchantmentId = ResourceLocation.tryParse(name);
+                        if (enchantmentId != null) worn.add(enchantmentId);
+                    }
+                    while (bootFingerprints.size() <= id) bootFingerprints.add(0);
+                    bootFingerprints.set(id, config.getBootFingerprint(worn));
+                }
+
+                @Override
+                public void dimension(int id, String name) {
+                    // dimension ids only need to be distinct
+                    set(dimensionIds, id, id);
+                }
+
+                @Override
+                public void step(int entityType, int blockState, int bootsId, int dimension, long pos, long tick,
+                                 int entityHash) {
+                    entityTypes.add(entityTypeIds.getInt(entityType));
+                    states.add(stateIds.getInt(blockState));
+                    boots.add(bootFingerprints.getLong(bootsId));
+                    dimensions.add(dimensionIds.getInt(dimension));
+                    positions.add(pos);
+                    ticks.add(tick);
+                    entityHashes.add(entityHash);
+                }
+            });
+        }
+        this.entityTypes = entityTypes.toIntArray();
+        this.states = states.toIntArray();
+        this.boots = boots.toLongArray();
+        this.dimensions = dimensions.toIntArray();
+        this.positions = positions.toLongArray();
+        this.ticks = ticks.toLongArray();
+        this.entityHashes = entityHashes.toIntArray();
+    }
+
+    // ===================================================================================
+    // Private
+
+    /**
+     * Run every step in the trace through a fresh engine.
+     *
+     * @return the bytes allocated by this thread during the run, and the elapsed nanos.
+     */
+    private long[] replay() {
+        final StepHistoryStore store = new StepHistoryStore(this.config.getStepCacheSize());
+        final StepEngine<CompiledRule> engine = new StepEngine<>(store, (dimension, pos, stepCount, tick) -> {});
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Arrays.fill(this.outcomeCounts, 0);
+        this.conversionsPerRule.clear();
+        this.peakStoreSize = 0;
+        final long startBytes = threads.getCurrentThreadAllocatedBytes();
+        final long startNanos = System.nanoTime();
+        long currentTick = this.ticks.length > 0 ? this.ticks[0] : 0;
+        for (int i = 0; i < this.ticks.length; i++) {
+            if (this.ticks[i] != currentTick) {
+                // the server expires histories at the end of each tick
+                store.expire(currentTick, MAX_EXPIRATIONS_PER_TICK, null);
+                currentTick = this.ticks[i];
+            }
+            final StepEngine.Outcome outcome = engine.step(this.config, this.entityTypes[i], this.states[i],
+                    this.boots[i], this.entityHashes[i], 1, this.dimensions[i], this.positions[i], this.ticks[i]);
+            this.outcomeCounts[outcome.ordinal()]++;
+            if (outcome == StepEngine.Outcome.CONVERTED) {
+                this.conversionsPerRule.addTo(engine.getLastRule().rule.name(), 1);
+            }
+            if (store.size() > this.peakStoreSize) this.peakStoreSize = store.size();
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        return new long[] { threads.getCurrentThreadAllocatedBytes() - startBytes, elapsedNanos };
+    }
+
+    private void report(long[] run) {
+        final long allocatedBytes = run[0];
+        final long elapsedNanos = Math.max(run[1], 1);
+        final double seconds = elapsedNanos / 1e9;
+        System.out.printf("steps/s:          %.0f%n", this.ticks.length / seconds);
+        System.out.printf("ns/step:          %.1f%n", (double) elapsedNanos / Math.max(this.ticks.length, 1));
+        System.out.printf("allocated:        %d bytes (%.1f bytes/step)%n", allocatedBytes,
+                (double) allocatedBytes / Math.max(this.ticks.length, 1));
+        System.out.println("peak histories:   " + this.peakStoreSize);
+        for (final StepEngine.Outcome outcome : StepEngine.Outcome.values()) {
+            System.out.printf("%-17s %d%n", outcome.name().toLowerCase() + ":", this.outcomeCounts[outcome.ordinal()]);
+        }
+        for (final Object2LongMap.Entry<String> entry : this.conversionsPerRule.object2LongEntrySet()) {
+            System.out.println("  " + entry.getKey() + ": " + entry.getLongValue());
+        }
+    }
+
+    /**
+     * Unknown entity types are given an id that no rule applies to.
+     */
+    private static int getEntityTypeId(String name) {
+        final ResourceLocation id = ResourceLocation.tryParse(name);
+        if (id == null || !BuiltInRegistries.ENTITY_TYPE.containsKey(id)) return -1;
+        return BuiltInRegistries.ENTITY_TYPE.getId(BuiltInRegistries.ENTITY_TYPE.get(id));
+    }
+
+    /**
+     * Unknown block states are given an id that no rule applies to.
+     */
+    private static int getStateId(String name) {
+        try {
+            return Block.getId(BlockStateParser.parseForBlock(BuiltInRegistries.BLOCK.asLookup(), name, false).blockState());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void set(IntArrayList list, int index, int value) {
+        while (list.size() <= index) list.add(-1);
+        list.set(index, value);
+    }
+}
@@ -0,0 +1,60 @@
+package net.pcal.trailblazer;
+
+import net.pcal.trailblazer.TrailblazerMetrics.EarlyExit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Keeps a TrailblazerLevelService to the thread that ticks its level.  That thread claims the guard when
+ * the service is created and again at the end of every tick, so the service follows its level if a server
+ * moves it to another thread; steps reported from any other thread are turned away and counted as
+ * WRONG_THREAD.  Other events can't just be turned away; the service uses isTickThread() to hold those for
+ * the tick thread instead.
+ *
+ * claim(), check() and isTickThread() may be called from any thread.
+ */
+final class TickThreadGuard {
+
+    // ===================================================================================
+    // Fields
+
+    private final TrailblazerMetrics metrics;
+    private volatile Thread tickThread;
+
+    // ===================================================================================
+    // Constructors
+
+    /**
+     * The calling thread starts out as the tick thread.
+     */
+    TickThreadGuard(TrailblazerMetrics metrics) {
+        this.metrics = requireNonNull(metrics);
+        this.tickThread = Thread.currentThread();
+    }
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * Make the calling thread the tick thread.
+     */
+    void claim() {
+        this.tickThread = Thread.currentThread();
+    }
+
+    /**
+     * @return true if called on the tick thread.  Unlike check(), doesn't count anything if not.
+     */
+    boolean isTickThread() {
+        return Thread.currentThread() == this.tickThread;
+    }
+
+    /**
+     * @return true if called on the tick thread.  If not, counts a WRONG_THREAD early exit.
+     */
+    boolean check() {
+        if (Thread.currentThread() == this.tickThread) return true;
+        this.metrics.countEarlyExit(EarlyExit.WRONG_THREAD);
+        return false;
+    }
+}
@@ -0,0 +1,138 @@
+package net.pcal.trailblazer;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.network.chat.Component;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+import static net.pcal.trailblazer.TrailblazerService.LOGGER_NAME;
+import static net.pcal.trailblazer.TrailblazerService.LOG_PREFIX;
+
+/**
+ * The /trailblazer command.
+ *
+ * /trailblazer stats         prints the metrics
+ * /trailblazer stats dump    writes them to trailblazer-stats.json in the server directory
+ * /trailblazer stats reset   zeroes them
+ * /trailblazer reload        reloads the configuration
+ * /trailblazer trace start   starts recording steps to trailblazer-yyyyMMdd-HHmmss.trace in the server directory
+ * /trailblazer trace stop    stops recording
+ */
+class TrailblazerCommands {
+
+    private static final int PERMISSION_LEVEL = 2;
+    private static final String STATS_FILE_NAME = "trailblazer-stats.json";
+    private static final DateTimeFormatter TRACE_FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    static void register(CommandDispatcher<CommandSourceStack> dispatcher, TrailblazerConfigReloader reloader) {
+        dispatcher.register(Commands.literal("trailblazer")
+                .requires(source -> source.hasPermission(PERMISSION_LEVEL))
+                .then(Commands.literal("stats")
+                        .executes(TrailblazerCommands::printStats)
+                        .then(Commands.literal("dump").executes(TrailblazerCommands::dumpStats))
+                        .then(Commands.literal("reset").executes(TrailblazerCommands::resetStats)))
+                .then(Commands.literal("reload").executes(context -> reload(context, reloader)))
+                .then(Commands.literal("trace")
+                        .then(Commands.literal("start").executes(TrailblazerCommands::startTrace))
+                        .then(Commands.literal("stop").executes(TrailblazerCommands::stopTrace))));
+    }
+
+    private static int reload(CommandContext<CommandSourceStack> context, TrailblazerConfigReloader reloader) {
+        final CommandSourceStack source = context.getSource();
+        final boolean started = reloader.reload(source.getServer(), error -> {
+            if (error == null) {
+                source.sendSuccess(() -> Component.literal("Trailblazer configuration reloaded"), true);
+            } else {
+                source.sendFailure(Component.literal("Unable to reload Trailblazer configuration: " + error));
+            }
+        });
+        if (!started) {
+            source.sendSuccess(() -> Component.literal(
+                    "Trailblazer configuration is already being reloaded; it will be reloaded again once that finishes"), true);
+            return 1;
+        }
+        return 1;
+    }
+
+    private static int printStats(CommandContext<CommandSourceStack> context) {
+        final JsonObject stats = TrailblazerService.getInstance().getMetrics();
+        for (final Map.Entry<String, JsonElement> section : stats.entrySet()) {
+            if (!section.getValue().isJsonObject()) {
+                sendLine(context, section.getKey() + ": " + section.getValue());
+                continue;
+            }
+            final JsonObject values = section.getValue().getAsJsonObject();
+            final StringBuilder line = new StringBuilder(section.getKey()).append(':');
+            for (final Map.Entry<String, JsonElement> value : values.entrySet()) {
+                line.append(' ').append(value.getKey()).append('=').append(value.getValue());
+            }
+            sendLine(context, line.toString());
+        }
+        return 1;
+    }
+
+    private static int dumpStats(CommandContext<CommandSourceStack> context) {
+        final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        final Path path = context.getSource().getServer().getFile(STATS_FILE_NAME).toPath();
+        try {
+            Files.writeString(path, gson.toJson(TrailblazerService.getInstance().getMetrics()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LogManager.getLogger(LOGGER_NAME).error(LOG_PREFIX + "Unable to write " + path, e);
+            context.getSource().sendFailure(Component.literal("Unable to write " + path + ": " + e.getMessage()));
+            return 0;
+        }
+        sendLine(context, "Wrote " + path);
+        return 1;
+    }
+
+    private static int resetStats(CommandContext<CommandSourceStack> context) {
+        TrailblazerService.getInstance().resetMetrics();
+        sendLine(context, "Trailblazer stats reset");
+        return 1;
+    }
+
+    private static int startTrace(CommandContext<CommandSourceStack> context) {
+        final String fileName = "trailblazer-" + TRACE_FILE_TIMESTAMP.format(LocalDateTime.now()) + ".trace";
+        final Path path = context.getSource().getServer().getFile(fileName).toPath();
+        try {
+            if (!TrailblazerService.getInstance().startTrace(path)) {
+                context.getSource().sendFailure(Component.literal("A Trailblazer trace is already being recorded"));
+                return 0;
+            }
+        } catch (IOException e) {
+            LogManager.getLogger(LOGGER_NAME).error(LOG_PREFIX + "Unable to write " + path, e);
+            context.getSource().sendFailure(Component.literal("Unable to write " + path + ": " + e.getMessage()));
+            return 0;
+        }
+        sendLine(context, "Recording steps to " + path);
+        return 1;
+    }
+
+    private static int stopTrace(CommandContext<CommandSourceStack> context) {
+        final Path path = TrailblazerService.getInstance().stopTrace();
+        if (path == null) {
+            context.getSource().sendFailure(Component.literal("No Trailblazer trace is being recorded"));
+            return 0;
+        }
+        sendLine(context, "Wrote " + path);
+        return 1;
+    }
+
+    private static void sendLine(CommandContext<CommandSourceStack> context, String line) {
+        context.getSource().sendSuccess(() -> Component.literal(line), false);
+    }
+}
@@ -0,0 +1,154 @@
+package net.pcal.trailblazer;
+
+import net.minecraft.Util;
+import net.minecraft.server.MinecraftServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static net.pcal.trailblazer.TrailblazerInitializer.CUSTOM_CONFIG_PATH;
+import static net.pcal.trailblazer.TrailblazerService.LOGGER_NAME;
+import static net.pcal.trailblazer.TrailblazerService.LOG_PREFIX;
+
+/**
+ * Reloads the configuration on a live server, either when asked to or, optionally, whenever the config
+ * file changes.  The file is read and the rules are compiled on a background thread; only the finished
+ * TrailblazerRuntimeConfig is handed to the server thread, where TrailblazerService swaps it in.  If
+ * anything goes wrong, the current config stays in place.  Whether step history is persisted is decided when
+ * levels load, so a reload that changes persistStepHistory only warns that it takes effect on restart.  Asking for a reload while one is running (the
+ * file changing again, say) runs another once it's finished, so the config always ends up matching the file.
+ */
+class TrailblazerConfigReloader {
+
+    // ===================================================================================
+    // Constants
+
+    /**
+     * Editors often write a file in several steps, so wait for changes to settle before reloading.
+     */
+    private static final long WATCH_SETTLE_MILLIS = 500;
+
+    // ===================================================================================
+    // Fields
+
+    private final Logger logger = LogManager.getLogger(LOGGER_NAME);
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+    private final AtomicBoolean reloadAgain = new AtomicBoolean(false);
+    private WatchService watchService;
+
+    // ===================================================================================
+    // Package methods
+
+    /**
+     * Start reloading the configuration.  The result is reported to onDone on the server thread, as null on
+     * success or an error message.  Returns false if a reload is already in progress; the file may have
+     * changed since that one read it, so another reload is started once it finishes, and onDone isn't called.
+     */
+    boolean reload(MinecraftServer server, Consumer<String> onDone) {
+        if (!this.reloading.compareAndSet(false, true)) {
+            this.reloadAgain.set(true);
+            // it may have finished in the meantime, in which case nobody else will see the flag
+            if (this.reloading.compareAndSet(false, true)) {
+                this.reloadAgain.set(false);
+            } else {
+                return false;
+            }
+        }
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return TrailblazerInitializer.loadConfig(TrailblazerInitializer.readConfig());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, Util.backgroundExecutor()).whenCompleteAsync((config, error) -> {
+            this.reloading.set(false);
+            if (error != null) {
+                final Throwable cause = error.getCause() != null ? error.getCause() : error;
+                logger.error(LOG_PREFIX + "Unable to reload configuration; keeping the current one", cause);
+                onDone.accept(String.valueOf(cause.getMessage()));
+            } else {
+                final TrailblazerRuntimeConfig current = TrailblazerService.getInstance().getConfig();
+                if (current != null && current.isPersistStepHistory() != config.isPersistStepHistory()) {
+                    logger.warn(LOG_PREFIX + "persistStepHistory is now " + config.isPersistStepHistory() +
+                            ", but that only takes effect when the server restarts");
+                }
+                TrailblazerService.getInstance().configure(config);
+                logger.info(LOG_PREFIX + "Configuration reloaded.");
+                onDone.accept(null);
+            }
+            if (this.reloadAgain.getAndSet(false)) reload(server, e -> {});
+        }, server);
+        return true;
+    }
+
+    /**
+     * Start watching the config directory, reloading whenever the custom config file changes.
+     */
+    void startWatching(MinecraftServer server) {
+        final Path dir = CUSTOM_CONFIG_PATH.toAbsolutePath().getParent();
+        final Path fileName = CUSTOM_CONFIG_PATH.getFileName();
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            dir.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            logger.error(LOG_PREFIX + "Unable to watch " + dir + " for configuration changes", e);
+            return;
+        }
+        final WatchService watchService = this.watchService;
+        final Thread thread = new Thread(() -> watch(watchService, fileName, server), "Trailblazer config watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info(LOG_PREFIX + "Watching " + CUSTOM_CONFIG_PATH + " for changes.");
+    }
+
+    void stopWatching() {
+        if (this.watchService == null) return;
+        try {
+            this.watchService.close();
+        } catch (IOException e) {
+            logger.warn(LOG_PREFIX + "Error closing config watcher", e);
+        }
+        this.watchService = null;
+    }
+
+    // ===================================================================================
+    // Private
+
+    /**
+     * Runs on the watcher thread until the watch service is closed.
+     */
+    private void watch(WatchService watchService, Path fileName, MinecraftServer server) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                do {
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        if (fileName.equals(event.context())) changed = true;
+                    }
+                    key.reset();
+                } while ((key = watchService.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                if (changed) {
+                    logger.info(LOG_PREFIX + CUSTOM_CONFIG_PATH + " changed, reloading.");
+                    reload(server, error -> {});
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // stopped
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package net.pcal.trailblazer;
+
+/**
+ * Per-entity state that Trailblazer keeps on Entity itself (see EntityMixin), so the step hook doesn't have to
+ * look anything up.
+ */
+public interface TrailblazerEntity {
+
+    /**
+     * @return the cached boot fingerprint; only valid if trailblazer$getBootFingerprintConfig() is the
+     * current config.
+     */
+    long trailblazer$getBootFingerprint();
+
+    /**
+     * @return the config the cached boot fingerprint was computed for, or null if it needs to be recomputed.
+     */
+    Object trailblazer$getBootFingerprintConfig();
+
+    void trailblazer$setBootFingerprint(long fingerprint, Object config);
+
+    /**
+     * Called when the entity's feet equipment changes.
+     */
+    void trailblazer$invalidateBootFingerprint();
+
+    /**
+     * @return the BlockPos.asLong() of the block the entity last stepped on, or NO_LAST_STEP.
+     */
+    long trailblazer$getLastStepPos();
+
+    /**
+     * @return the config epoch (see TrailblazerEntityType) that was current when the entity last stepped.
+     */
+    int trailblazer$getLastStepConfigEpoch();
+
+    void trailblazer$setLastStep(long pos, int configEpoch);
+
+    /**
+     * @return the BlockPos.asLong() of the lowest corner of the blocks the entity last stepped on (see
+     * Footprint), or NO_LAST_STEP.
+     */
+    long trailblazer$getLastFootprintMin();
+
+    /**
+     * @return the BlockPos.asLong() of the highest corner of the blocks the entity last stepped on.
+     */
+    long trailblazer$getLastFootprintMax();
+
+    void trailblazer$setLastFootprint(long min, long max);
+
+    /**
+     * Value of trailblazer$getLastStepPos() for entities that haven't stepped on anything yet.  It decodes
+     * to x = 33554431, y = -1, z = -1; y is inside the build height, so it's only safe because x is beyond
+     * the world border (30 million).  A replacement must likewise decode to somewhere nothing can stand.
+     */
+    long NO_LAST_STEP = Long.MAX_VALUE;
+
+    /**
+     * @return the y of the block that supports an entity whose feet are at the given y: the block its feet
+     * are partway up if it's standing on something lower than a full block (a slab, a few snow layers),
+     * otherwise the block below.  Like Entity.getOnPos(), this is a tiny bit below the feet, so that feet
+     * exactly on top of a block land in it.
+     */
+    static int getSupportingBlockY(double y) {
+        return (int) Math.floor(y - 1.0E-5);
+    }
+}
@@ -0,0 +1,21 @@
+package net.pcal.trailblazer;
+
+/**
+ * Per-EntityType state that Trailblazer keeps on EntityType itself (see EntityTypeMixin), so the step hook
+ * can skip entities no rule could apply to without calling into the service.  Refreshed whenever a config
+ * is loaded.
+ */
+public interface TrailblazerEntityType {
+
+    /**
+     * @return true if any rule in the current config could apply to entities of this type.
+     */
+    boolean trailblazer$hasRules();
+
+    /**
+     * @return the number of the config that was current when this type was last refreshed.
+     */
+    int trailblazer$getConfigEpoch();
+
+    void trailblazer$setRules(boolean hasRules, int configEpoch);
+}
@@ -1,9 +1,15 @@
 package net.pcal.trailblazer;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
 import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.world.entity.MobCategory;
 import net.pcal.trailblazer.TrailblazerRuntimeConfig.Rule;
@@ -16,7 +22,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static java.util.Objects.requireNonNull;
@@ -28,13 +36,18 @@ public class TrailblazerInitializer implements ModInitializer {
     // ===================================================================================
     // Constants
 
-    private static final Path CUSTOM_CONFIG_PATH = Paths.get("config", "trailblazer.json5");
+    static final Path CUSTOM_CONFIG_PATH = Paths.get("config", "trailblazer.json5");
     private static final Path DEFAULT_CONFIG_PATH = Paths.get("config", "trailblazer-default.json5");
     private static final Set<ResourceLocation> DEFAULT_ENTITY_IDS = ImmutableSet.of(new ResourceLocation("minecraft:player"));
     private static final String CONFIG_RESOURCE_NAME = "trailblazer-default.json5";
+    private static final String TAG_PREFIX = "#";
     public static final int DEFAULT_STEP_COUNT = 0;
     public static final int DEFAULT_TIMEOUT_TICKS = 72000;
     private static final int DEFAULT_STEP_CACHE_SIZE = 500;
+    private static final int DEFAULT_MAX_CONVERSIONS_PER_TICK = 256;
+    private static final int DEFAULT_GOVERNOR_THRESHOLD_MICROS = 2000;
+    private static final int DEFAULT_GOVERNOR_STEP_BUDGET = 2048;
+    private static final int DEFAULT_GOVERNOR_CHUNK_CAP = 256;
 
     // ===================================================================================
     // ModInitializer implementation
@@ -56,51 +69,91 @@ public class TrailblazerInitializer implements ModInitializer {
         //
         // Load the default configuration from resources and write it as the -default in the installation
         //
-        final String defaultConfigResourceRaw;
-        try (InputStream in = TrailblazerInitializer.class.getClassLoader().getResourceAsStream(CONFIG_RESOURCE_NAME)) {
-            if (in == null) {
-                throw new FileNotFoundException("Unable to load resource " + CONFIG_RESOURCE_NAME); // wat
-            }
-            defaultConfigResourceRaw = new String(in.readAllBytes(), StandardCharsets.UTF_8);
-        }
         DEFAULT_CONFIG_PATH.getParent().toFile().mkdirs();
-        Files.writeString(DEFAULT_CONFIG_PATH, defaultConfigResourceRaw);
+        Files.writeString(DEFAULT_CONFIG_PATH, readDefaultConfig());
         //
         // Figure out whether to use custom or default config
         //
-        final boolean isCustomConfig;
-        final String effectiveConfigRaw;
-        if (CUSTOM_CONFIG_PATH.toFile().exists()) {
-            logger.info(LOG_PREFIX + "Using custom configuration.");
-            effectiveConfigRaw = Files.readString(CUSTOM_CONFIG_PATH);
-            isCustomConfig = true;
-        } else {
-            effectiveConfigRaw = defaultConfigResourceRaw;
-            isCustomConfig = false;
-        }
+        final boolean isCustomConfig = CUSTOM_CONFIG_PATH.toFile().exists();
+        if (isCustomConfig) logger.info(LOG_PREFIX + "Using custom configuration.");
         //
         // Apply the config
         //
-        final Gson gson = new Gson();
-        final GsonModConfig gsonConfig = gson.fromJson(stripComments(effectiveConfigRaw), GsonModConfig.class);
-        TrailblazerService.getInstance().configure(loadConfig(gsonConfig));
+        final GsonModConfig gsonConfig = readConfig();
+        final TrailblazerConfigReloader reloader = new TrailblazerConfigReloader();
+        // Rules are compiled against registry raw ids, which aren't final until every mod has initialized.  An
+        // integrated server can be started again, and it should keep any config reloaded since this one.
+        ServerLifecycleEvents.SERVER_STARTING.register(
+                server -> TrailblazerService.getInstance().serverStarting(() -> loadConfig(gsonConfig)));
+        if (gsonConfig.watchConfig != null && gsonConfig.watchConfig) {
+            ServerLifecycleEvents.SERVER_STARTED.register(reloader::startWatching);
+            ServerLifecycleEvents.SERVER_STOPPING.register(server -> reloader.stopWatching());
+        }
+        // Tags can change when datapacks are reloaded.
+        ServerLifecycleEvents.END_DATA_PACK_RELOAD.register(
+                (server, resourceManager, success) -> { if (success) TrailblazerService.getInstance().recompile(); });
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> TrailblazerService.getInstance().serverStopped());
+        ServerTickEvents.END_WORLD_TICK.register(world -> TrailblazerService.getInstance().levelTickEnded(world));
+        ServerWorldEvents.LOAD.register((server, world) -> TrailblazerService.getInstance().levelLoaded(world));
+        ServerWorldEvents.UNLOAD.register((server, world) -> TrailblazerService.getInstance().levelUnloaded(world));
+        ServerChunkEvents.CHUNK_LOAD.register((world, chunk) -> TrailblazerService.getInstance().chunkLoaded(world, chunk.getPos()));
+        ServerChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> TrailblazerService.getInstance().chunkUnloaded(world, chunk.getPos()));
+        CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> TrailblazerCommands.register(dispatcher, reloader));
         //
         // All done
         //
         logger.info(LOG_PREFIX + "Initialized" + (isCustomConfig ? " with custom configuration." : "."));
     }
 
-    private static TrailblazerRuntimeConfig loadConfig(GsonModConfig config) {
+    /**
+     * Read and parse the custom config if there is one, or the default config if not.
+     */
+    static GsonModConfig readConfig() throws IOException {
+        return parseConfig(CUSTOM_CONFIG_PATH.toFile().exists() ? Files.readString(CUSTOM_CONFIG_PATH) : readDefaultConfig());
+    }
+
+    /**
+     * Parse config json5.
+     */
+    static GsonModConfig parseConfig(String raw) throws IOException {
+        final GsonModConfig out = new Gson().fromJson(stripComments(raw), GsonModConfig.class);
+        if (out == null) throw new IOException("Configuration is empty");
+        return out;
+    }
+
+    /**
+     * Compile parsed config.  Must not be called before the server is starting.
+     */
+    static TrailblazerRuntimeConfig loadConfig(GsonModConfig config) {
         requireNonNull(config);
+        final Logger logger = LogManager.getLogger(LOGGER_NAME);
         final ImmutableList.Builder<Rule> builder = ImmutableList.builder();
+        final Set<String> names = new HashSet<>();
         for (int i=0; i < config.rules.size(); i++) {
             final GsonRuleConfig gsonRule = config.rules.get(i);
+            // Step histories are carried across reloads by rule name, so a rule without a unique name can end up
+            // with another rule's histories.
+            if (gsonRule.name == null) {
+                logger.warn(LOG_PREFIX + "Rule " + i + " has no name; if rules before it are added or removed, its step " +
+                        "history will go to the wrong rule when the configuration is reloaded");
+            } else if (!names.add(gsonRule.name)) {
+                logger.warn(LOG_PREFIX + "More than one rule is named '" + gsonRule.name + "'; only the first will keep " +
+                        "its step history when the configuration is reloaded");
+            }
+            final String rawBlockId = requireNonNull(gsonRule.blockId);
+            final boolean isTag = rawBlockId.startsWith(TAG_PREFIX);
             final Rule rule = new Rule(
                     gsonRule.name != null ? gsonRule.name : "rule-"+i,
-                    new ResourceLocation(requireNonNull(gsonRule.blockId)),
+                    isTag ? null : new ResourceLocation(rawBlockId),
+                    isTag ? new ResourceLocation(rawBlockId.substring(TAG_PREFIX.length())) : null,
+                    toPropertyValues(gsonRule.blockStates),
                     new ResourceLocation(requireNonNull(gsonRule.nextBlockId)),
+                    gsonRule.copyProperties != null && gsonRule.copyProperties,
                     gsonRule.stepCount != null ? gsonRule.stepCount : DEFAULT_STEP_COUNT,
+                    gsonRule.distinctEntities != null && gsonRule.distinctEntities,
                     gsonRule.timeoutTicks != null ? gsonRule.timeoutTicks : DEFAULT_TIMEOUT_TICKS,
+                    gsonRule.regrowTicks != null ? gsonRule.regrowTicks : -1,
+                    gsonRule.regrowBlockId != null ? new ResourceLocation(gsonRule.regrowBlockId) : null,
                     gsonRule.entityIds != null ? toIdentifierSet(gsonRule.entityIds) : DEFAULT_ENTITY_IDS,
                     toSpawnGroupList(gsonRule.spawnGroups),
                     toIdentifierSetList(gsonRule.skipIfBoots),
@@ -109,7 +162,29 @@ public class TrailblazerInitializer implements ModInitializer {
             builder.add(rule);
         }
         final int stepCacheSize = config.stepCacheSize == null ? DEFAULT_STEP_CACHE_SIZE : config.stepCacheSize;
-        return new TrailblazerRuntimeConfig(builder.build(), stepCacheSize);
+        final int maxConversionsPerTick = config.maxConversionsPerTick == null ?
+                DEFAULT_MAX_CONVERSIONS_PER_TICK : config.maxConversionsPerTick;
+        final boolean persistStepHistory = config.persistStepHistory != null && config.persistStepHistory;
+        final boolean metricsTiming = config.metricsTiming == null || config.metricsTiming;
+        final int governorThresholdMicros = config.governorThresholdMicros == null ?
+                DEFAULT_GOVERNOR_THRESHOLD_MICROS : config.governorThresholdMicros;
+        final int governorStepBudget = config.governorStepBudget == null ?
+                DEFAULT_GOVERNOR_STEP_BUDGET : config.governorStepBudget;
+        final int governorChunkCap = config.governorChunkCap == null ? DEFAULT_GOVERNOR_CHUNK_CAP : config.governorChunkCap;
+        final boolean footprintSteps = config.footprintSteps != null && config.footprintSteps;
+        final int heatmapIntervalSeconds = config.heatmapIntervalSeconds == null ? -1 : config.heatmapIntervalSeconds;
+        return new TrailblazerRuntimeConfig(builder.build(), stepCacheSize, maxConversionsPerTick, persistStepHistory,
+                metricsTiming, governorThresholdMicros, governorStepBudget, governorChunkCap, footprintSteps,
+                heatmapIntervalSeconds);
+    }
+
+    static String readDefaultConfig() throws IOException {
+        try (InputStream in = TrailblazerInitializer.class.getClassLoader().getResourceAsStream(CONFIG_RESOURCE_NAME)) {
+            if (in == null) {
+                throw new FileNotFoundException("Unable to load resource " + CONFIG_RESOURCE_NAME); // wat
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
     }
 
     private static Set<ResourceLocation> toIdentifierSet(List<String> rawIds) {
@@ -130,6 +205,13 @@ public class TrailblazerInitializer implements ModInitializer {
         return builder.build();
     }
 
+    private static Map<String, Set<String>> toPropertyValues(Map<String, List<String>> raw) {
+        if (raw == null) return Collections.emptyMap();
+        final ImmutableMap.Builder<String, Set<String>> builder = ImmutableMap.builder();
+        raw.forEach((name, values) -> builder.put(name, ImmutableSet.copyOf(values)));
+        return builder.build();
+    }
+
     private static Set<MobCategory> toSpawnGroupList(Iterable<String> rawIds) {
         if (rawIds == null) return Collections.emptySet();
         final ImmutableSet.Builder<MobCategory> builder = ImmutableSet.builder();
@@ -153,14 +235,28 @@ public class TrailblazerInitializer implements ModInitializer {
     public static class GsonModConfig {
         List<GsonRuleConfig> rules;
         Integer stepCacheSize;
+        Integer maxConversionsPerTick;
+        Boolean persistStepHistory;
+        Boolean metricsTiming;
+        Boolean watchConfig;
+        Integer governorThresholdMicros;
+        Integer governorStepBudget;
+        Integer governorChunkCap;
+        Boolean footprintSteps;
+        Integer heatmapIntervalSeconds;
     }
 
     public static class GsonRuleConfig {
         String name;
         String blockId;
+        Map<String, List<String>> blockStates;
         String nextBlockId;
+        Boolean copyProperties;
         Integer timeoutTicks;
+        Integer regrowTicks;
+        String regrowBlockId;
         Integer stepCount;
+        Boolean distinctEntities;
         List<String> entityIds;
         List<String> spawnGroups;
         List<List<String>> onlyIfBoots;
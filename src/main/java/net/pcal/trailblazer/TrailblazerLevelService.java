@@ -0,0 +1,372 @@
+package net.pcal.trailblazer;
+
+import com.google.common.math.DoubleMath;
+import com.google.gson.JsonObject;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.util.Mth;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.phys.shapes.VoxelShape;
+import net.pcal.trailblazer.TrailblazerMetrics.EarlyExit;
+import net.pcal.trailblazer.TrailblazerRuntimeConfig.CompiledRule;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Path;
+
+import static java.util.Objects.requireNonNull;
+import static net.pcal.trailblazer.TrailblazerService.LOGGER_NAME;
+
+/**
+ * Everything Trailblazer keeps for one ServerLevel: its step history and rule engine, its conversion and
+ * regrowth queues, its load governor and, if step history is persisted, its persistence.  TrailblazerService
+ * creates one when a level loads and hands it the level's events.
+ *
+ * Threading: an instance is confined to the thread that ticks its level.  On a vanilla server that's the
+ * server thread; on servers that tick levels in parallel it's whichever thread ticks this one, and the
+ * instance follows it (its TickThreadGuard is claimed at each tickEnded()).  Nothing here is locked, and
+ * levels share nothing mutable apart from the metrics, which are LongAdders, the trace recorder, which is
+ * synchronized, and the heatmap exporter, which takes events through a lock-free ring.  Steps reported from
+ * any other thread are dropped and counted as WRONG_THREAD rather than allowed to corrupt the history;
+ * chunk loads and unloads reported from any other thread can't be dropped, so they're held, in order, for
+ * the tick thread to apply at the next tickEnded().  A
+ * new config is published by TrailblazerService with a single volatile write, and each level switches to it
+ * on its own thread the next time it's used.  ConcurrentLevelsTest drives several levels' worth of this at
+ * once.
+ *
+ * The reporting methods (getStore() and the rest) may be called from the server thread while the level
+ * ticks elsewhere; the numbers they give may then be slightly out of date.
+ */
+final class TrailblazerLevelService {
+
+    // ===================================================================================
+    // Constants
+
+    private static final int MAX_EXPIRATIONS_PER_TICK = 1024;
+    private static final int MAX_REGROWTHS_PER_TICK = 256;
+    private static final long CHUNK_LOADED = 1;
+    private static final long CHUNK_UNLOADED = 2;
+
+    // ===================================================================================
+    // Fields
+
+    private final Logger logger = LogManager.getLogger(LOGGER_NAME);
+    private final ServerLevel level;
+    private final int dimension;
+    private final String dimensionName;
+    private final TrailblazerMetrics metrics;
+    private final StepHistoryStore stepCounts;
+    private final StepEngine<CompiledRule> engine;
+    private final ConversionQueue conversions = new ConversionQueue();
+    private final RegrowthQueue regrowth;
+    private final StepHistoryPersistence persistence;
+    private final HeatmapExporter heatmap;
+    private final Footprint footprint = new Footprint();
+    private final BlockPos.MutableBlockPos footprintPos = new BlockPos.MutableBlockPos();
+    private final StepHistoryStore.DropListener dropListener;
+    private TrailblazerRuntimeConfig config;
+    private LoadGovernor governor;
+    private final TickThreadGuard tickThread;
+
+    /**
+     * Chunk events reported off the tick thread, as pairs of CHUNK_LOADED or CHUNK_UNLOADED and a chunk
+     * position.  Guarded by itself; chunkEventsHeld says whether it might not be empty.
+     */
+    private final LongArrayList heldChunkEvents = new LongArrayList();
+    private volatile boolean chunkEventsHeld = false;
+
+    // ===================================================================================
+    // Constructors
+
+    /**
+     * Must be called on the thread that loads the level.  persistenceFile is where to persist the level's step
+     * history, or null not to.  heatmap is where to publish steps and conversions, or null not to.
+     */
+    TrailblazerLevelService(ServerLevel level, int dimension, TrailblazerRuntimeConfig config, TrailblazerMetrics metrics,
+                            Path persistenceFile, int persistenceFlushSeconds, HeatmapExporter heatmap) {
+        this.level = requireNonNull(level);
+        this.dimension = dimension;
+        this.dimensionName = level.dimension().location().toString();
+        this.config = requireNonNull(config);
+        this.metrics = requireNonNull(metrics);
+        this.tickThread = new TickThreadGuard(metrics);
+        this.heatmap = heatmap;
+        this.governor = config.createGovernor();
+        this.stepCounts = new StepHistoryStore(config.getStepCacheSize());
+        this.engine = new StepEngine<>(this.stepCounts, this::historyChanged);
+        this.regrowth = level.getDataStorage().computeIfAbsent(RegrowthQueue.factory(), RegrowthQueue.DATA_NAME);
+        if (persistenceFile != null) {
+            this.persistence = new StepHistoryPersistence(persistenceFlushSeconds);
+            this.persistence.openDimension(dimension, persistenceFile);
+        } else {
+            this.persistence = null;
+        }
+        this.dropListener = (d, pos) -> {
+            if (this.persistence != null) this.persistence.recordChange(d, pos, 0, 0);
+        };
+    }
+
+    // ===================================================================================
+    // Level thread methods
+
+    /**
+     * Handle an entity in this level moving over a different block than the one it last stepped on.  This
+     * runs for every qualifying step, so nothing under it allocates once warmed up (see StepPathBenchmark
+     * and FootprintBenchmark); keep it that way.
+     */
+    void entitySteppingOnBlock(Entity entity, double x, double y, double z, TrailblazerRuntimeConfig config,
+                               int configEpoch, StepTraceRecorder recorder) {
+        this.metrics.countCall();
+        if (!this.tickThread.check()) return;
+        useConfig(config);
+        if (!config.isMetricsTiming()) {
+            steppingOnBlock(entity, x, y, z, config, configEpoch, recorder);
+            return;
+        }
+        final long start = System.nanoTime();
+        steppingOnBlock(entity, x, y, z, config, configEpoch, recorder);
+        final long nanos = System.nanoTime() - start;
+        this.metrics.recordLatency(nanos);
+        this.governor.addHookNanos(nanos);
+    }
+
+    /**
+     * May be called on any thread; off the tick thread, it's held until the next tickEnded().
+     */
+    void chunkLoaded(long chunkPos) {
+        if (!this.tickThread.isTickThread()) {
+            holdChunkEvent(CHUNK_LOADED, chunkPos);
+            return;
+        }
+        applyHeldChunkEvents();
+        applyChunkLoaded(chunkPos);
+    }
+
+    /**
+     * Step history for blocks in the chunk is dropped.  May be called on any thread; off the tick thread,
+     * it's held until the next tickEnded().
+     */
+    void chunkUnloaded(long chunkPos) {
+        if (!this.tickThread.isTickThread()) {
+            holdChunkEvent(CHUNK_UNLOADED, chunkPos);
+            return;
+        }
+        applyHeldChunkEvents();
+        applyChunkUnloaded(chunkPos);
+    }
+
+    /**
+     * Called at the end of each tick of the level.  Applies the conversions its rules have triggered, regrows
+     * blocks that are due and expires step histories whose timeouts have passed.
+     */
+    void tickEnded(TrailblazerRuntimeConfig config) {
+        this.tickThread.claim();
+        applyHeldChunkEvents();
+        useConfig(config);
+        final long now = this.level.getGameTime();
+        this.governor.tickEnded();
+        final long applied = this.conversions.getAppliedCount(), deferred = this.conversions.getDeferredCount(),
+                discarded = this.conversions.getDiscardedCount();
+        this.conversions.flush(this.level, config.getMaxConversionsPerTick());
+        this.metrics.countConversionsApplied(this.conversions.getAppliedCount() - applied,
+                this.conversions.getDeferredCount() - deferred, this.conversions.getDiscardedCount() - discarded);
+        final long regrown = this.regrowth.getRegrownCount(), regrowDiscarded = this.regrowth.getDiscardedCount();
+        this.regrowth.tick(this.level, now, MAX_REGROWTHS_PER_TICK, config);
+        this.metrics.countRegrowths(this.regrowth.getRegrownCount() - regrown, this.regrowth.getDiscardedCount() - regrowDiscarded);
+        this.stepCounts.expire(now, MAX_EXPIRATIONS_PER_TICK, this.dropListener);
+        if (this.persistence != null) this.persistence.tickEnded(this.stepCounts, now, config.getMaxTimeoutTicks());
+    }
+
+    /**
+     * Called when the level is unloaded, once it's no longer ticking.  Saves the step history (if it's
+     * persisted) and waits for that to finish.  Conversions that haven't been applied yet are dropped.
+     */
+    void close() {
+        if (this.persistence != null) this.persistence.shutdown();
+        this.stepCounts.clear();
+    }
+
+    // ===================================================================================
+    // Reporting methods
+
+    String getDimensionName() {
+        return this.dimensionName;
+    }
+
+    StepHistoryStore getStore() {
+        return this.stepCounts;
+    }
+
+    int getPendingConversions() {
+        return this.conversions.size();
+    }
+
+    int getPendingRegrowths() {
+        return this.regrowth.size();
+    }
+
+    JsonObject getGovernorJson() {
+        return this.governor.toJson(d -> d == this.dimension ? this.dimensionName : null);
+    }
+
+    void resetGovernorCounters() {
+        this.governor.resetCounters();
+    }
+
+    // ===================================================================================
+    // Private
+
+    private void applyChunkLoaded(long chunkPos) {
+        if (this.persistence != null) this.persistence.chunkLoaded(this.dimension, chunkPos);
+        this.regrowth.chunkLoaded(chunkPos);
+    }
+
+    private void applyChunkUnloaded(long chunkPos) {
+        if (this.persistence != null) this.persistence.chunkUnloaded(this.dimension, chunkPos);
+        this.stepCounts.retireChunk(this.dimension, chunkPos);
+    }
+
+    private void holdChunkEvent(long event, long chunkPos) {
+        synchronized (this.heldChunkEvents) {
+            this.heldChunkEvents.add(event);
+            this.heldChunkEvents.add(chunkPos);
+            this.chunkEventsHeld = true;
+        }
+    }
+
+    /**
+     * Apply chunk events reported off the tick thread, before anything that happened after them.  Only on the
+     * tick thread.
+     */
+    private void applyHeldChunkEvents() {
+        if (!this.chunkEventsHeld) return;
+        final long[] events;
+        synchronized (this.heldChunkEvents) {
+            events = this.heldChunkEvents.toLongArray();
+            this.heldChunkEvents.clear();
+            this.chunkEventsHeld = false;
+        }
+        for (int i = 0; i < events.length; i += 2) {
+            if (events[i] == CHUNK_LOADED) {
+                applyChunkLoaded(events[i + 1]);
+            } else {
+                applyChunkUnloaded(events[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Switch to the given config if it's new, keeping the step histories of rules that are still in it.
+     */
+    private void useConfig(TrailblazerRuntimeConfig config) {
+        if (config == this.config) return;
+        this.stepCounts.setMaxSize(config.getStepCacheSize());
+        this.stepCounts.remapRules(this.config.getRuleIndexRemap(config), this.dropListener);
+        this.governor = config.createGovernor();
+        this.config = config;
+    }
+
+    private void steppingOnBlock(Entity entity, double x, double y, double z, TrailblazerRuntimeConfig config,
+                                 int configEpoch, StepTraceRecorder recorder) {
+        if (!config.hasRules(entity.getType())) {
+            // EntityMixin normally filters these out, but the config may have just changed.
+            this.metrics.countEarlyExit(EarlyExit.NO_ENTITY_RULES);
+            return;
+        }
+        // Ignore block changes for entities that aren't standing on the ground, mainly because jumping
+        // players register extra blockPos changes.  Feet on a block boundary are standing on the block
+        // below; feet partway up a block have to be right on top of its collision shape.
+        final int blockY = TrailblazerEntity.getSupportingBlockY(y);
+        final boolean onBoundary = DoubleMath.isMathematicalInteger(y);
+        if (!onBoundary && !isStandingOn(x, y, z, blockY)) {
+            this.metrics.countEarlyExit(EarlyExit.AIRBORNE);
+            return;
+        }
+        // Ok, figure out what block(s) it's standing on
+        final TrailblazerEntity stepper = (TrailblazerEntity) entity;
+        final boolean sameEpoch = stepper.trailblazer$getLastStepConfigEpoch() == configEpoch;
+        final Footprint footprint = this.footprint;
+        footprint.begin(x, blockY, z, config.isFootprintSteps() ? entity.getBbWidth() : 0,
+                sameEpoch ? stepper.trailblazer$getLastFootprintMin() : TrailblazerEntity.NO_LAST_STEP,
+                stepper.trailblazer$getLastFootprintMax());
+        stepper.trailblazer$setLastStep(footprint.getCenter(), configEpoch);
+        stepper.trailblazer$setLastFootprint(footprint.getMin(), footprint.getMax());
+        final BlockPos.MutableBlockPos pos = this.footprintPos;
+        while (footprint.next(pos)) {
+            if (onBoundary) treadOnFeetBlock(entity, pos, config);
+            stepOn(entity, pos, config, recorder);
+        }
+    }
+
+    /**
+     * @return true if feet at the given position, partway up the block at blockY, are right on top of its
+     * collision shape (a slab, snow two or more layers deep...).
+     */
+    private boolean isStandingOn(double x, double y, double z, int blockY) {
+        final BlockPos.MutableBlockPos pos = this.footprintPos.set(Mth.floor(x), blockY, Mth.floor(z));
+        final VoxelShape shape = this.level.getBlockState(pos).getCollisionShape(this.level, pos);
+        return !shape.isEmpty() && Footprint.isStandingOn(y, blockY, shape.max(Direction.Axis.Y));
+    }
+
+    /**
+     * Move pos up to the block the entity's feet are in if there are rules for it.  Blocks with no
+     * collision height, like a single snow layer, are stood in rather than on: the entity is held up by
+     * the block below, but the one it's treading on is the snow.
+     */
+    private void treadOnFeetBlock(Entity entity, BlockPos.MutableBlockPos pos, TrailblazerRuntimeConfig config) {
+        pos.move(Direction.UP);
+        if (config.getRules(entity.getType(), this.level.getBlockState(pos)) == null) pos.move(Direction.DOWN);
+    }
+
+    /**
+     * Handle the entity stepping on one block.  pos may be mutable, so must not be held onto.
+     */
+    private void stepOn(Entity entity, BlockPos pos, TrailblazerRuntimeConfig config, StepTraceRecorder recorder) {
+        final long now = this.level.getGameTime();
+        if (this.regrowth.size() > 0) this.regrowth.touch(pos.asLong(), now);
+        final int weight = this.governor.admit(this.dimension, ChunkPos.asLong(pos));
+        if (weight == 0) {
+            this.metrics.countEarlyExit(this.governor.getLastRejection());
+            return;
+        }
+        if (this.heatmap != null) this.heatmap.publishStep(this.dimension, pos.asLong(), weight);
+        final BlockState state = this.level.getBlockState(pos);
+        if (recorder != null) recorder.record(entity, state, this.level, pos.asLong(), now);
+        final StepEngine.Outcome outcome = this.engine.step(config, BuiltInRegistries.ENTITY_TYPE.getId(entity.getType()),
+                Block.getId(state), TrailblazerService.getBootFingerprint(entity, config), entity.getUUID().hashCode(),
+                weight, this.dimension, pos.asLong(), now);
+        switch (outcome) {
+            case NO_RULES -> this.metrics.countEarlyExit(EarlyExit.NO_BLOCK_RULES);
+            case BOOT_MISMATCH -> this.metrics.countEarlyExit(EarlyExit.BOOT_MISMATCH);
+            case COUNTED -> this.metrics.countRuleHit(this.engine.getLastRule().rule.name());
+            case CONVERTED -> {
+                final CompiledRule rule = this.engine.getLastRule();
+                this.metrics.countRuleHit(rule.rule.name());
+                if (logger.isDebugEnabled()) logger.debug("changed! " + state + " " + pos);
+                final BlockState nextState = rule.getNextState(state);
+                if (this.conversions.add(pos.asLong(), state.getBlock(), nextState)) {
+                    this.metrics.countConversionQueued();
+                    if (this.heatmap != null) this.heatmap.publishConversion(this.dimension, pos.asLong());
+                    final CompiledRule regrowRule = config.getRegrowRule(nextState.getBlock());
+                    if (regrowRule != null) {
+                        this.regrowth.schedule(pos.asLong(), nextState, regrowRule.getRegrowState(nextState),
+                                regrowRule.rule.regrowTicks(), now);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the engine when a block's step history changes.
+     */
+    private void historyChanged(int dimension, long pos, int stepCount, long tick) {
+        if (this.persistence != null) this.persistence.recordChange(dimension, pos, stepCount, tick);
+    }
+}
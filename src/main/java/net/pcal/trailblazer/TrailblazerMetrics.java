@@ -0,0 +1,202 @@
+package net.pcal.trailblazer;
+
+import com.google.gson.JsonObject;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for what Trailblazer is doing, cheap enough to leave on all the time.  Everything is a LongAdder,
+ * so counting never contends even if entities are ticked on more than one thread.
+ *
+ * Step handling latency goes into a fixed histogram of power-of-two nanosecond buckets; bucket i holds
+ * times in [2^(i-1), 2^i), and the last bucket holds everything longer.  Percentiles are reported as the
+ * upper bound of the bucket they fall in.
+ */
+class TrailblazerMetrics {
+
+    // ===================================================================================
+    // Constants
+
+    private static final int LATENCY_BUCKETS = 25; // the last one starts at ~8ms
+
+    /**
+     * Why entitySteppingOnBlock returned without triggering a rule.
+     */
+    enum EarlyExit {
+        NO_ENTITY_RULES,
+        AIRBORNE,
+        NO_BLOCK_RULES,
+        BOOT_MISMATCH,
+        SAMPLED_OUT,
+        CHUNK_CAP,
+        OVER_BUDGET,
+        WRONG_THREAD
+    }
+
+    // ===================================================================================
+    // Fields
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder[] earlyExits = newAdders(EarlyExit.values().length);
+    private final Map<String, LongAdder> ruleHits = new ConcurrentHashMap<>();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder[] latencyBuckets = newAdders(LATENCY_BUCKETS);
+    private final LongAdder conversionsQueued = new LongAdder();
+    private final LongAdder conversionsApplied = new LongAdder();
+    private final LongAdder conversionsDeferred = new LongAdder();
+    private final LongAdder conversionsDiscarded = new LongAdder();
+    private final LongAdder regrowthsApplied = new LongAdder();
+    private final LongAdder regrowthsDiscarded = new LongAdder();
+
+    // ===================================================================================
+    // Package methods
+
+    void countCall() {
+        this.calls.increment();
+    }
+
+    void countEarlyExit(EarlyExit reason) {
+        this.earlyExits[reason.ordinal()].increment();
+    }
+
+    void countRuleHit(String ruleName) {
+        LongAdder hits = this.ruleHits.get(ruleName);
+        if (hits == null) hits = this.ruleHits.computeIfAbsent(ruleName, n -> new LongAdder());
+        hits.increment();
+    }
+
+    void recordLatency(long nanos) {
+        this.totalNanos.add(nanos);
+        this.latencyBuckets[Math.min(LATENCY_BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, nanos)))].increment();
+    }
+
+    void countConversionQueued() {
+        this.conversionsQueued.increment();
+    }
+
+    void countConversionsApplied(long applied, long deferred, long discarded) {
+        if (applied != 0) this.conversionsApplied.add(applied);
+        if (deferred != 0) this.conversionsDeferred.add(deferred);
+        if (discarded != 0) this.conversionsDiscarded.add(discarded);
+    }
+
+    void countRegrowths(long applied, long discarded) {
+        if (applied != 0) this.regrowthsApplied.add(applied);
+        if (discarded != 0) this.regrowthsDiscarded.add(discarded);
+    }
+
+    /**
+     * Zero everything.  Counts that happen while this is running may or may not survive.
+     */
+    void reset() {
+        this.calls.reset();
+        for (final LongAdder a : this.earlyExits) a.reset();
+        this.ruleHits.clear();
+        this.totalNanos.reset();
+        for (final LongAdder a : this.latencyBuckets) a.reset();
+        this.conversionsQueued.reset();
+        this.conversionsApplied.reset();
+        this.conversionsDeferred.reset();
+        this.conversionsDiscarded.reset();
+        this.regrowthsApplied.reset();
+        this.regrowthsDiscarded.reset();
+    }
+
+    /**
+     * Return the current numbers, along with the given ones for the levels' step history stores and queues,
+     * as json.
+     */
+    JsonObject toJson(Collection<StepHistoryStore> stores, int pendingConversions, int pendingRegrowths) {
+        final JsonObject out = new JsonObject();
+        out.addProperty("calls", this.calls.sum());
+
+        final JsonObject exits = new JsonObject();
+        for (final EarlyExit reason : EarlyExit.values()) {
+            exits.addProperty(reason.name().toLowerCase(), this.earlyExits[reason.ordinal()].sum());
+        }
+        out.add("earlyExits", exits);
+
+        final JsonObject hits = new JsonObject();
+        new TreeMap<>(this.ruleHits).forEach((name, count) -> hits.addProperty(name, count.sum()));
+        out.add("ruleHits", hits);
+
+        final JsonObject latency = new JsonObject();
+        final long[] buckets = new long[LATENCY_BUCKETS];
+        long timed = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) timed += (buckets[i] = this.latencyBuckets[i].sum());
+        latency.addProperty("timedCalls", timed);
+        latency.addProperty("meanNanos", timed == 0 ? 0 : this.totalNanos.sum() / timed);
+        latency.addProperty("p50Nanos", percentile(buckets, timed, 0.50));
+        latency.addProperty("p99Nanos", percentile(buckets, timed, 0.99));
+        latency.addProperty("p999Nanos", percentile(buckets, timed, 0.999));
+        final JsonObject histogram = new JsonObject();
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            if (buckets[i] != 0) histogram.addProperty((i == LATENCY_BUCKETS - 1 ? ">=" : "<") + bucketBound(i), buckets[i]);
+        }
+        latency.add("histogramNanos", histogram);
+        out.add("latency", latency);
+
+        final JsonObject conversions = new JsonObject();
+        conversions.addProperty("queued", this.conversionsQueued.sum());
+        conversions.addProperty("applied", this.conversionsApplied.sum());
+        conversions.addProperty("deferred", this.conversionsDeferred.sum());
+        conversions.addProperty("discarded", this.conversionsDiscarded.sum());
+        conversions.addProperty("pending", pendingConversions);
+        out.add("conversions", conversions);
+
+        final JsonObject regrowths = new JsonObject();
+        regrowths.addProperty("applied", this.regrowthsApplied.sum());
+        regrowths.addProperty("discarded", this.regrowthsDiscarded.sum());
+        regrowths.addProperty("pending", pendingRegrowths);
+        out.add("regrowths", regrowths);
+
+        final JsonObject stepCache = new JsonObject();
+        long size = 0, maxSize = 0, chunks = 0, evictions = 0, expirations = 0;
+        for (final StepHistoryStore store : stores) {
+            size += store.size();
+            maxSize += store.getMaxSize();
+            chunks += store.getChunkCount();
+            evictions += store.getEvictedCount();
+            expirations += store.getExpiredCount();
+        }
+        stepCache.addProperty("levels", stores.size());
+        stepCache.addProperty("size", size);
+        stepCache.addProperty("maxSize", maxSize);
+        stepCache.addProperty("chunks", chunks);
+        stepCache.addProperty("evictions", evictions);
+        stepCache.addProperty("expirations", expirations);
+        out.add("stepCache", stepCache);
+        return out;
+    }
+
+    // ===================================================================================
+    // Private
+
+    private static long percentile(long[] buckets, long total, double fraction) {
+        if (total == 0) return 0;
+        final long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) return bucketBound(i);
+        }
+        return bucketBound(buckets.length - 1);
+    }
+
+    /**
+     * The exclusive upper bound of bucket i, or the lower bound of the last bucket.
+     */
+    private static long bucketBound(int i) {
+        return i == LATENCY_BUCKETS - 1 ? 1L << (i - 1) : 1L << i;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        final LongAdder[] out = new LongAdder[count];
+        for (int i = 0; i < count; i++) out[i] = new LongAdder();
+        return out;
+    }
+}
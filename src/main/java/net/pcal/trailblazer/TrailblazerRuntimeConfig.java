@@ -3,64 +3,492 @@ package net.pcal.trailblazer;
 import com.google.common.collect.*;
 import java.util.*;
 import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
 import net.minecraft.resources.ResourceLocation;
-import net.minecraft.world.entity.Entity;
+import net.minecraft.tags.TagKey;
+import net.minecraft.world.entity.EntityType;
 import net.minecraft.world.entity.MobCategory;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.block.state.properties.Property;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import static java.util.Objects.requireNonNull;
+import static net.pcal.trailblazer.TrailblazerService.LOGGER_NAME;
+import static net.pcal.trailblazer.TrailblazerService.LOG_PREFIX;
 
 /**
- * Runtime representation of configuration. FIXME should allow more than one RBC per block bootId
+ * Runtime representation of configuration.  The rules are compiled into a dispatch table indexed by the
+ * registry raw id of EntityType and the global id of BlockState, so finding the rules for an entity
+ * stepping on a block is two array reads no matter how many blocks, tags and state properties the rules
+ * mention.  Because raw ids are only stable once every mod has registered its content (and tags are only
+ * bound once datapacks have loaded), instances must not be created until the server is starting, and must
+ * be recompiled when datapacks are reloaded.
  */
 @SuppressWarnings("ClassCanBeRecord")
-class TrailblazerRuntimeConfig {
+class TrailblazerRuntimeConfig implements StepEngine.RuleTable<TrailblazerRuntimeConfig.CompiledRule> {
+
+    /**
+     * Pseudo boot id that matches entities that aren't wearing any boots.
+     */
+    static final ResourceLocation BAREFOOT_ID = new ResourceLocation("minecraft:none");
 
     private final List<Rule> rules;
-    private final ListMultimap<ResourceLocation, Rule> rulesPerBlock = ArrayListMultimap.create();
-    private final SetMultimap<ResourceLocation, Rule> rulesPerEntity = HashMultimap.create();
-    private final SetMultimap<MobCategory, Rule> rulesPerSpawnGroup = HashMultimap.create();
     private final int stepCacheSize;
+    private final int maxConversionsPerTick;
+    private final boolean persistStepHistory;
+    private final int maxTimeoutTicks;
+    private final boolean metricsTiming;
+    private final int governorThresholdMicros;
+    private final int governorStepBudget;
+    private final int governorChunkCap;
+    private final boolean footprintSteps;
+    private final int heatmapIntervalSeconds;
+
+    /**
+     * The bits that represent the rules' boot conditions in boot fingerprints and rule boot masks.
+     */
+    private final BootBits<ResourceLocation> bootBits;
+
+    /**
+     * Indexed by EntityType raw id, then by BlockState id (Block.getId()).  Null at either level means there
+     * are no rules.  Entity types that match the same list of rules share the same per-state table.
+     */
+    private final CompiledRule[][][] rulesPerEntityAndState;
+
+    /**
+     * Maps blocks that rules change blocks to onto the rule that says how they regrow.
+     */
+    private final Map<Block, CompiledRule> regrowRulesPerBlock;
 
-    TrailblazerRuntimeConfig(List<Rule> rules, int stepCacheSize) {
+    TrailblazerRuntimeConfig(List<Rule> rules, int stepCacheSize, int maxConversionsPerTick, boolean persistStepHistory,
+                             boolean metricsTiming, int governorThresholdMicros, int governorStepBudget,
+                             int governorChunkCap, boolean footprintSteps, int heatmapIntervalSeconds) {
         this.rules = requireNonNull(rules);
         this.stepCacheSize = stepCacheSize;
-        for (final Rule rule : rules) {
-            this.rulesPerBlock.put(rule.blockId(), rule);
-            rule.entityIds().forEach(id -> this.rulesPerEntity.put(id, rule));
-            rule.spawnGroups().forEach(group -> this.rulesPerSpawnGroup.put(group, rule));
-        }
+        this.maxConversionsPerTick = maxConversionsPerTick;
+        this.persistStepHistory = persistStepHistory;
+        this.metricsTiming = metricsTiming;
+        this.governorThresholdMicros = governorThresholdMicros;
+        this.governorStepBudget = governorStepBudget;
+        this.governorChunkCap = governorChunkCap;
+        this.footprintSteps = footprintSteps;
+        this.heatmapIntervalSeconds = heatmapIntervalSeconds;
+        this.maxTimeoutTicks = rules.stream().anyMatch(r -> r.timeoutTicks() <= 0) ? -1 :
+                rules.stream().mapToInt(Rule::timeoutTicks).max().orElse(-1);
+        this.bootBits = createBootBits(rules);
+        final List<CompiledRule> compiledRules = resolveAll(rules, this.bootBits);
+        this.rulesPerEntityAndState = compile(compiledRules);
+        this.regrowRulesPerBlock = compileRegrowth(compiledRules);
     }
 
     int getStepCacheSize() {
         return this.stepCacheSize;
     }
 
-    List<Rule> getRuleListForBlock(ResourceLocation blockId) {
-        return this.rulesPerBlock.get(blockId);
+    /**
+     * @return the most block conversions to apply to a level in one tick, or -1 for no limit.
+     */
+    int getMaxConversionsPerTick() {
+        return this.maxConversionsPerTick;
+    }
+
+    /**
+     * @return the longest timeoutTicks of any rule, or -1 if some rule never times out.  Used for step
+     * histories whose rule isn't known.
+     */
+    int getMaxTimeoutTicks() {
+        return this.maxTimeoutTicks;
+    }
+
+    /**
+     * @return true if step history should be saved with the world.  Only looked at when a level loads, so
+     * changing it takes effect on restart.
+     */
+    boolean isPersistStepHistory() {
+        return this.persistStepHistory;
+    }
+
+    /**
+     * @return true if the time taken to handle each step should be recorded in the metrics.
+     */
+    boolean isMetricsTiming() {
+        return this.metricsTiming;
+    }
+
+    /**
+     * @return true if entities wider than a block should step on every block under them, not just the one
+     * under their center.
+     */
+    boolean isFootprintSteps() {
+        return this.footprintSteps;
+    }
+
+    /**
+     * @return how often to write heatmap snapshots, or a value less than 1 not to export heatmaps.
+     */
+    int getHeatmapIntervalSeconds() {
+        return this.heatmapIntervalSeconds;
+    }
+
+    /**
+     * @return a new LoadGovernor with this config's settings.  Without metricsTiming, steps aren't timed, so
+     * a positive threshold could never be crossed and the governor is off.
+     */
+    LoadGovernor createGovernor() {
+        final boolean off = this.governorThresholdMicros < 0 || (this.governorThresholdMicros > 0 && !this.metricsTiming);
+        return new LoadGovernor(off ? -1 : this.governorThresholdMicros * 1000L, this.governorStepBudget,
+                this.governorChunkCap);
+    }
+
+    /**
+     * @return the boot fingerprint of an entity wearing the given boot, enchantment or barefoot ids.
+     */
+    long getBootFingerprint(Set<ResourceLocation> worn) {
+        return this.bootBits.getFingerprint(worn);
+    }
+
+    /**
+     * @return true if any rule could apply to entities of the given type.
+     */
+    boolean hasRules(EntityType<?> entityType) {
+        final int entityRawId = BuiltInRegistries.ENTITY_TYPE.getId(entityType);
+        return entityRawId >= 0 && entityRawId < this.rulesPerEntityAndState.length &&
+                this.rulesPerEntityAndState[entityRawId] != null;
+    }
+
+    /**
+     * @return the rules that apply when the given entity type steps on a block in the given state, in order
+     * of precedence, or null if there aren't any.
+     */
+    CompiledRule[] getRules(EntityType<?> entityType, BlockState state) {
+        return getRules(BuiltInRegistries.ENTITY_TYPE.getId(entityType), Block.getId(state));
+    }
+
+    /**
+     * @return the rules that apply when the entity type with the given raw id steps on the block state with
+     * the given id, in order of precedence, or null if there aren't any.
+     */
+    @Override
+    public CompiledRule[] getRules(int entityTypeId, int stateId) {
+        if (entityTypeId < 0 || entityTypeId >= this.rulesPerEntityAndState.length) return null;
+        final CompiledRule[][] rulesPerState = this.rulesPerEntityAndState[entityTypeId];
+        if (rulesPerState == null) return null;
+        if (stateId < 0 || stateId >= rulesPerState.length) return null;
+        return rulesPerState[stateId];
     }
 
-    Set<Rule> getRulesForEntity(Entity entity) {
-        final ResourceLocation entityId = BuiltInRegistries.ENTITY_TYPE.getKey(entity.getType());
-        if (this.rulesPerSpawnGroup.isEmpty()) {
-            return this.rulesPerEntity.get(entityId);
+    /**
+     * @return the rule that says how blocks of the given block, made by some rule, regrow, or null if they
+     * don't.
+     */
+    CompiledRule getRegrowRule(Block block) {
+        return this.regrowRulesPerBlock.get(block);
+    }
+
+    /**
+     * @return a new config with the same settings, compiled against the current registries and tags.
+     */
+    TrailblazerRuntimeConfig recompile() {
+        return new TrailblazerRuntimeConfig(this.rules, this.stepCacheSize, this.maxConversionsPerTick,
+                this.persistStepHistory, this.metricsTiming, this.governorThresholdMicros, this.governorStepBudget,
+                this.governorChunkCap, this.footprintSteps, this.heatmapIntervalSeconds);
+    }
+
+    /**
+     * @return an array that maps the index of each of this config's rules to the index of the rule with the
+     * same name in the next config, or to StepHistoryStore.NO_RULE if it doesn't have one.  If names repeat,
+     * the first rule with the name gets them; unnamed rules are named by position.  TrailblazerInitializer
+     * warns about both.
+     */
+    int[] getRuleIndexRemap(TrailblazerRuntimeConfig next) {
+        final Map<String, Integer> nextIndexes = new HashMap<>();
+        for (int i = 0; i < next.rules.size(); i++) nextIndexes.putIfAbsent(next.rules.get(i).name(), i);
+        final int[] out = new int[this.rules.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = nextIndexes.getOrDefault(this.rules.get(i).name(), StepHistoryStore.NO_RULE);
+        }
+        return out;
+    }
+
+    // ===================================================================================
+    // Compilation
+
+    private static BootBits<ResourceLocation> createBootBits(List<Rule> rules) {
+        final List<List<Set<ResourceLocation>>> conditionLists = new ArrayList<>();
+        for (final Rule rule : rules) {
+            conditionLists.add(rule.onlyIfBoots());
+            conditionLists.add(rule.skipIfBoots());
+        }
+        final BootBits<ResourceLocation> out = new BootBits<>(conditionLists);
+        if (out.isPerCondition()) {
+            LogManager.getLogger(LOGGER_NAME).warn(LOG_PREFIX + "Rules mention more than " + BootBits.MAX_BITS +
+                    " different boot and enchantment ids; boots will be matched more slowly");
+        }
+        return out;
+    }
+
+    private static List<CompiledRule> resolveAll(List<Rule> rules, BootBits<ResourceLocation> bootBits) {
+        final Logger logger = LogManager.getLogger(LOGGER_NAME);
+        final List<CompiledRule> out = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            final CompiledRule compiled = resolve(rules.get(i), i, bootBits, logger);
+            if (compiled != null) out.add(compiled);
+        }
+        return out;
+    }
+
+    /**
+     * For each block that a rule changes blocks to, the first such rule that regrows.
+     */
+    private static Map<Block, CompiledRule> compileRegrowth(List<CompiledRule> compiledRules) {
+        final Map<Block, CompiledRule> out = new IdentityHashMap<>();
+        for (final CompiledRule compiled : compiledRules) {
+            if (compiled.regrowState != null) out.putIfAbsent(compiled.nextState.getBlock(), compiled);
+        }
+        return out;
+    }
+
+    private static CompiledRule[][][] compile(List<CompiledRule> compiledRules) {
+        final int stateCount = Block.BLOCK_STATE_REGISTRY.size();
+        final CompiledRule[][][] out = new CompiledRule[BuiltInRegistries.ENTITY_TYPE.size()][][];
+        final Map<List<CompiledRule>, CompiledRule[][]> tablesPerRuleList = new HashMap<>();
+        for (final EntityType<?> entityType : BuiltInRegistries.ENTITY_TYPE) {
+            final ResourceLocation entityId = BuiltInRegistries.ENTITY_TYPE.getKey(entityType);
+            final List<CompiledRule> entityRules = new ArrayList<>();
+            for (final CompiledRule compiled : compiledRules) {
+                if (compiled.rule.entityIds().contains(entityId) ||
+                        compiled.rule.spawnGroups().contains(entityType.getCategory())) {
+                    entityRules.add(compiled);
+                }
+            }
+            if (entityRules.isEmpty()) continue;
+            out[BuiltInRegistries.ENTITY_TYPE.getId(entityType)] = tablesPerRuleList.computeIfAbsent(entityRules, rl -> {
+                final ListMultimap<Integer, CompiledRule> rulesPerState = ArrayListMultimap.create();
+                for (final CompiledRule cr : rl) {
+                    for (final BlockState state : cr.states) {
+                        // counting steps toward changing a block into itself would be wasted work
+                        if (cr.getNextState(state) != state) rulesPerState.put(Block.getId(state), cr);
+                    }
+                }
+                final CompiledRule[][] table = new CompiledRule[stateCount][];
+                for (final Integer stateId : rulesPerState.keySet()) {
+                    table[stateId] = rulesPerState.get(stateId).toArray(new CompiledRule[0]);
+                }
+                return table;
+            });
+        }
+        return out;
+    }
+
+    /**
+     * Look up the block states matched by the rule, or return null if the rule can't be used.
+     */
+    private static CompiledRule resolve(Rule rule, int index, BootBits<ResourceLocation> bootBits, Logger logger) {
+        final List<Block> blocks = new ArrayList<>();
+        if (rule.blockTag() != null) {
+            BuiltInRegistries.BLOCK.getTagOrEmpty(TagKey.create(Registries.BLOCK, rule.blockTag())).forEach(h -> blocks.add(h.value()));
+            if (blocks.isEmpty()) {
+                logger.warn(LOG_PREFIX + "Ignoring rule '" + rule.name() + "': unknown or empty block tag #" + rule.blockTag());
+                return null;
+            }
+        } else if (BuiltInRegistries.BLOCK.containsKey(rule.blockId())) {
+            blocks.add(BuiltInRegistries.BLOCK.get(rule.blockId()));
         } else {
-            final MobCategory spawnGroup = entity.getType().getCategory();
-            final Set<Rule> spawnGroupRules = this.rulesPerSpawnGroup.get(spawnGroup);
-            if (spawnGroupRules.isEmpty()) {
-                return this.rulesPerEntity.get(entityId);
+            logger.warn(LOG_PREFIX + "Ignoring rule '" + rule.name() + "': unknown blockId " + rule.blockId());
+            return null;
+        }
+        final List<BlockState> states = new ArrayList<>();
+        for (final Block block : blocks) {
+            for (final BlockState state : block.getStateDefinition().getPossibleStates()) {
+                if (matchesProperties(state, rule.blockStates())) states.add(state);
+            }
+        }
+        if (states.isEmpty()) {
+            logger.warn(LOG_PREFIX + "Ignoring rule '" + rule.name() + "': no block states match " + rule.blockStates());
+            return null;
+        }
+        if (!BuiltInRegistries.BLOCK.containsKey(rule.nextId())) {
+            logger.warn(LOG_PREFIX + "Ignoring rule '" + rule.name() + "': unknown nextBlockId " + rule.nextId());
+            return null;
+        }
+        BlockState regrowState = null;
+        if (rule.regrowTicks() > 0) {
+            if (BuiltInRegistries.BLOCK.containsKey(rule.regrowId())) {
+                regrowState = BuiltInRegistries.BLOCK.get(rule.regrowId()).defaultBlockState();
             } else {
-                // FIXME? I suppose we could also be build up a cache of these things
-                return Sets.union(this.rulesPerEntity.get(entityId), spawnGroupRules);
+                logger.warn(LOG_PREFIX + "Rule '" + rule.name() + "' won't regrow: unknown regrowBlockId " + rule.regrowId());
             }
         }
+        for (final ResourceLocation entityId : rule.entityIds()) {
+            if (!BuiltInRegistries.ENTITY_TYPE.containsKey(entityId)) {
+                logger.warn(LOG_PREFIX + "Rule '" + rule.name() + "' has unknown entityId " + entityId);
+            }
+        }
+        for (final Set<ResourceLocation> bootIds : Iterables.concat(rule.onlyIfBoots(), rule.skipIfBoots())) {
+            for (final ResourceLocation bootId : bootIds) {
+                if (!BAREFOOT_ID.equals(bootId) && !BuiltInRegistries.ITEM.containsKey(bootId) &&
+                        !BuiltInRegistries.ENCHANTMENT.containsKey(bootId)) {
+                    logger.warn(LOG_PREFIX + "Rule '" + rule.name() + "' has unknown boot or enchantment id " + bootId);
+                }
+            }
+        }
+        for (final Set<ResourceLocation> bootIds : rule.onlyIfBoots()) {
+            if (!bootBits.hasBit(bootIds)) {
+                logger.warn(LOG_PREFIX + "Rule '" + rule.name() + "' won't apply to entities wearing " + bootIds +
+                        ": the rules mention too many different boot conditions");
+            }
+        }
+        for (final Set<ResourceLocation> bootIds : rule.skipIfBoots()) {
+            if (!bootBits.hasBit(bootIds)) {
+                logger.warn(LOG_PREFIX + "Rule '" + rule.name() + "' won't apply: the rules mention too many different " +
+                        "boot conditions to check skipIfBoots " + bootIds);
+            }
+        }
+        return new CompiledRule(rule, index,
+                states.toArray(new BlockState[0]),
+                BuiltInRegistries.BLOCK.get(rule.nextId()).defaultBlockState(),
+                regrowState,
+                bootBits.toMasks(rule.onlyIfBoots(), false),
+                bootBits.toMasks(rule.skipIfBoots(), true));
+    }
+
+    /**
+     * @return true if, for each of the given property names, the state has that property and its value is
+     * one of the given ones.
+     */
+    private static boolean matchesProperties(BlockState state, Map<String, Set<String>> blockStates) {
+        for (final Map.Entry<String, Set<String>> e : blockStates.entrySet()) {
+            final Property<?> property = state.getBlock().getStateDefinition().getProperty(e.getKey());
+            if (property == null || !e.getValue().contains(getValueName(state, property))) return false;
+        }
+        return true;
+    }
+
+    private static <T extends Comparable<T>> String getValueName(BlockState state, Property<T> property) {
+        return property.getName(state.getValue(property));
+    }
+
+    private static <T extends Comparable<T>> BlockState copyProperty(BlockState from, Property<T> fromProperty, BlockState to) {
+        final Property<?> toProperty = to.getBlock().getStateDefinition().getProperty(fromProperty.getName());
+        return toProperty == null ? to : setValue(to, toProperty, getValueName(from, fromProperty));
+    }
+
+    private static <T extends Comparable<T>> BlockState setValue(BlockState state, Property<T> property, String valueName) {
+        return property.getValue(valueName).map(value -> state.setValue(property, value)).orElse(state);
+    }
+
+    private static long[] toBootMasks(List<Set<ResourceLocation>> bootIdSets, Map<ResourceLocation, Long> bootBits) {
+        final long[] out = new long[bootIdSets.size()];
+        for (int i = 0; i < out.length; i++) {
+            for (final ResourceLocation bootId : bootIdSets.get(i)) out[i] |= bootBits.get(bootId);
+        }
+        return out;
+    }
+
+    /**
+     * A rule whose ids have been resolved against the registries, and whose block, tag and state properties
+     * have been resolved to the block states it applies to.  Each sublist of the rule's onlyIfBoots and
+     * skipIfBoots becomes a mask that matches a boot fingerprint containing all of its bits.  index is the
+     * rule's position in the config's list of rules.
+     */
+    static final class CompiledRule implements StepEngine.StepRule {
+        final Rule rule;
+        final int index;
+        final BlockState[] states;
+        final BlockState nextState;
+        final BlockState regrowState;
+        final long[] onlyIfBootMasks;
+        final long[] skipIfBootMasks;
+
+        CompiledRule(Rule rule, int index, BlockState[] states, BlockState nextState, BlockState regrowState,
+                     long[] onlyIfBootMasks, long[] skipIfBootMasks) {
+            this.rule = requireNonNull(rule);
+            this.index = index;
+            this.states = requireNonNull(states);
+            this.nextState = requireNonNull(nextState);
+            this.regrowState = regrowState;
+            this.onlyIfBootMasks = requireNonNull(onlyIfBootMasks);
+            this.skipIfBootMasks = requireNonNull(skipIfBootMasks);
+        }
+
+        @Override
+        public int index() {
+            return this.index;
+        }
+
+        @Override
+        public int stepCount() {
+            return this.rule.stepCount();
+        }
+
+        @Override
+        public int timeoutTicks() {
+            return this.rule.timeoutTicks();
+        }
+
+        @Override
+        public boolean distinctEntities() {
+            return this.rule.distinctEntities();
+        }
+
+        @Override
+        public long[] onlyIfBootMasks() {
+            return this.onlyIfBootMasks;
+        }
+
+        @Override
+        public long[] skipIfBootMasks() {
+            return this.skipIfBootMasks;
+        }
+
+        /**
+         * @return the state to change a block in the given state to.
+         */
+        BlockState getNextState(BlockState from) {
+            return withProperties(from, this.nextState);
+        }
+
+        /**
+         * @return the state that a block this rule changed, now in the given state, should regrow to.  Null
+         * if the rule doesn't regrow.
+         */
+        BlockState getRegrowState(BlockState from) {
+            return this.regrowState == null ? null : withProperties(from, this.regrowState);
+        }
+
+        private BlockState withProperties(BlockState from, BlockState to) {
+            if (!this.rule.copyProperties()) return to;
+            BlockState out = to;
+            for (final Property<?> property : from.getProperties()) out = copyProperty(from, property, out);
+            return out;
+        }
+
+        @Override
+        public String toString() {
+            return this.rule.name();
+        }
     }
 
+    /**
+     * Exactly one of blockId and blockTag must be given.  blockStates maps property names to the values
+     * (by name) that the rule applies to; states without a listed property don't match.  If regrowTicks is
+     * positive, blocks the rule changes to nextId change to regrowId (by default blockId) once they haven't
+     * been stepped on for that long.
+     */
     record Rule(
             String name,
             ResourceLocation blockId,
+            ResourceLocation blockTag,
+            Map<String, Set<String>> blockStates,
             ResourceLocation nextId,
+            boolean copyProperties,
             int stepCount,
+            boolean distinctEntities,
             int timeoutTicks,
+            int regrowTicks,
+            ResourceLocation regrowId,
             Set<ResourceLocation> entityIds,
             Set<MobCategory> spawnGroups,
             List<Set<ResourceLocation>> skipIfBoots,
@@ -70,18 +498,36 @@ class TrailblazerRuntimeConfig {
         Rule(
                 String name,
                 ResourceLocation blockId,
+                ResourceLocation blockTag,
+                Map<String, Set<String>> blockStates,
                 ResourceLocation nextId,
+                boolean copyProperties,
                 int stepCount,
+                boolean distinctEntities,
                 int timeoutTicks,
+                int regrowTicks,
+                ResourceLocation regrowId,
                 Set<ResourceLocation> entityIds,
                 Set<MobCategory> spawnGroups,
                 List<Set<ResourceLocation>> skipIfBoots,
                 List<Set<ResourceLocation>> onlyIfBoots) {
             this.name = name != null ? name : "unnamed";
-            this.blockId = requireNonNull(blockId);
+            if ((blockId == null) == (blockTag == null)) {
+                throw new RuntimeException("Rules must set exactly one of blockId and blockTag");
+            }
+            this.blockId = blockId;
+            this.blockTag = blockTag;
+            this.blockStates = blockStates == null ? Collections.emptyMap() : blockStates;
             this.nextId = requireNonNull(nextId);
+            this.copyProperties = copyProperties;
             this.stepCount = stepCount;
+            this.distinctEntities = distinctEntities;
             this.timeoutTicks = timeoutTicks;
+            this.regrowTicks = regrowTicks;
+            this.regrowId = regrowId != null ? regrowId : blockId;
+            if (this.regrowTicks > 0 && this.regrowId == null) {
+                throw new RuntimeException("Rules with a blockTag must set regrowBlockId to regrow");
+            }
             this.entityIds = emptySetIfNull(entityIds);
             this.spawnGroups = emptySetIfNull(spawnGroups);
             this.skipIfBoots = emptyListIfNull(skipIfBoots);
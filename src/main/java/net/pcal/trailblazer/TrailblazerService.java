@@ -1,31 +1,43 @@
 package net.pcal.trailblazer;
 
-import com.google.common.collect.ImmutableSet;
-import com.google.common.math.DoubleMath;
-import net.minecraft.core.BlockPos;
+import com.google.gson.JsonObject;
 import net.minecraft.core.registries.BuiltInRegistries;
 import net.minecraft.nbt.CompoundTag;
-import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.EntityType;
 import net.minecraft.world.entity.EquipmentSlot;
 import net.minecraft.world.item.ArmorItem;
 import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
-import net.minecraft.world.level.block.Block;
-import net.minecraft.world.level.block.state.BlockState;
-import net.pcal.trailblazer.TrailblazerRuntimeConfig.Rule;
+import net.minecraft.world.level.dimension.DimensionType;
+import net.minecraft.world.level.storage.LevelResource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import static java.util.Objects.requireNonNull;
 
 
 /**
- * Central singleton service.
+ * Central singleton service.  Receives Trailblazer's events and passes the ones about a level on to that
+ * level's TrailblazerLevelService, which is where step history and the rest actually live.
+ *
+ * Threading: the lifecycle methods (configure, levelLoaded, levelUnloaded, serverStopped, the metrics and
+ * trace commands) must be called on the server thread.  entitySteppingOnBlock(), levelTickEnded() and the
+ * chunk methods may be called on whatever thread ticks the level they're about, even if levels are
+ * ticked in parallel; see TrailblazerLevelService.  The config and config epoch are published with volatile
+ * writes and the level map is concurrent, so those threads always see a complete config and a level that is
+ * either there or not.
  */
 public class TrailblazerService {
 
@@ -34,6 +46,10 @@ public class TrailblazerService {
 
     public static final String LOGGER_NAME = "trailblazer";
     public static final String LOG_PREFIX = "[Trailblazer] ";
+    private static final String STEP_HISTORY_FILE_NAME = "trailblazer-steps.dat";
+    private static final String HEATMAP_FOLDER_NAME = "trailblazer-heatmaps";
+    private static final int PERSISTENCE_FLUSH_SECONDS = 5;
+    private static final Set<ResourceLocation> BAREFOOT = Set.of(TrailblazerRuntimeConfig.BAREFOOT_ID);
 
     // ===================================================================================
     // Singleton
@@ -50,164 +66,249 @@ public class TrailblazerService {
         return SingletonHolder.INSTANCE;
     }
 
-    static final class BlockHistory {
-        BlockHistory(int stepCount, long lastStepTimestamp) {
-            this.stepCount = stepCount;
-            this.lastStepTimestamp = lastStepTimestamp;
-        }
-
-        int stepCount;
-        long lastStepTimestamp;
-
-        @Override
-        public String toString() {
-            return "stepCount: " + this.stepCount + " lastStepTimestamp: " + this.lastStepTimestamp;
-        }
-    }
-
     // ===================================================================================
     // Constructors
 
     TrailblazerService() {
-        this.stepCounts = new LinkedHashMap<>(500, 0.75f, true) {
-            protected boolean removeEldestEntry(Map.Entry eldest) {
-                if (config == null) {
-                    logger.warn("config not set.  something is very wrong");
-                    return false;
-                } else {
-                    return size() > config.getStepCacheSize();
-                }
-            }
-        };
     }
 
+    /**
+     * Start using the given config.  It's published with a single write, so entity movement never sees a
+     * partly applied config.  Each level picks it up the next time it's used; step histories for rules that
+     * no longer exist are dropped then and the rest are kept.  Must be called on the server thread.
+     */
     public void configure(TrailblazerRuntimeConfig config) {
-        this.config = requireNonNull(config);
+        requireNonNull(config);
+        this.config = config;
+        refreshEntityTypes(config);
     }
 
     // ===================================================================================
     // Fields
 
     private final Logger logger = LogManager.getLogger(LOGGER_NAME);
-    private TrailblazerRuntimeConfig config;
-    private final Map<BlockPos, BlockHistory> stepCounts;
+    private volatile TrailblazerRuntimeConfig config;
+    private volatile int configEpoch = 0;
+    private final Map<ResourceKey<Level>, Integer> dimensionIds = new IdentityHashMap<>();
+    private final Map<Level, TrailblazerLevelService> levels = new ConcurrentHashMap<>();
+    private final TrailblazerMetrics metrics = new TrailblazerMetrics();
+    private volatile StepTraceRecorder traceRecorder;
+    private HeatmapExporter heatmap;
+
+    // ===================================================================================
+    // Lifecycle events
 
     /**
-     * This will be called whenever an entity moves to a new block.
+     * Called when a server is starting.  Carries the config in use, which is the one from the last successful
+     * reload if there's been one, over to the new server, compiled against its registries and tags.  The
+     * first time, there's nothing to carry over, and the given config is used.
      */
-    public void entitySteppingOnBlock(Entity entity, double x, double y, double z) {
-        final Set<Rule> entityRuleSet = this.config.getRulesForEntity(entity);
-        if (entityRuleSet == null || entityRuleSet.isEmpty()) {
-            // Most mob movements presumably won't trigger a rule, so let's short-circuit
-            // that case as quickly as possible.
-            return;
+    public void serverStarting(Supplier<TrailblazerRuntimeConfig> initialConfig) {
+        configure(this.config != null ? this.config.recompile() : initialConfig.get());
+    }
+
+    /**
+     * @return the config in use, or null if the first server hasn't started yet.
+     */
+    TrailblazerRuntimeConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * Called after datapacks have been reloaded.  Recompiles the current config against the new tags.
+     */
+    public void recompile() {
+        if (this.config != null) configure(this.config.recompile());
+    }
+
+    /**
+     * Called when a server level is loaded.  Picks up the blocks that were waiting to regrow when the level
+     * was last saved and, if step history is persisted, the level's saved history.
+     */
+    public void levelLoaded(ServerLevel world) {
+        final TrailblazerRuntimeConfig config = this.config;
+        final int dimension = getDimensionId(world);
+        final Path worldRoot = world.getServer().getWorldPath(LevelResource.ROOT);
+        if (config.getHeatmapIntervalSeconds() > 0 && this.heatmap == null) {
+            this.heatmap = new HeatmapExporter(worldRoot.resolve(HEATMAP_FOLDER_NAME), config.getHeatmapIntervalSeconds());
         }
-        if (!DoubleMath.isMathematicalInteger(entity.getY())) {
-            // Ignore block changes for entities that aren't standing on the ground.
-            // Mainly because the jumping players register extra blockPos changes
-            // that I don't quite understand.
-            return;
+        if (this.heatmap != null) this.heatmap.dimensionLoaded(dimension, world.dimension().location().toString());
+        Path persistenceFile = null;
+        if (config.isPersistStepHistory()) {
+            persistenceFile = DimensionType.getStorageFolder(world.dimension(), worldRoot).resolve("data").resolve(STEP_HISTORY_FILE_NAME);
         }
-        // Ok, figure out what block its standing on
-        final BlockPos pos = BlockPos.containing(x, y, z).below(1);
-        final Level world = entity.level();
-        final BlockState state = world.getBlockState(pos);
-        final Block block = state.getBlock();
-        final ResourceLocation blockId = BuiltInRegistries.BLOCK.getKey(block);
-
-        // Get the rules that might apply to that block.  This just lets us avoid processing
-        // rules if they don't apply to the block (which is most of the time).
-        final List<Rule> blockRules = this.config.getRuleListForBlock(blockId);
-        if (blockRules == null) return;
-
-        logger.debug(() -> "checking " + blockId);
-
-        final Set<ResourceLocation> bootInfo = getBootInfo(entity);
-        for (Rule rule : blockRules) {
-            if (!blockId.equals(rule.blockId())) continue;
-            if (!entityRuleSet.contains(rule)) continue;
-            if (!rule.onlyIfBoots().isEmpty()) {
-                if (!matchesAny(bootInfo, rule.onlyIfBoots())) continue;
-            }
-            if (!rule.skipIfBoots().isEmpty()) {
-                if (matchesAny(bootInfo, rule.skipIfBoots())) continue;
-            }
-            triggerRule(rule, world, pos, block);
-            return;
+        this.levels.put(world, new TrailblazerLevelService(world, dimension, config, this.metrics, persistenceFile,
+                PERSISTENCE_FLUSH_SECONDS, this.heatmap));
+    }
+
+    /**
+     * Called when a server level is unloaded.  Conversions that haven't been applied yet are dropped, along
+     * with the level's step history.
+     */
+    public void levelUnloaded(Level world) {
+        final TrailblazerLevelService level = this.levels.remove(world);
+        if (level != null) level.close();
+    }
+
+    /**
+     * Called when a server chunk is loaded, on any thread.  The level applies it on the thread that ticks it.
+     */
+    public void chunkLoaded(Level world, ChunkPos chunkPos) {
+        final TrailblazerLevelService level = this.levels.get(world);
+        if (level != null) level.chunkLoaded(chunkPos.toLong());
+    }
+
+    /**
+     * Called when a server chunk is unloaded, on any thread.  Step history for blocks in the chunk is dropped,
+     * on the thread that ticks the level.
+     */
+    public void chunkUnloaded(Level world, ChunkPos chunkPos) {
+        final TrailblazerLevelService level = this.levels.get(world);
+        if (level != null) level.chunkUnloaded(chunkPos.toLong());
+    }
+
+    /**
+     * Called at the end of each tick of a server level, on the thread that ticked it.
+     */
+    public void levelTickEnded(Level world) {
+        final TrailblazerLevelService level = this.levels.get(world);
+        if (level != null) level.tickEnded(this.config);
+    }
+
+    /**
+     * Called when the server has stopped.  Everything remembered about the server's worlds is saved (if
+     * persistence is on) and forgotten.
+     */
+    public void serverStopped() {
+        for (final TrailblazerLevelService level : this.levels.values()) level.close();
+        this.levels.clear();
+        if (this.heatmap != null) {
+            this.heatmap.shutdown();
+            this.heatmap = null;
+        }
+        stopTrace();
+        this.dimensionIds.clear();
+        this.metrics.reset();
+    }
+
+    /**
+     * Return the current metrics as json.  Must be called on the server thread.  Numbers for levels ticked
+     * on other threads may be slightly out of date.
+     */
+    public JsonObject getMetrics() {
+        final List<StepHistoryStore> stores = new ArrayList<>();
+        int pendingConversions = 0, pendingRegrowths = 0;
+        final JsonObject governors = new JsonObject();
+        for (final TrailblazerLevelService level : this.levels.values()) {
+            stores.add(level.getStore());
+            pendingConversions += level.getPendingConversions();
+            pendingRegrowths += level.getPendingRegrowths();
+            governors.add(level.getDimensionName(), level.getGovernorJson());
         }
+        final JsonObject out = this.metrics.toJson(stores, pendingConversions, pendingRegrowths);
+        out.add("governor", governors);
+        if (this.heatmap != null) out.add("heatmap", this.heatmap.toJson());
+        return out;
+    }
+
+    /**
+     * Zero the metrics.
+     */
+    public void resetMetrics() {
+        this.metrics.reset();
+        for (final TrailblazerLevelService level : this.levels.values()) level.resetGovernorCounters();
+    }
+
+    /**
+     * Start recording steps to the given file.  Returns false if a trace is already being recorded.
+     */
+    public boolean startTrace(Path path) throws IOException {
+        if (this.traceRecorder != null) return false;
+        this.traceRecorder = new StepTraceRecorder(path);
+        logger.info(LOG_PREFIX + "Recording steps to " + path);
+        return true;
     }
 
-    private static boolean matchesAny(Set<ResourceLocation> bootInfo, List<Set<ResourceLocation>> setList) {
-        for (final Set<ResourceLocation> set : setList) {
-            if (bootInfo.containsAll(set)) return true;
+    /**
+     * Stop recording steps.  Returns the finished trace file, or null if no trace was being recorded.
+     */
+    public Path stopTrace() {
+        final StepTraceRecorder recorder = this.traceRecorder;
+        if (recorder == null) return null;
+        this.traceRecorder = null;
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            logger.error(LOG_PREFIX + "Error finishing " + recorder.getPath(), e);
         }
-        return false;
+        logger.info(LOG_PREFIX + "Recorded " + recorder.getStepCount() + " steps to " + recorder.getPath());
+        return recorder.getPath();
     }
 
+    /**
+     * This will be called whenever an entity that some rule could apply to moves over a different block than
+     * the one it last stepped on.  EntityMixin filters out everything else.
+     */
+    public void entitySteppingOnBlock(Entity entity, double x, double y, double z) {
+        final TrailblazerLevelService level = this.levels.get(entity.level());
+        if (level == null) return; // not loaded yet, or already unloaded
+        level.entitySteppingOnBlock(entity, x, y, z, this.config, this.configEpoch, this.traceRecorder);
+    }
 
-    private static final Set<ResourceLocation> BAREFOOT = ImmutableSet.of(new ResourceLocation("minecraft:none"));
+    /**
+     * Tell every EntityType whether the given config has rules for it, so that EntityMixin can skip those
+     * without.  Also moves to a new config epoch, so that entities don't skip the first step they take
+     * under the new config.
+     */
+    private void refreshEntityTypes(TrailblazerRuntimeConfig config) {
+        final int epoch = this.configEpoch + 1;
+        this.configEpoch = epoch;
+        for (final EntityType<?> entityType : BuiltInRegistries.ENTITY_TYPE) {
+            ((TrailblazerEntityType) entityType).trailblazer$setRules(config.hasRules(entityType), epoch);
+        }
+    }
 
     /**
-     * Return info for the boots the player is wearing.
+     * Return the fingerprint of the boots the entity is wearing.  It's cached on the entity and only
+     * recomputed when the entity's feet equipment changes or the config is replaced.
      */
-    private static Set getBootInfo(Entity entity) {
-        for (ItemStack armor : entity.getArmorSlots()) {
-            final Set<ResourceLocation> bootInfo = getBootInfo(armor);
-            if (bootInfo != null) return bootInfo;
+    static long getBootFingerprint(Entity entity, TrailblazerRuntimeConfig config) {
+        final TrailblazerEntity cache = (TrailblazerEntity) entity;
+        if (cache.trailblazer$getBootFingerprintConfig() != config) {
+            cache.trailblazer$setBootFingerprint(computeBootFingerprint(entity.getArmorSlots(), config), config);
         }
-        return BAREFOOT;
-    }
-
-        /**
-         * Return info about the footwear in the given stack, or null if it isn't footwear.
-         */
-    private static Set<ResourceLocation> getBootInfo(ItemStack stack) {
-        if (!(stack.getItem() instanceof final ArmorItem armor)) return null;
-        if (armor.getEquipmentSlot() != EquipmentSlot.FEET) return null;
-        final ResourceLocation bootId = BuiltInRegistries.ITEM.getKey(stack.getItem());
-        final ListTag enchants = stack.getEnchantmentTags();
-        if (enchants == null || enchants.isEmpty()) {
-            return ImmutableSet.of(bootId);
-        } else {
-            final Set<ResourceLocation> bootInfo = new HashSet<>();
-            bootInfo.add(bootId);
-            for (final Tag enchant : enchants) {
+        return cache.trailblazer$getBootFingerprint();
+    }
+
+    /**
+     * Return the config's boot fingerprint for the boots in the given armor slots and their enchantments.
+     */
+    static long computeBootFingerprint(Iterable<ItemStack> armorSlots, TrailblazerRuntimeConfig config) {
+        for (final ItemStack armor : armorSlots) {
+            if (!(armor.getItem() instanceof final ArmorItem armorItem)) continue;
+            if (armorItem.getEquipmentSlot() != EquipmentSlot.FEET) continue;
+            final Set<ResourceLocation> worn = new HashSet<>();
+            worn.add(BuiltInRegistries.ITEM.getKey(armorItem));
+            for (final Tag enchant : armor.getEnchantmentTags()) {
                 if (enchant instanceof final CompoundTag compound) {
-                    final String id = requireNonNull(compound.getString("id"));
+                    final ResourceLocation id = ResourceLocation.tryParse(compound.getString("id"));
                     // final int lvl = compound.getInt("lvl"); TODO someday?
-                    bootInfo.add(new ResourceLocation(id));
+                    if (id != null) worn.add(id);
                 }
             }
-            return bootInfo;
+            return config.getBootFingerprint(worn);
         }
+        return config.getBootFingerprint(BAREFOOT);
     }
 
-    private void triggerRule(Rule rule, Level world, BlockPos pos, Block block) {
-        final BlockHistory bh = this.stepCounts.get(pos);
-        final int blockStepCount;
-        if (bh == null) {
-            blockStepCount = 1;
-        } else {
-            if (rule.timeoutTicks() > 0 && (world.getGameTime() - bh.lastStepTimestamp) > rule.timeoutTicks()) {
-                logger.debug(() -> "step timeout " + block + " " + bh);
-                blockStepCount = 1;
-                bh.stepCount = 1;
-            } else {
-                logger.debug(() -> "stepCount++ " + block + " " + bh);
-                bh.stepCount++;
-                blockStepCount = bh.stepCount;
-            }
-            bh.lastStepTimestamp = world.getGameTime();
-        }
-        if (blockStepCount >= rule.stepCount()) {
-            logger.debug(() -> "changed! " + block + " " + bh);
-            final ResourceLocation nextId = rule.nextId();
-            world.setBlockAndUpdate(pos, BuiltInRegistries.BLOCK.get(nextId).defaultBlockState());
-            if (bh != null) this.stepCounts.remove(pos);
-        } else {
-            if (bh == null) {
-                this.stepCounts.put(pos, new BlockHistory(blockStepCount, world.getGameTime()));
-            }
-        }
+    /**
+     * Return the number the step history store uses for the given world's dimension.
+     */
+    private int getDimensionId(Level world) {
+        final Integer id = this.dimensionIds.get(world.dimension());
+        if (id != null) return id;
+        final int newId = StepHistoryStore.NO_DIMENSION + 1 + this.dimensionIds.size();
+        this.dimensionIds.put(world.dimension(), newId);
+        return newId;
     }
 }
@@ -1,9 +1,14 @@
 package net.pcal.trailblazer.mixins;
 
+import net.minecraft.core.BlockPos;
+import net.minecraft.util.Mth;
 import net.minecraft.world.entity.Entity;
+import net.pcal.trailblazer.TrailblazerEntity;
+import net.pcal.trailblazer.TrailblazerEntityType;
 import net.pcal.trailblazer.TrailblazerService;
 import org.objectweb.asm.Opcodes;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
@@ -11,16 +16,93 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import static org.spongepowered.asm.mixin.injection.At.Shift.BEFORE;
 
 @Mixin(Entity.class)
-public class EntityMixin {
+public class EntityMixin implements TrailblazerEntity {
 
     //@Shadow
     //private BlockPos blockPos;
 
+    @Unique
+    private long trailblazer$bootFingerprint;
+
+    @Unique
+    private Object trailblazer$bootFingerprintConfig;
+
+    @Unique
+    private long trailblazer$lastStepPos = NO_LAST_STEP;
+
+    @Unique
+    private int trailblazer$lastStepConfigEpoch;
+
+    @Unique
+    private long trailblazer$lastFootprintMin = NO_LAST_STEP;
+
+    @Unique
+    private long trailblazer$lastFootprintMax = NO_LAST_STEP;
+
     // get notified any time an entity's blockPos is updated
     @Inject(method = "setPosRaw(DDD)V", at = @At(value = "FIELD", shift = BEFORE, opcode = Opcodes.PUTFIELD, target = "Lnet/minecraft/world/entity/Entity;blockPosition:Lnet/minecraft/core/BlockPos;"))
     void _entity_blockPos_update(double x, double y, double z, CallbackInfo ci) {
         final Entity entity = (Entity)(Object)this;
+        // most entities (items, projectiles, minecarts...) can't trigger any rule, so skip them right here
+        final TrailblazerEntityType type = (TrailblazerEntityType) entity.getType();
+        if (!type.trailblazer$hasRules()) return;
         if (entity.level().isClientSide()) return; // only process on the server
+        // only call the service when the block underfoot is a different one than last time
+        if (this.trailblazer$lastStepConfigEpoch == type.trailblazer$getConfigEpoch() &&
+                this.trailblazer$lastStepPos == BlockPos.asLong(Mth.floor(x), TrailblazerEntity.getSupportingBlockY(y), Mth.floor(z))) return;
         TrailblazerService.getInstance().entitySteppingOnBlock(entity, x, y, z);
     }
-}
\ No newline at end of file
+
+    @Override
+    public long trailblazer$getBootFingerprint() {
+        return this.trailblazer$bootFingerprint;
+    }
+
+    @Override
+    public Object trailblazer$getBootFingerprintConfig() {
+        return this.trailblazer$bootFingerprintConfig;
+    }
+
+    @Override
+    public void trailblazer$setBootFingerprint(long fingerprint, Object config) {
+        this.trailblazer$bootFingerprint = fingerprint;
+        this.trailblazer$bootFingerprintConfig = config;
+    }
+
+    @Override
+    public void trailblazer$invalidateBootFingerprint() {
+        this.trailblazer$bootFingerprintConfig = null;
+    }
+
+    @Override
+    public long trailblazer$getLastStepPos() {
+        return this.trailblazer$lastStepPos;
+    }
+
+    @Override
+    public int trailblazer$getLastStepConfigEpoch() {
+        return this.trailblazer$lastStepConfigEpoch;
+    }
+
+    @Override
+    public void trailblazer$setLastStep(long pos, int configEpoch) {
+        this.trailblazer$lastStepPos = pos;
+        this.trailblazer$lastStepConfigEpoch = configEpoch;
+    }
+
+    @Override
+    public long trailblazer$getLastFootprintMin() {
+        return this.trailblazer$lastFootprintMin;
+    }
+
+    @Override
+    public long trailblazer$getLastFootprintMax() {
+        return this.trailblazer$lastFootprintMax;
+    }
+
+    @Override
+    public void trailblazer$setLastFootprint(long min, long max) {
+        this.trailblazer$lastFootprintMin = min;
+        this.trailblazer$lastFootprintMax = max;
+    }
+}
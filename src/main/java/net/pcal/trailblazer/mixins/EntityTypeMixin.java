@@ -0,0 +1,32 @@
+package net.pcal.trailblazer.mixins;
+
+import net.minecraft.world.entity.EntityType;
+import net.pcal.trailblazer.TrailblazerEntityType;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+
+@Mixin(EntityType.class)
+public class EntityTypeMixin implements TrailblazerEntityType {
+
+    @Unique
+    private boolean trailblazer$hasRules;
+
+    @Unique
+    private int trailblazer$configEpoch;
+
+    @Override
+    public boolean trailblazer$hasRules() {
+        return this.trailblazer$hasRules;
+    }
+
+    @Override
+    public int trailblazer$getConfigEpoch() {
+        return this.trailblazer$configEpoch;
+    }
+
+    @Override
+    public void trailblazer$setRules(boolean hasRules, int configEpoch) {
+        this.trailblazer$hasRules = hasRules;
+        this.trailblazer$configEpoch = configEpoch;
+    }
+}
@@ -0,0 +1,25 @@
+package net.pcal.trailblazer.mixins;
+
+import net.minecraft.world.entity.EquipmentSlot;
+import net.minecraft.world.entity.LivingEntity;
+import net.minecraft.world.item.ItemStack;
+import net.pcal.trailblazer.TrailblazerEntity;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+import java.util.Map;
+
+@Mixin(LivingEntity.class)
+public class LivingEntityMixin {
+
+    // get notified when the server notices an entity's equipment has changed, so cached boot info can be dropped
+    @Inject(method = "collectEquipmentChanges()Ljava/util/Map;", at = @At("RETURN"))
+    void _livingEntity_equipment_changes(CallbackInfoReturnable<Map<EquipmentSlot, ItemStack>> cir) {
+        final Map<EquipmentSlot, ItemStack> changes = cir.getReturnValue();
+        if (changes != null && changes.containsKey(EquipmentSlot.FEET)) {
+            ((TrailblazerEntity) this).trailblazer$invalidateBootFingerprint();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package net.pcal.trailblazer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Boot fingerprints and masks, including for rules that mention more ids, and more conditions, than a long
+ * has bits.
+ */
+class BootBitsTest {
+
+    private static final Set<String> LEATHER = Set.of("leather_boots");
+    private static final Set<String> GOLD_FEATHER = Set.of("golden_boots", "feather_falling");
+
+    @Test
+    void fewIdsGetABitEach() {
+        final BootBits<String> bits = new BootBits<>(List.of(List.of(LEATHER, GOLD_FEATHER)));
+        assertFalse(bits.isPerCondition());
+        final long[] masks = bits.toMasks(List.of(LEATHER, GOLD_FEATHER), false);
+
+        assertTrue(matchesAny(bits.getFingerprint(Set.of("leather_boots", "mending")), masks));
+        assertTrue(matchesAny(bits.getFingerprint(Set.of("golden_boots", "feather_falling")), masks));
+        assertFalse(matchesAny(bits.getFingerprint(Set.of("golden_boots")), masks));
+        assertEquals(0, bits.getFingerprint(Set.of("iron_boots")));
+    }
+
+    @Test
+    void manyIdsGetABitPerCondition() {
+        final List<Set<String>> conditions = new ArrayList<>();
+        for (int i = 0; i < 40; i++) conditions.add(Set.of("boots" + i, "enchantment" + i));
+        conditions.add(GOLD_FEATHER);
+        final BootBits<String> bits = new BootBits<>(List.of(conditions, List.of(LEATHER, GOLD_FEATHER)));
+        assertTrue(bits.isPerCondition());
+
+        final long[] onlyIf = bits.toMasks(List.of(Set.of("boots39", "enchantment39"), GOLD_FEATHER), false);
+        assertTrue(matchesAny(bits.getFingerprint(Set.of("boots39", "enchantment39", "mending")), onlyIf));
+        assertTrue(matchesAny(bits.getFingerprint(Set.of("golden_boots", "feather_falling")), onlyIf));
+        assertFalse(matchesAny(bits.getFingerprint(Set.of("boots39", "enchantment38")), onlyIf));
+        assertFalse(matchesAny(bits.getFingerprint(Set.of("leather_boots")), onlyIf));
+    }
+
+    @Test
+    void conditionsWithoutBitsNeverApplyTheRule() {
+        final List<Set<String>> conditions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) conditions.add(Set.of("boots" + i));
+        final BootBits<String> bits = new BootBits<>(List.of(conditions));
+        assertTrue(bits.isPerCondition());
+        assertTrue(bits.hasBit(Set.of("boots0")));
+        assertFalse(bits.hasBit(Set.of("boots99")));
+
+        final long fingerprint = bits.getFingerprint(Set.of("boots99"));
+        assertFalse(matchesAny(fingerprint, bits.toMasks(List.of(Set.of("boots99")), false)));
+        assertTrue(matchesAny(fingerprint, bits.toMasks(List.of(Set.of("boots99")), true)));
+        assertTrue(matchesAny(bits.getFingerprint(Set.of("boots0")), bits.toMasks(List.of(Set.of("boots0")), false)));
+        assertFalse(matchesAny(bits.getFingerprint(Set.of("boots1")), bits.toMasks(List.of(Set.of("boots0")), false)));
+    }
+
+    /**
+     * The way StepEngine matches masks.
+     */
+    private static boolean matchesAny(long fingerprint, long[] masks) {
+        for (final long mask : masks) {
+            if ((fingerprint & mask) == mask) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,218 @@
+package net.pcal.trailblazer;
+
+import com.google.gson.JsonObject;
+import net.pcal.trailblazer.TestSupport.Rule;
+import net.pcal.trailblazer.TrailblazerMetrics.EarlyExit;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static net.pcal.trailblazer.TestSupport.pos;
+import static net.pcal.trailblazer.TestSupport.ruleTable;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Several levels stepped on at once, each from its own thread, the way a server that ticks levels in
+ * parallel drives TrailblazerLevelService: each level's step history, engine, governor and TickThreadGuard
+ * are confined to its thread, while the metrics and the heat event ring are shared by all of them, and a
+ * stray thread keeps reporting steps to levels it doesn't tick.  Afterwards every shared count has to add up
+ * to what the levels counted themselves, and every level's step history has to be exactly what replaying
+ * its steps on one thread gives.
+ *
+ * StepTraceRecorder, the other thing levels share, needs real entities, so isn't covered here.
+ */
+class ConcurrentLevelsTest {
+
+    private static final int LEVELS = 4;
+    private static final int TICKS = 300;
+    private static final int STEPS_PER_TICK = 400;
+    private static final int STRAY_STEPS = 20_000;
+    private static final int SIDE = 64;
+    private static final int CACHE_SIZE = 2000; // less than SIDE * SIDE, so there's eviction too
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    private static final Rule WORN = new Rule("worn", 0, 5, 100, false);
+    private static final Rule TRAMPLED = new Rule("trampled", 1, 3, 100, true);
+    private static final StepEngine.RuleTable<Rule> RULES = ruleTable(new Rule[]{WORN}, new Rule[]{TRAMPLED});
+    private static final int STATES = 3; // the last has no rules
+
+    @Test
+    void stepsFromOtherThreadsAreTurnedAway() throws InterruptedException {
+        final TrailblazerMetrics metrics = new TrailblazerMetrics();
+        final TickThreadGuard guard = new TickThreadGuard(metrics);
+        assertTrue(guard.check());
+        final boolean[] checks = new boolean[2];
+        final Thread other = new Thread(() -> {
+            checks[0] = guard.check();
+            guard.claim();
+            checks[1] = guard.check();
+        });
+        other.start();
+        other.join();
+        assertFalse(checks[0]);
+        assertTrue(checks[1]);
+        // the level has moved to the other thread, so now this one is turned away
+        assertFalse(guard.check());
+        assertEquals(2, earlyExits(metrics, EarlyExit.WRONG_THREAD));
+    }
+
+    @Test
+    void levelsOnSeveralThreadsLoseNothing() throws InterruptedException {
+        final TrailblazerMetrics metrics = new TrailblazerMetrics();
+        final HeatEventRing ring = new HeatEventRing(1 << 12);
+        final Level[] levels = new Level[LEVELS];
+        for (int i = 0; i < LEVELS; i++) levels[i] = new Level(i + 1, metrics);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (final Level level : levels) {
+            threads.add(startThread(start, failure, () -> level.run(metrics, ring)));
+        }
+        threads.add(startThread(start, failure, () -> {
+            for (int i = 0; i < STRAY_STEPS; i++) {
+                levels[i % LEVELS].step(metrics, ring, pos(i % SIDE, 64, 0), 0, 0, 1);
+            }
+        }));
+
+        // drain the ring as the aggregator thread would, while the levels fill it
+        final long[] heat = new long[LEVELS + 1];
+        final HeatEventRing.EventHandler handler = (pos, event) -> heat[event >>> 16] += event & 0xFFFF;
+        long drained = 0;
+        start.countDown();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (final Thread thread : threads) {
+            while (thread.isAlive()) {
+                assertTrue(System.currentTimeMillis() < deadline, "timed out");
+                final int count = ring.drain(handler, 1024);
+                drained += count;
+                if (count == 0) thread.join(1);
+            }
+        }
+        drained += ring.drain(handler, Integer.MAX_VALUE);
+        assertNull(failure.get());
+
+        long calls = STRAY_STEPS, rejected = 0, admitted = 0, noRules = 0;
+        final long[] ruleHits = new long[2];
+        final List<StepHistoryStore> stores = new ArrayList<>();
+        for (final Level level : levels) {
+            calls += level.calls;
+            rejected += level.rejected;
+            admitted += level.calls - level.rejected;
+            noRules += level.outcomes[StepEngine.Outcome.NO_RULES.ordinal()];
+            ruleHits[0] += level.ruleHits[0];
+            ruleHits[1] += level.ruleHits[1];
+            stores.add(level.store);
+            assertEquals(level.heat, heat[level.dimension], "heat for level " + level.dimension);
+        }
+        final JsonObject json = metrics.toJson(stores, 0, 0);
+        assertEquals(calls, json.get("calls").getAsLong());
+        assertEquals(STRAY_STEPS, earlyExits(metrics, EarlyExit.WRONG_THREAD));
+        assertEquals(rejected, earlyExits(metrics, EarlyExit.SAMPLED_OUT) + earlyExits(metrics, EarlyExit.CHUNK_CAP) +
+                earlyExits(metrics, EarlyExit.OVER_BUDGET));
+        assertEquals(noRules, earlyExits(metrics, EarlyExit.NO_BLOCK_RULES));
+        assertEquals(ruleHits[0], json.getAsJsonObject("ruleHits").get(WORN.name()).getAsLong());
+        assertEquals(ruleHits[1], json.getAsJsonObject("ruleHits").get(TRAMPLED.name()).getAsLong());
+        assertEquals(admitted, ring.getPublishedCount() + ring.getDroppedCount());
+        assertEquals(ring.getPublishedCount(), drained);
+        assertTrue(rejected > 0, "the governor never turned a step away");
+
+        for (final Level level : levels) {
+            final Level replay = new Level(level.dimension, new TrailblazerMetrics());
+            replay.run(new TrailblazerMetrics(), null);
+            final String name = "level " + level.dimension;
+            assertArrayEquals(replay.outcomes, level.outcomes);
+            assertEquals(replay.store.size(), level.store.size(), name);
+            assertTrue(level.store.size() <= CACHE_SIZE, name);
+            assertEquals(replay.store.getEvictedCount(), level.store.getEvictedCount(), name);
+            assertEquals(replay.store.getExpiredCount(), level.store.getExpiredCount(), name);
+            for (int x = 0; x < SIDE; x++) {
+                for (int z = 0; z < SIDE; z++) {
+                    final long pos = pos(x, 64, z);
+                    assertEquals(replay.store.get(level.dimension, pos), level.store.get(level.dimension, pos), name);
+                }
+            }
+        }
+    }
+
+    /**
+     * One level's worth of what TrailblazerLevelService keeps, and what it does with a step, less Minecraft.
+     */
+    private static final class Level {
+
+        final int dimension;
+        final TickThreadGuard guard;
+        final StepHistoryStore store = new StepHistoryStore(CACHE_SIZE);
+        final StepEngine<Rule> engine = new StepEngine<>(this.store, (dimension, pos, stepCount, tick) -> {
+        });
+        final LoadGovernor governor = new LoadGovernor(0, 300, 30);
+        final long[] outcomes = new long[StepEngine.Outcome.values().length];
+        final long[] ruleHits = new long[2];
+        long calls = 0, rejected = 0, heat = 0;
+
+        Level(int dimension, TrailblazerMetrics metrics) {
+            this.dimension = dimension;
+            this.guard = new TickThreadGuard(metrics);
+        }
+
+        void run(TrailblazerMetrics metrics, HeatEventRing ring) {
+            this.guard.claim();
+            final Random random = new Random(this.dimension);
+            for (long tick = 1; tick <= TICKS; tick++) {
+                for (int i = 0; i < STEPS_PER_TICK; i++) {
+                    final long pos = pos(random.nextInt(SIDE), 64, random.nextInt(SIDE));
+                    step(metrics, ring, pos, random.nextInt(STATES), random.nextInt(8), tick);
+                }
+                this.guard.claim();
+                this.governor.tickEnded();
+                this.store.expire(tick, 1024, null);
+            }
+        }
+
+        void step(TrailblazerMetrics metrics, HeatEventRing ring, long pos, int stateId, int entityHash, long tick) {
+            metrics.countCall();
+            if (!this.guard.check()) return;
+            this.calls++;
+            final int weight = this.governor.admit(this.dimension, StepHistoryStore.chunkOf(pos));
+            if (weight == 0) {
+                metrics.countEarlyExit(this.governor.getLastRejection());
+                this.rejected++;
+                return;
+            }
+            if (ring != null && ring.offer(pos, this.dimension << 16 | weight)) this.heat += weight;
+            final StepEngine.Outcome outcome = this.engine.step(RULES, 0, stateId, 0, entityHash, weight,
+                    this.dimension, pos, tick);
+            this.outcomes[outcome.ordinal()]++;
+            switch (outcome) {
+                case NO_RULES -> metrics.countEarlyExit(EarlyExit.NO_BLOCK_RULES);
+                case BOOT_MISMATCH -> metrics.countEarlyExit(EarlyExit.BOOT_MISMATCH);
+                case COUNTED, CONVERTED -> {
+                    final Rule rule = this.engine.getLastRule();
+                    metrics.countRuleHit(rule.name());
+                    this.ruleHits[rule.index()]++;
+                }
+            }
+        }
+    }
+
+    private static Thread startThread(CountDownLatch start, AtomicReference<Throwable> failure, Runnable body) {
+        final Thread thread = new Thread(() -> {
+            try {
+                start.await();
+                body.run();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static long earlyExits(TrailblazerMetrics metrics, EarlyExit reason) {
+        return metrics.toJson(List.of(), 0, 0).getAsJsonObject("earlyExits").get(reason.name().toLowerCase()).getAsLong();
+    }
+}
@@ -0,0 +1,75 @@
+package net.pcal.trailblazer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiryWheelTest {
+
+    private static final int DIM = 1;
+
+    @Test
+    void cancelledKeysAreNeverVisited() {
+        final ExpiryWheel wheel = new ExpiryWheel();
+        final int[] nodes = new int[10];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = wheel.schedule(DIM, i, 5);
+        for (int i = 0; i < nodes.length; i += 2) wheel.cancel(nodes[i]);
+        assertEquals(5, wheel.size());
+        final List<Long> visited = new ArrayList<>();
+        wheel.advance(5, 100, (d, pos, tick) -> {
+            visited.add(pos);
+            return ExpiryWheel.NO_TICK;
+        });
+        assertEquals(List.of(9L, 7L, 5L, 3L, 1L), visited);
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * A visitor may cancel other keys, including ones in what's left of the bucket being visited, and the
+     * key it's visiting.
+     */
+    @Test
+    void visitorsMayCancel() {
+        final ExpiryWheel wheel = new ExpiryWheel();
+        final int[] nodes = new int[4];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = wheel.schedule(DIM, i, 5);
+        final List<Long> visited = new ArrayList<>();
+        wheel.advance(5, 100, (d, pos, tick) -> {
+            visited.add(pos);
+            if (pos == 3) wheel.cancel(nodes[2]);
+            if (pos == 1) wheel.cancel(nodes[1]);
+            return pos == 1 ? 1000 : ExpiryWheel.NO_TICK; // cancelling wins over rescheduling
+        });
+        assertEquals(List.of(3L, 1L, 0L), visited);
+        assertEquals(0, wheel.size());
+        wheel.advance(1000, 100, (d, pos, tick) -> fail("visited " + pos));
+    }
+
+    @Test
+    void ticksAlreadyPassedGoInTheNextBucket() {
+        final ExpiryWheel wheel = new ExpiryWheel();
+        wheel.advance(100, 100, (d, pos, tick) -> ExpiryWheel.NO_TICK);
+        wheel.schedule(DIM, 42, 50);
+        final long[] visitedAt = {ExpiryWheel.NO_TICK};
+        wheel.advance(101, 100, (d, pos, tick) -> {
+            visitedAt[0] = tick;
+            return ExpiryWheel.NO_TICK;
+        });
+        assertEquals(50, visitedAt[0]);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void clearShrinksTheArrays() {
+        final ExpiryWheel wheel = new ExpiryWheel();
+        final int initial = wheel.capacity();
+        for (int i = 0; i < 10_000; i++) wheel.schedule(DIM, i, i);
+        assertTrue(wheel.capacity() >= 10_000);
+        wheel.clear();
+        assertEquals(initial, wheel.capacity());
+        assertEquals(0, wheel.size());
+    }
+}
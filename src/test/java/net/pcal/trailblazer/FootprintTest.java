@@ -0,0 +1,64 @@
+package net.pcal.trailblazer;
+
+import net.minecraft.core.BlockPos;
+import net.pcal.trailblazer.TestSupport.Rule;
+import org.junit.jupiter.api.Test;
+
+import static net.pcal.trailblazer.TestSupport.pos;
+import static net.pcal.trailblazer.TestSupport.ruleTable;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Which block an entity is standing on, worked out the way TrailblazerLevelService does it, for blocks lower
+ * than a full block.  The collision heights are vanilla's.
+ */
+class FootprintTest {
+
+    private static final int DIMENSION = StepHistoryStore.NO_DIMENSION + 1;
+    private static final double FULL_BLOCK = 1.0;
+    private static final double BOTTOM_SLAB = 0.5;
+    private static final double TWO_SNOW_LAYERS = 2 / 16.0;
+
+    private static final int SNOW_LAYERS_2 = 1;
+    private static final Rule PACKED = new Rule("packed", 0, 1, 200, false);
+
+    @Test
+    void snowLayersRuleFires() {
+        final double y = 64 + TWO_SNOW_LAYERS;
+        final int blockY = TrailblazerEntity.getSupportingBlockY(y);
+        assertEquals(64, blockY);
+        assertTrue(Footprint.isStandingOn(y, blockY, TWO_SNOW_LAYERS));
+
+        final Footprint footprint = new Footprint();
+        footprint.begin(10.5, blockY, -2.5, 0.6f, TrailblazerEntity.NO_LAST_STEP, TrailblazerEntity.NO_LAST_STEP);
+        final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        assertTrue(footprint.next(pos));
+        assertEquals(pos(10, 64, -3), pos.asLong());
+        assertFalse(footprint.next(pos));
+
+        // a rule on { 'layers' : [ '2' ] } only, the way TrailblazerRuntimeConfig compiles it
+        final StepEngine<Rule> engine = new StepEngine<>(new StepHistoryStore(16), (d, p, count, t) -> {
+        });
+        assertEquals(StepEngine.Outcome.CONVERTED, engine.step(ruleTable(null, new Rule[]{PACKED}), 0,
+                SNOW_LAYERS_2, 0, 0, 1, DIMENSION, pos.asLong(), 1));
+    }
+
+    @Test
+    void slabsAndFullBlocksAreStoodOn() {
+        final double onSlab = 64 + BOTTOM_SLAB;
+        assertEquals(64, TrailblazerEntity.getSupportingBlockY(onSlab));
+        assertTrue(Footprint.isStandingOn(onSlab, 64, BOTTOM_SLAB));
+
+        assertEquals(63, TrailblazerEntity.getSupportingBlockY(64.0));
+        assertTrue(Footprint.isStandingOn(64.0, 63, FULL_BLOCK));
+    }
+
+    @Test
+    void jumpingIsNotStanding() {
+        final double y = 64.42;
+        final int blockY = TrailblazerEntity.getSupportingBlockY(y);
+        assertEquals(64, blockY);
+        assertFalse(Footprint.isStandingOn(y, blockY, TWO_SNOW_LAYERS));
+        assertFalse(Footprint.isStandingOn(y, blockY, BOTTOM_SLAB));
+    }
+}
@@ -0,0 +1,153 @@
+package net.pcal.trailblazer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static net.pcal.trailblazer.TestSupport.pos;
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeatmapExporterTest {
+
+    private static final int DIM = 1;
+    private static final int COLUMNS = 256;
+    private static final long A = pos(1, 64, 2);
+    private static final long B = pos(100, 64, -50);
+    private static final long C = pos(-7, 64, 300);
+
+    private Path dir;
+    private HeatmapExporter exporter;
+
+    @BeforeEach
+    void createExporter() throws IOException {
+        this.dir = Files.createTempDirectory("trailblazer-test");
+        this.exporter = new HeatmapExporter(this.dir, 3600);
+        this.exporter.dimensionLoaded(DIM, "minecraft:overworld");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        this.exporter.shutdown();
+        try (final Stream<Path> files = Files.walk(this.dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void eachSnapshotHoldsOnlyItsOwnInterval() throws IOException {
+        this.exporter.publishStep(DIM, A, 3);
+        this.exporter.publishStep(DIM, A, 2);
+        this.exporter.publishConversion(DIM, A);
+        this.exporter.publishStep(DIM, B, 1);
+        this.exporter.writeSnapshotsNow();
+        this.exporter.publishStep(DIM, C, 4);
+        this.exporter.publishStep(DIM, A, 1);
+        this.exporter.writeSnapshotsNow();
+
+        final List<Snapshot> snapshots = readAll();
+        assertEquals(2, snapshots.size());
+        final Snapshot first = snapshots.get(0), second = snapshots.get(1);
+        assertEquals(2, first.chunks.size());
+        assertEquals(5, steps(first, A));
+        assertEquals(1, conversions(first, A));
+        assertEquals(1, steps(first, B));
+        assertTrue(first.startMillis <= first.endMillis);
+        assertEquals(2, second.chunks.size());
+        assertEquals(4, steps(second, C));
+        // A's grid was forgotten, and whatever grid it got next came back zeroed
+        assertEquals(1, steps(second, A));
+        assertEquals(0, conversions(second, A));
+        assertEquals(first.endMillis, second.startMillis);
+        assertEquals(0, this.exporter.toJson().get("chunks").getAsInt());
+    }
+
+    /**
+     * Whether or not anyone reads the files in between, adding them up gives everything that was published.
+     */
+    @Test
+    void noCountsAreLostAcrossIntervals() throws IOException {
+        final Map<Long, Integer> published = new HashMap<>();
+        for (int interval = 0; interval < 3; interval++) {
+            if (interval != 1) { // nothing happens in the second interval
+                for (int i = 0; i < 100; i++) {
+                    final long pos = pos(i * 7 - 300, 64, interval * 40 + i);
+                    this.exporter.publishStep(DIM, pos, 1 + i % 3);
+                    published.merge(pos, 1 + i % 3, Integer::sum);
+                }
+                this.exporter.publishStep(DIM, A, 1);
+                published.merge(A, 1, Integer::sum);
+            }
+            this.exporter.writeSnapshotsNow();
+        }
+        final List<Snapshot> snapshots = readAll();
+        // a quiet interval isn't written, and the next snapshot covers it
+        assertEquals(2, snapshots.size());
+        assertEquals(snapshots.get(0).endMillis, snapshots.get(1).startMillis);
+        for (final Map.Entry<Long, Integer> e : published.entrySet()) {
+            int total = 0;
+            for (final Snapshot snapshot : snapshots) {
+                if (snapshot.chunks.containsKey(StepHistoryStore.chunkOf(e.getKey()))) total += steps(snapshot, e.getKey());
+            }
+            assertEquals((int) e.getValue(), total);
+        }
+    }
+
+    private record Snapshot(long startMillis, long endMillis, Map<Long, int[]> chunks) {
+    }
+
+    /**
+     * @return the dimension's snapshots, oldest first.
+     */
+    private List<Snapshot> readAll() throws IOException {
+        final List<Path> files;
+        try (final Stream<Path> list = Files.list(this.dir)) {
+            files = list.filter(p -> p.getFileName().toString().startsWith("minecraft_overworld-") &&
+                    p.getFileName().toString().endsWith(HeatmapExporter.FILE_EXTENSION)).sorted().toList();
+        }
+        final List<Snapshot> out = new ArrayList<>();
+        for (final Path file : files) out.add(read(file));
+        return out;
+    }
+
+    private static Snapshot read(Path file) throws IOException {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            assertEquals(HeatmapExporter.MAGIC, in.readInt());
+            assertEquals(HeatmapExporter.VERSION, in.readInt());
+            final long startMillis = in.readLong(), endMillis = in.readLong();
+            assertTrue(file.getFileName().toString().endsWith("-" + endMillis + HeatmapExporter.FILE_EXTENSION));
+            final Map<Long, int[]> chunks = new HashMap<>();
+            for (int count = StepTrace.readVarInt(in); count > 0; count--) {
+                final long chunkX = in.readInt(), chunkZ = in.readInt();
+                final int[] grid = new int[COLUMNS * 2];
+                for (int i = 0; i < grid.length; i++) grid[i] = StepTrace.readVarInt(in);
+                chunks.put(chunkX & 0xFFFFFFFFL | chunkZ << 32, grid);
+            }
+            assertEquals(-1, in.read());
+            return new Snapshot(startMillis, endMillis, chunks);
+        }
+    }
+
+    private static int steps(Snapshot snapshot, long pos) {
+        return snapshot.chunks.get(StepHistoryStore.chunkOf(pos))[column(pos)];
+    }
+
+    private static int conversions(Snapshot snapshot, long pos) {
+        return snapshot.chunks.get(StepHistoryStore.chunkOf(pos))[COLUMNS + column(pos)];
+    }
+
+    private static int column(long pos) {
+        return ((int) (pos >> 38) & 15) | ((int) (pos << 26 >> 38) & 15) << 4;
+    }
+}
@@ -0,0 +1,94 @@
+package net.pcal.trailblazer;
+
+import net.pcal.trailblazer.TrailblazerMetrics.EarlyExit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Engaging, sampling, capping and disengaging, with step handling times made up rather than measured.
+ */
+class LoadGovernorTest {
+
+    private static final int DIMENSION = 1;
+    private static final long THRESHOLD_NANOS = 1_000_000;
+    private static final int BUDGET = 100;
+
+    @Test
+    void engagesWhenATickGoesOverTheThreshold() {
+        final LoadGovernor governor = new LoadGovernor(THRESHOLD_NANOS, BUDGET, 0);
+        for (int i = 0; i < 10; i++) assertEquals(1, governor.admit(DIMENSION, i));
+        governor.addHookNanos(THRESHOLD_NANOS / 2);
+        governor.tickEnded();
+        assertFalse(governor.isEngaged());
+
+        governor.addHookNanos(THRESHOLD_NANOS + 1);
+        governor.tickEnded();
+        assertTrue(governor.isEngaged());
+    }
+
+    @Test
+    void firstEngagedTickIsAlreadySampled() {
+        final LoadGovernor governor = new LoadGovernor(THRESHOLD_NANOS, BUDGET, 0);
+        for (int i = 0; i < BUDGET * 4; i++) assertEquals(1, governor.admit(DIMENSION, i));
+        governor.addHookNanos(THRESHOLD_NANOS * 2);
+        governor.tickEnded();
+        assertTrue(governor.isEngaged());
+
+        int admitted = 0, sampledOut = 0;
+        for (int i = 0; i < BUDGET * 4; i++) {
+            final int weight = governor.admit(DIMENSION, i);
+            if (weight > 0) {
+                assertEquals(4, weight);
+                admitted++;
+            } else if (governor.getLastRejection() == EarlyExit.SAMPLED_OUT) {
+                sampledOut++;
+            } else {
+                assertEquals(EarlyExit.OVER_BUDGET, governor.getLastRejection());
+            }
+        }
+        assertTrue(admitted > BUDGET / 2 && admitted <= BUDGET, "admitted " + admitted);
+        assertTrue(sampledOut > BUDGET * 2, "sampled out " + sampledOut);
+    }
+
+    @Test
+    void chunkCapsStartOverEachTick() {
+        final LoadGovernor governor = new LoadGovernor(0, 0, 3);
+        for (int tick = 0; tick < 3; tick++) {
+            // enough chunks that the counts have to grow
+            for (long chunk = 0; chunk < 1000; chunk++) {
+                for (int i = 0; i < 3; i++) assertEquals(1, governor.admit(DIMENSION, chunk));
+                assertEquals(0, governor.admit(DIMENSION, chunk));
+                assertEquals(EarlyExit.CHUNK_CAP, governor.getLastRejection());
+            }
+            governor.tickEnded();
+        }
+    }
+
+    @Test
+    void disengagesAfterQuietTicks() {
+        final LoadGovernor governor = new LoadGovernor(THRESHOLD_NANOS, BUDGET, 0);
+        governor.addHookNanos(THRESHOLD_NANOS * 2);
+        governor.tickEnded();
+        assertTrue(governor.isEngaged());
+
+        // quiet in what the ticks cost, but not in what they would have without sampling
+        for (int tick = 0; tick < LoadGovernor.DISENGAGE_TICKS * 2; tick++) {
+            for (int i = 0; i < BUDGET * 8; i++) governor.admit(DIMENSION, i);
+            governor.addHookNanos(THRESHOLD_NANOS / 4);
+            governor.tickEnded();
+            assertTrue(governor.isEngaged());
+        }
+
+        // a loud tick without steps, so the quiet ticks aren't sampled
+        governor.addHookNanos(THRESHOLD_NANOS);
+        governor.tickEnded();
+        for (int tick = 1; tick <= LoadGovernor.DISENGAGE_TICKS; tick++) {
+            for (int i = 0; i < 10; i++) governor.admit(DIMENSION, i);
+            governor.addHookNanos(THRESHOLD_NANOS / 4);
+            governor.tickEnded();
+            assertEquals(tick < LoadGovernor.DISENGAGE_TICKS, governor.isEngaged());
+        }
+        assertEquals(1, governor.admit(DIMENSION, 0));
+    }
+}
@@ -0,0 +1,187 @@
+package net.pcal.trailblazer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static net.pcal.trailblazer.TestSupport.pos;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Regrowth scheduling against a make-believe level whose block states are strings.
+ */
+class RegrowthScheduleTest {
+
+    private static final int BUCKET_TICKS = 1 << RegrowthSchedule.BUCKET_SHIFT;
+    private static final int IDLE_TICKS = 1000;
+    private static final long A = pos(1, 64, 2);
+    private static final long B = pos(100, 64, -50);
+
+    private Level level;
+    private RegrowthSchedule<String> schedule;
+    private int changes;
+    private long tick;
+
+    @BeforeEach
+    void createSchedule() {
+        this.level = new Level();
+        this.schedule = new RegrowthSchedule<>(() -> this.changes++);
+        this.changes = 0;
+        this.tick = 0;
+    }
+
+    @Test
+    void blocksRegrowWithinABucketOfTheirIdlePeriod() {
+        convert(A, 0);
+        convert(B, 500);
+        tickThrough(IDLE_TICKS - BUCKET_TICKS - 1);
+        assertEquals("dirt_path", this.level.states.get(A));
+
+        tickThrough(IDLE_TICKS + BUCKET_TICKS);
+        assertEquals("grass_block", this.level.states.get(A));
+        assertEquals("dirt_path", this.level.states.get(B));
+        assertEquals(1, this.schedule.size());
+
+        tickThrough(500 + IDLE_TICKS + BUCKET_TICKS);
+        assertEquals("grass_block", this.level.states.get(B));
+        assertEquals(0, this.schedule.size());
+        assertEquals(2, this.schedule.getRegrownCount());
+    }
+
+    @Test
+    void steppingOnABlockPutsItOff() {
+        convert(A, 0);
+        for (int i = 1; i <= 6; i++) {
+            tickThrough(i * IDLE_TICKS / 2);
+            this.schedule.touch(A, this.tick);
+        }
+        assertEquals("dirt_path", this.level.states.get(A));
+
+        tickThrough(this.tick + IDLE_TICKS + BUCKET_TICKS);
+        assertEquals("grass_block", this.level.states.get(A));
+    }
+
+    @Test
+    void workIsBoundedPerTick() {
+        for (int x = 0; x < 10; x++) convert(pos(x, 64, 0), 0);
+        final long due = IDLE_TICKS + BUCKET_TICKS;
+        this.schedule.tick(due, 3, this.level);
+        assertEquals(3, this.schedule.getRegrownCount());
+        this.schedule.tick(due + 1, 3, this.level);
+        assertEquals(6, this.schedule.getRegrownCount());
+        this.schedule.tick(due + 2, 100, this.level);
+        assertEquals(10, this.schedule.getRegrownCount());
+    }
+
+    @Test
+    void blocksInUnloadedChunksWaitForTheChunk() {
+        convert(A, 0);
+        convert(B, 0);
+        this.level.unloaded.add(StepHistoryStore.chunkOf(A));
+        tickThrough(IDLE_TICKS * 3);
+        assertEquals("dirt_path", this.level.states.get(A));
+        assertEquals("grass_block", this.level.states.get(B));
+        assertEquals(1, this.schedule.getParkedChunkCount());
+
+        // nothing more happens to it until the chunk is back, however long that takes
+        tickThrough(IDLE_TICKS * 10);
+        assertEquals(1, this.schedule.getParkedChunkCount());
+
+        this.level.unloaded.clear();
+        this.schedule.chunkLoaded(StepHistoryStore.chunkOf(A));
+        assertEquals(0, this.schedule.getParkedChunkCount());
+        this.schedule.tick(IDLE_TICKS * 10 + 1, Integer.MAX_VALUE, this.level);
+        assertEquals("grass_block", this.level.states.get(A));
+    }
+
+    @Test
+    void blocksChangedByOthersAreLeftAlone() {
+        convert(A, 0);
+        this.level.states.put(A, "cobblestone");
+        tickThrough(IDLE_TICKS * 2);
+        assertEquals("cobblestone", this.level.states.get(A));
+        assertEquals(1, this.schedule.getDiscardedCount());
+        assertEquals(0, this.schedule.getRegrownCount());
+        assertEquals(0, this.schedule.size());
+    }
+
+    @Test
+    void regrowthFollowsTheChain() {
+        this.level.regrowsTo.put("coarse_dirt", "dirt");
+        this.level.states.put(A, "dirt_path");
+        this.schedule.schedule(A, "dirt_path", "coarse_dirt", IDLE_TICKS, 0);
+        tickThrough(IDLE_TICKS + BUCKET_TICKS);
+        assertEquals("coarse_dirt", this.level.states.get(A));
+        assertEquals(1, this.schedule.size());
+
+        tickThrough(IDLE_TICKS * 2 + BUCKET_TICKS * 2);
+        assertEquals("dirt", this.level.states.get(A));
+        assertEquals(0, this.schedule.size());
+    }
+
+    @Test
+    void changesAreReportedButTouchesAreNot() {
+        convert(A, 0);
+        final int afterSchedule = this.changes;
+        assertTrue(afterSchedule > 0);
+        this.schedule.touch(A, 10);
+        assertEquals(afterSchedule, this.changes);
+        tickThrough(IDLE_TICKS * 2);
+        assertTrue(this.changes > afterSchedule);
+    }
+
+    @Test
+    void restoredBlocksAlreadyDueRegrowRightAway() {
+        final long now = IDLE_TICKS * 10;
+        this.schedule.rewind(IDLE_TICKS);
+        this.level.states.put(A, "dirt_path");
+        this.schedule.schedule(A, "dirt_path", "grass_block", IDLE_TICKS, 0);
+        this.schedule.tick(now, Integer.MAX_VALUE, this.level);
+        assertEquals("grass_block", this.level.states.get(A));
+    }
+
+    private void convert(long pos, long now) {
+        this.level.states.put(pos, "dirt_path");
+        this.schedule.schedule(pos, "dirt_path", "grass_block", IDLE_TICKS, now);
+    }
+
+    private void tickThrough(long lastTick) {
+        for (; this.tick <= lastTick; this.tick++) this.schedule.tick(this.tick, Integer.MAX_VALUE, this.level);
+    }
+
+    private static class Level implements RegrowthSchedule.Blocks<String> {
+
+        final Map<Long, String> states = new HashMap<>();
+        final Set<Long> unloaded = new HashSet<>();
+        final Map<String, String> regrowsTo = new HashMap<>();
+
+        @Override
+        public boolean isLoaded(long pos) {
+            return !this.unloaded.contains(StepHistoryStore.chunkOf(pos));
+        }
+
+        @Override
+        public boolean isUnchanged(long pos, String expectedState) {
+            return expectedState.equals(this.states.get(pos));
+        }
+
+        @Override
+        public void setState(long pos, String state) {
+            this.states.put(pos, state);
+        }
+
+        @Override
+        public String getRegrowState(String state) {
+            return this.regrowsTo.get(state);
+        }
+
+        @Override
+        public int getRegrowTicks(String state) {
+            return IDLE_TICKS;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package net.pcal.trailblazer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static net.pcal.trailblazer.TestSupport.pos;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Crash consistency of StepHistoryFile.  A crash is simulated by copying the file while it's still open:
+ * the copy sees whatever has reached the file (mapped writes included) and nothing that commit() or close()
+ * would have done afterwards.
+ */
+class StepHistoryFileTest {
+
+    private static final int DIM = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 24;
+    private static final int NO_TIMEOUT = -1;
+
+    private static final long A = pos(1, 64, 1);
+    private static final long B = pos(2, 64, 1);
+    private static final long C = pos(3, 64, 1);
+    private static final long CHUNK = StepHistoryStore.chunkOf(A);
+
+    private Path dir;
+    private Path path;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        this.dir = Files.createTempDirectory("trailblazer-test");
+        this.path = this.dir.resolve("overworld.steps");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (final Stream<Path> files = Files.walk(this.dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void committedRecordsSurviveReopening() throws IOException {
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            file.append(A, 1, 10);
+            file.append(B, 2, 20);
+            file.append(A, 3, 30);
+            file.append(C, 1, 40);
+            file.append(C, 0, 50); // forgotten
+            file.commit();
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            assertEquals(Map.of(A, "3@30", B, "2@20"), read(file));
+        }
+    }
+
+    @Test
+    void uncommittedRecordsAreIgnoredAfterACrash() throws IOException {
+        final Path crashed = this.dir.resolve("crashed.steps");
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            file.append(A, 1, 10);
+            file.commit();
+            file.append(A, 5, 20);
+            file.append(B, 2, 20);
+            Files.copy(this.path, crashed);
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(crashed)) {
+            assertEquals(Map.of(A, "1@10"), read(file));
+            // and it carries on from the committed view
+            file.append(C, 4, 30);
+            file.commit();
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(crashed)) {
+            assertEquals(Map.of(A, "1@10", C, "4@30"), read(file));
+        }
+    }
+
+    @Test
+    void tornTailIsIgnored() throws IOException {
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            file.append(A, 1, 10);
+            file.append(B, 2, 20);
+            file.append(C, 3, 30);
+            file.commit();
+        }
+        // the header says three records are committed, but the last one only made it halfway
+        try (final RandomAccessFile raf = new RandomAccessFile(this.path.toFile(), "rw")) {
+            raf.setLength(HEADER_SIZE + 2 * RECORD_SIZE + RECORD_SIZE / 2);
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            assertEquals(Map.of(A, "1@10", B, "2@20"), read(file));
+            file.append(C, 7, 70);
+            file.commit();
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            assertEquals(Map.of(A, "1@10", B, "2@20", C, "7@70"), read(file));
+        }
+    }
+
+    @Test
+    void readingStopsAtABadChecksum() throws IOException {
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            file.append(A, 1, 10);
+            file.append(B, 2, 20);
+            file.append(C, 3, 30);
+            file.commit();
+        }
+        try (final RandomAccessFile raf = new RandomAccessFile(this.path.toFile(), "rw")) {
+            final long stepCountOffset = HEADER_SIZE + RECORD_SIZE + 16;
+            raf.seek(stepCountOffset);
+            raf.writeInt(99);
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            // B is corrupt and C can't be trusted to follow it
+            assertEquals(Map.of(A, "1@10"), read(file));
+            file.append(B, 4, 40);
+            file.commit();
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            assertEquals(Map.of(A, "1@10", B, "4@40"), read(file));
+        }
+    }
+
+    @Test
+    void compactionKeepsTheCommittedView() throws IOException {
+        final Map<Long, String> expected = new HashMap<>();
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            // enough superseded records to be worth compacting
+            for (int round = 1; round <= 40; round++) {
+                for (int x = 0; x < 1000; x++) {
+                    final long pos = pos(x, 64, x % 7);
+                    final int stepCount = x % 10 == 0 ? 0 : round;
+                    file.append(pos, stepCount, round);
+                    if (stepCount == 0) {
+                        expected.remove(pos);
+                    } else {
+                        expected.put(pos, stepCount + "@" + round);
+                    }
+                }
+            }
+            file.commit();
+            final long before = Files.size(file.getPath());
+            file.compactIfNeeded(40, NO_TIMEOUT);
+            assertTrue(Files.size(file.getPath()) < before);
+            assertEquals(expected, readAll(file));
+            assertEquals(0, file.getIndexedCount());
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            assertEquals(expected, readAll(file));
+            // the compacted records are found by searching the file, not held in memory
+            assertEquals(0, file.getIndexedCount());
+        }
+    }
+
+    /**
+     * Each compaction writes a new generation of the file and switches to it without moving or replacing the
+     * one that's still mapped, so doing it twice running (which Windows would refuse if it did) just works,
+     * and old generations are cleaned up.
+     */
+    @Test
+    void compactingTwiceRunning() throws IOException {
+        final Map<Long, String> expected = new HashMap<>();
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            for (int compaction = 1; compaction <= 2; compaction++) {
+                for (int round = 0; round < 20; round++) {
+                    for (int x = 0; x < 1000; x++) {
+                        final long pos = pos(x, 64, compaction * 5 + x % 5);
+                        file.append(pos, round + 1, compaction * 100 + round);
+                        expected.put(pos, (round + 1) + "@" + (compaction * 100 + round));
+                    }
+                }
+                file.commit();
+                final Path before = file.getPath();
+                file.compactIfNeeded(compaction * 100 + 20, NO_TIMEOUT);
+                assertNotEquals(before, file.getPath());
+                assertFalse(Files.exists(before));
+                assertEquals(expected, readAll(file));
+            }
+            // and it carries on appending to the new generation
+            file.append(A, 9, 300);
+            expected.put(A, "9@300");
+            file.commit();
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            assertEquals(expected, readAll(file));
+        }
+        try (final Stream<Path> files = Files.list(this.dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void compactionAgesOutTimedOutHistories() throws IOException {
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            file.append(A, 1, 10);
+            file.append(B, 2, 20_000);
+            for (int i = 0; i < 20_000; i++) file.append(C, 1 + i, 1000 + i);
+            file.commit();
+            file.compactIfNeeded(21_000, 1200);
+            assertEquals(Map.of(B, "2@20000", C, "20000@20999"), read(file));
+            file.compactIfNeeded(21_000, 1200); // too soon, nothing to do
+            assertEquals(Map.of(B, "2@20000", C, "20000@20999"), read(file));
+        }
+    }
+
+    /**
+     * A crash while writing the next generation leaves it without a header, so the previous one is still
+     * used, and the partial one doesn't stop the next compaction.
+     */
+    @Test
+    void crashDuringCompactionLeavesTheOriginal() throws IOException {
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            file.append(A, 1, 10);
+            file.append(B, 2, 20);
+            file.commit();
+        }
+        final Path partial = this.path.resolveSibling(this.path.getFileName() + ".1");
+        Files.write(partial, new byte[HEADER_SIZE + RECORD_SIZE]);
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            assertEquals(this.path, file.getPath());
+            assertEquals(Map.of(A, "1@10", B, "2@20"), read(file));
+            for (int i = 0; i < 20_000; i++) file.append(C, 1 + i, i);
+            file.commit();
+            file.compactIfNeeded(20_000, NO_TIMEOUT);
+            assertEquals(partial, file.getPath());
+            assertFalse(Files.exists(this.path));
+        }
+        try (final StepHistoryFile file = StepHistoryFile.open(this.path)) {
+            assertEquals(Map.of(A, "1@10", B, "2@20", C, "20000@19999"), read(file));
+        }
+    }
+
+    @Test
+    void refusesFilesThatArentStepHistory() throws IOException {
+        Files.write(this.path, new byte[HEADER_SIZE + RECORD_SIZE]);
+        assertThrows(IOException.class, () -> StepHistoryFile.open(this.path));
+    }
+
+    private static Map<Long, String> read(StepHistoryFile file) {
+        return toMap(file.readChunk(DIM, CHUNK));
+    }
+
+    private static Map<Long, String> readAll(StepHistoryFile file) {
+        final Map<Long, String> out = new HashMap<>();
+        for (int chunkX = 0; chunkX < 63; chunkX++) {
+            out.putAll(toMap(file.readChunk(DIM, StepHistoryStore.chunkOf(pos(chunkX * 16, 64, 0)))));
+        }
+        return out;
+    }
+
+    private static Map<Long, String> toMap(StepHistoryPersistence.LoadedChunk chunk) {
+        final Map<Long, String> out = new HashMap<>();
+        if (chunk == null) return out;
+        assertEquals(DIM, chunk.dimension());
+        for (int i = 0; i < chunk.positions().length; i++) {
+            out.put(chunk.positions()[i], chunk.stepCounts()[i] + "@" + chunk.lastStepTicks()[i]);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,87 @@
+package net.pcal.trailblazer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static net.pcal.trailblazer.TestSupport.pos;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StepHistoryPersistenceTest {
+
+    private static final int DIM = 1;
+    private static final int TIMEOUT_TICKS = 1200;
+    private static final long A = pos(1, 64, 1);
+    private static final long B = pos(2, 64, 1);
+    private static final long CHUNK = StepHistoryStore.chunkOf(A);
+
+    private Path dir;
+    private Path path;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        this.dir = Files.createTempDirectory("trailblazer-test");
+        this.path = this.dir.resolve("overworld.steps");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (final Stream<Path> files = Files.walk(this.dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void historySurvivesARestart() throws InterruptedException {
+        save();
+        final StepHistoryPersistence persistence = new StepHistoryPersistence(60);
+        persistence.openDimension(DIM, this.path);
+        persistence.chunkLoaded(DIM, CHUNK);
+        final StepHistoryStore store = new StepHistoryStore(100);
+        awaitRestore(persistence, store);
+        persistence.shutdown();
+        assertEquals(3, store.get(DIM, A));
+        assertEquals(0, store.get(DIM, B));
+    }
+
+    @Test
+    void stepsWhileLoadingWinOverSavedHistory() throws InterruptedException {
+        save();
+        final StepHistoryPersistence persistence = new StepHistoryPersistence(60);
+        persistence.openDimension(DIM, this.path);
+        persistence.chunkLoaded(DIM, CHUNK);
+        final StepHistoryStore store = new StepHistoryStore(100);
+        persistence.recordChange(DIM, A, store.increment(DIM, A, 20, TIMEOUT_TICKS, 0), 20);
+        awaitRestore(persistence, store);
+        persistence.shutdown();
+        assertEquals(1, store.get(DIM, A));
+    }
+
+    private void save() {
+        final StepHistoryPersistence persistence = new StepHistoryPersistence(60);
+        persistence.openDimension(DIM, this.path);
+        persistence.recordChange(DIM, A, 3, 10);
+        persistence.recordChange(DIM, B, 2, 10);
+        persistence.recordChange(DIM, B, 0, 11);
+        persistence.tickEnded(new StepHistoryStore(100), 11, TIMEOUT_TICKS);
+        persistence.shutdown();
+    }
+
+    /**
+     * Tick until the chunk's saved history has been read and restored into the store.
+     */
+    private static void awaitRestore(StepHistoryPersistence persistence, StepHistoryStore store) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            persistence.tickEnded(store, 20, TIMEOUT_TICKS);
+            if (!persistence.isLoading(DIM, CHUNK)) return;
+            Thread.sleep(10);
+        }
+        fail("chunk history never arrived");
+    }
+}
@@ -0,0 +1,215 @@
+package net.pcal.trailblazer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static net.pcal.trailblazer.StepHistoryStore.NO_RULE;
+import static net.pcal.trailblazer.TestSupport.pos;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StepHistoryStoreTest {
+
+    private static final int DIM = StepHistoryStore.NO_DIMENSION + 1;
+    private static final int OTHER_DIM = DIM + 1;
+
+    @Test
+    void incrementGetRemove() {
+        final StepHistoryStore store = new StepHistoryStore(100);
+        final long p = pos(10, 64, -3);
+        assertEquals(0, store.get(DIM, p));
+        assertEquals(1, store.increment(DIM, p, 0, -1, 0));
+        assertEquals(2, store.increment(DIM, p, 1, -1, 0));
+        assertEquals(5, store.increment(DIM, p, 2, -1, 0, 3));
+        assertEquals(5, store.get(DIM, p));
+        assertEquals(1, store.size());
+        assertTrue(store.remove(DIM, p));
+        assertFalse(store.remove(DIM, p));
+        assertEquals(0, store.get(DIM, p));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void countStartsOverAfterTimeout() {
+        final StepHistoryStore store = new StepHistoryStore(100);
+        final long p = pos(0, 64, 0);
+        store.increment(DIM, p, 100, 20, 0);
+        assertEquals(2, store.increment(DIM, p, 120, 20, 0));
+        assertEquals(1, store.increment(DIM, p, 141, 20, 0));
+    }
+
+    @Test
+    void samePositionInTwoDimensionsIsTwoEntries() {
+        final StepHistoryStore store = new StepHistoryStore(100);
+        final long p = pos(7, 70, 7);
+        store.increment(DIM, p, 0, -1, 0, 3);
+        store.increment(OTHER_DIM, p, 0, -1, 0, 5);
+        assertEquals(3, store.get(DIM, p));
+        assertEquals(5, store.get(OTHER_DIM, p));
+        assertEquals(2, store.size());
+        store.remove(DIM, p);
+        assertEquals(0, store.get(DIM, p));
+        assertEquals(5, store.get(OTHER_DIM, p));
+        store.increment(DIM, p, 0, -1, 0);
+        store.retireChunk(OTHER_DIM, StepHistoryStore.chunkOf(p));
+        assertEquals(1, store.get(DIM, p));
+        assertEquals(0, store.get(OTHER_DIM, p));
+    }
+
+    @Test
+    void evictionNeverExceedsMaxSize() {
+        final int maxSize = 100;
+        final StepHistoryStore store = new StepHistoryStore(maxSize);
+        for (int i = 0; i < 1000; i++) {
+            store.increment(DIM, pos(i, 64, i * 31), i, -1, 0);
+            assertTrue(store.size() <= maxSize);
+        }
+        assertEquals(maxSize, store.size());
+        assertEquals(900, store.getEvictedCount());
+        store.setMaxSize(10);
+        assertEquals(10, store.size());
+    }
+
+    @Test
+    void evictionGivesSteppedOnEntriesASecondChance() {
+        final StepHistoryStore store = new StepHistoryStore(100);
+        for (int i = 0; i < 100; i++) store.increment(DIM, pos(i, 64, 0), 0, -1, 0);
+        // step on the first half again, then make room for 50 more
+        for (int i = 0; i < 50; i++) store.increment(DIM, pos(i, 64, 0), 1, -1, 0);
+        for (int i = 0; i < 50; i++) store.increment(DIM, pos(i, 64, 1000), 2, -1, 0);
+        for (int i = 0; i < 50; i++) assertEquals(2, store.get(DIM, pos(i, 64, 0)), "entry " + i);
+        assertEquals(50, store.getEvictedCount());
+    }
+
+    /**
+     * Keeps a small table three quarters full, so that probe sequences are long and wrap around, and checks
+     * every key after each insert and remove.  A mistake in the backward shift on removal shows up as a key
+     * that can no longer be found or one that comes back with another key's count.
+     */
+    @Test
+    void removalUnderCollisionsMatchesAMap() {
+        final int maxSize = 12; // the table stays at its minimum of 16 slots
+        final StepHistoryStore store = new StepHistoryStore(maxSize);
+        final Random random = new Random(42);
+        final long[] keys = new long[40];
+        for (int i = 0; i < keys.length; i++) keys[i] = pos(random.nextInt(64), 64, random.nextInt(64));
+        final Map<Long, Integer> expected = new HashMap<>();
+        for (int op = 0; op < 100_000; op++) {
+            final long key = keys[random.nextInt(keys.length)];
+            final int dimension = random.nextBoolean() ? DIM : OTHER_DIM;
+            final long mapKey = key * 31 + dimension;
+            if (expected.size() < maxSize && random.nextInt(3) > 0) {
+                final int weight = 1 + random.nextInt(3);
+                expected.merge(mapKey, weight, Integer::sum);
+                assertEquals((int) expected.get(mapKey), store.increment(dimension, key, op, -1, 0, weight));
+            } else {
+                assertEquals(expected.remove(mapKey) != null, store.remove(dimension, key));
+            }
+            assertEquals(expected.size(), store.size());
+            for (final long k : keys) {
+                assertEquals((int) expected.getOrDefault(k * 31 + DIM, 0), store.get(DIM, k));
+                assertEquals((int) expected.getOrDefault(k * 31 + OTHER_DIM, 0), store.get(OTHER_DIM, k));
+            }
+        }
+        assertEquals(0, store.getEvictedCount());
+    }
+
+    @Test
+    void retiredChunksAreForgotten() {
+        final StepHistoryStore store = new StepHistoryStore(100);
+        final long inChunk = pos(3, 64, 3), sameChunk = pos(15, 80, 0), nextChunk = pos(16, 64, 3);
+        store.increment(DIM, inChunk, 0, -1, 0);
+        store.increment(DIM, sameChunk, 0, -1, 0);
+        store.increment(DIM, nextChunk, 0, -1, 0);
+        store.retireChunk(DIM, StepHistoryStore.chunkOf(inChunk));
+        assertEquals(0, store.get(DIM, inChunk));
+        assertEquals(0, store.get(DIM, sameChunk));
+        assertEquals(1, store.get(DIM, nextChunk));
+        assertEquals(1, store.increment(DIM, inChunk, 1, -1, 0));
+    }
+
+    @Test
+    void expiredEntriesAreDropped() {
+        final StepHistoryStore store = new StepHistoryStore(100);
+        final long stale = pos(1, 64, 1), fresh = pos(2, 64, 2);
+        store.increment(DIM, stale, 0, 20, 0);
+        store.increment(DIM, fresh, 0, 20, 0);
+        store.increment(DIM, fresh, 15, 20, 0);
+        final Map<Long, Integer> dropped = new HashMap<>();
+        store.expire(25, 1024, (d, p) -> dropped.merge(p, d, Integer::sum));
+        assertEquals(Map.of(stale, DIM), dropped);
+        assertEquals(0, store.get(DIM, stale));
+        assertEquals(2, store.get(DIM, fresh));
+        assertEquals(1, store.getExpiredCount());
+    }
+
+    /**
+     * Entries that go away before they expire take their wheel nodes with them, however they go.
+     */
+    @Test
+    void removedEntriesLeaveTheWheel() {
+        final StepHistoryStore store = new StepHistoryStore(1000);
+        for (int i = 0; i < 1000; i++) store.increment(DIM, pos(i, 64, 0), 0, 20_000, i % 2);
+        assertEquals(1000, store.getScheduledCount());
+        store.setMaxSize(800); // evicts 200
+        assertEquals(800, store.getScheduledCount());
+        for (int i = 0; i < 100; i++) store.remove(DIM, pos(i, 64, 0));
+        store.remapRules(new int[]{0, NO_RULE}, null); // drops every odd one
+        assertEquals(store.size(), store.getScheduledCount());
+        // retired entries are reclaimed lazily, at the latest when their nodes come due, and don't count as expired
+        for (int i = 0; i < 1000; i += 16) store.retireChunk(DIM, StepHistoryStore.chunkOf(pos(i, 64, 0)));
+        store.expire(20_001, 1024, null);
+        assertEquals(0, store.size());
+        assertEquals(0, store.getScheduledCount());
+        assertEquals(0, store.getExpiredCount());
+    }
+
+    /**
+     * A restored history can be due before the wheel's cursor; it expires on the next tick rather than a
+     * revolution later.
+     */
+    @Test
+    void historiesRestoredPastTheirTimeoutExpireRightAway() {
+        final StepHistoryStore store = new StepHistoryStore(100);
+        store.expire(10_000, 1024, null);
+        store.restore(DIM, pos(1, 64, 1), 3, 5_000, 100);
+        store.expire(10_001, 1024, null);
+        assertEquals(0, store.size());
+        assertEquals(1, store.getExpiredCount());
+    }
+
+    @Test
+    void remapRulesKeepsRenumberedAndDropsRemoved() {
+        final StepHistoryStore store = new StepHistoryStore(100);
+        final long a = pos(1, 64, 0), b = pos(2, 64, 0), restored = pos(3, 64, 0);
+        store.increment(DIM, a, 0, -1, 0);
+        store.increment(DIM, b, 0, -1, 1);
+        store.restore(DIM, restored, 4, 0, -1);
+        store.remapRules(new int[]{NO_RULE, 0}, null);
+        assertEquals(0, store.get(DIM, a));
+        assertEquals(1, store.get(DIM, b));
+        assertEquals(4, store.get(DIM, restored));
+    }
+
+    /**
+     * The point of the store is that a full one is a handful of arrays rather than objects per entry.  Fills
+     * it and measures what's reachable from it; the bytes per entry are what the class comment quotes.
+     */
+    @Test
+    void footprintIsArraysNotObjectsPerEntry() {
+        // just under the load factor at which the table doubles, and just over it: the best and worst case
+        for (final int entries : new int[]{98_000, 99_000}) {
+            final StepHistoryStore store = new StepHistoryStore(entries);
+            for (int i = 0; i < entries; i++) store.increment(DIM, pos(i % 1000, 64, i / 1000), i, 1200, 0);
+            final TestSupport.Footprint footprint = TestSupport.measure(store);
+            final long bytesPerEntry = footprint.bytes() / entries;
+            System.out.println("StepHistoryStore, " + entries + " entries: " + footprint.objects() + " objects, " +
+                    bytesPerEntry + " bytes per entry");
+            // arrays and a map of chunk partitions; nothing per entry
+            assertTrue(footprint.objects() < 100, "objects: " + footprint.objects());
+            assertTrue(bytesPerEntry < 230, "bytes per entry: " + bytesPerEntry);
+        }
+    }
+}
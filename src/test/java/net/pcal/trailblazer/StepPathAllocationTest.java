@@ -0,0 +1,130 @@
+package net.pcal.trailblazer;
+
+import net.pcal.trailblazer.TestSupport.Rule;
+import net.pcal.trailblazer.TrailblazerMetrics.EarlyExit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static net.pcal.trailblazer.TestSupport.pos;
+import static net.pcal.trailblazer.TestSupport.ruleTable;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The step path must not allocate once warmed up.  StepPathBenchmark shows that as gc.alloc.rate.norm, but
+ * only when someone runs it; this checks it on every build, by counting the bytes the test thread allocates
+ * while it takes what TrailblazerLevelService.stepOn does with a step (the governor, the heatmap publish,
+ * StepEngine.step and the metrics) and expires history at the end of every tick.
+ *
+ * The store is smaller than the number of positions stepped on, so eviction is covered too.
+ */
+class StepPathAllocationTest {
+
+    private static final int DIMENSION = StepHistoryStore.NO_DIMENSION + 1;
+    private static final int STEPS_PER_TICK = 64;
+    private static final int MAX_EXPIRATIONS_PER_TICK = 1024;
+    private static final int STREAM_LENGTH = 1 << 16;
+    private static final int WARMUP_STEPS = 2_000_000;
+    private static final int MEASURED_STEPS = 500_000;
+
+    private static final Rule WORN = new Rule("worn", 0, 5, 200, false);
+    private static final Rule BOOTED = new Rule("booted", 1, 3, 200, false, new long[]{1}, new long[0]);
+    private static final Rule TRAMPLED = new Rule("trampled", 2, 4, 200, true);
+    private static final StepEngine.RuleTable<Rule> RULES = ruleTable(
+            new Rule[]{WORN}, new Rule[]{BOOTED, WORN}, new Rule[]{TRAMPLED}, null);
+
+    private final long[] positions = new long[STREAM_LENGTH];
+    private final int[] stateIds = new int[STREAM_LENGTH];
+    private final long[] bootFingerprints = new long[STREAM_LENGTH];
+    private final int[] entityHashes = new int[STREAM_LENGTH];
+    private Path dir;
+    private HeatmapExporter heatmap;
+
+    @BeforeEach
+    void createInputs() throws IOException {
+        final Random random = new Random(42);
+        for (int i = 0; i < STREAM_LENGTH; i++) {
+            this.positions[i] = pos(random.nextInt(200), 64, random.nextInt(200));
+            this.stateIds[i] = random.nextInt(4);
+            this.bootFingerprints[i] = random.nextInt(2);
+            this.entityHashes[i] = random.nextInt(16);
+        }
+        this.dir = Files.createTempDirectory("trailblazer-test");
+        this.heatmap = new HeatmapExporter(this.dir, 3600);
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        this.heatmap.shutdown();
+        try (final Stream<Path> files = Files.walk(this.dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void stepPathDoesNotAllocateWithGovernorOff() {
+        assertEquals(0, allocatedBytes(new LoadGovernor(-1, 256, 64)));
+    }
+
+    @Test
+    void stepPathDoesNotAllocateWithGovernorEngaged() {
+        assertEquals(0, allocatedBytes(new LoadGovernor(0, 256, 64)));
+    }
+
+    /**
+     * @return how many bytes MEASURED_STEPS steps allocated, after WARMUP_STEPS to warm up.
+     */
+    private long allocatedBytes(LoadGovernor governor) {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue(threads.isThreadAllocatedMemorySupported(), "can't measure allocation on this JVM");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final TrailblazerMetrics metrics = new TrailblazerMetrics();
+        final StepEngine<Rule> engine = new StepEngine<>(new StepHistoryStore(2_000), (d, pos, count, t) -> {
+        });
+        final long[] tick = {0};
+        run(engine, governor, metrics, tick, 0, WARMUP_STEPS);
+        final long before = threads.getCurrentThreadAllocatedBytes();
+        run(engine, governor, metrics, tick, WARMUP_STEPS, MEASURED_STEPS);
+        final long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertTrue(engine.getStore().getEvictedCount() > 0, "nothing was evicted");
+        assertTrue(engine.getStore().getExpiredCount() > 0, "nothing expired");
+        return allocated;
+    }
+
+    private void run(StepEngine<Rule> engine, LoadGovernor governor, TrailblazerMetrics metrics, long[] tick,
+                     int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            if ((i % STEPS_PER_TICK) == 0) {
+                governor.tickEnded();
+                engine.getStore().expire(++tick[0], MAX_EXPIRATIONS_PER_TICK, null);
+            }
+            final int s = i & (STREAM_LENGTH - 1);
+            final long pos = this.positions[s];
+            metrics.countCall();
+            final int weight = governor.admit(DIMENSION, StepHistoryStore.chunkOf(pos));
+            if (weight == 0) {
+                metrics.countEarlyExit(governor.getLastRejection());
+                continue;
+            }
+            this.heatmap.publishStep(DIMENSION, pos, weight);
+            switch (engine.step(RULES, 0, this.stateIds[s], this.bootFingerprints[s], this.entityHashes[s], weight,
+                    DIMENSION, pos, tick[0])) {
+                case NO_RULES -> metrics.countEarlyExit(EarlyExit.NO_BLOCK_RULES);
+                case BOOT_MISMATCH -> metrics.countEarlyExit(EarlyExit.BOOT_MISMATCH);
+                case COUNTED -> metrics.countRuleHit(engine.getLastRule().name());
+                case CONVERTED -> {
+                    metrics.countRuleHit(engine.getLastRule().name());
+                    this.heatmap.publishConversion(DIMENSION, pos);
+                }
+            }
+        }
+    }
+}
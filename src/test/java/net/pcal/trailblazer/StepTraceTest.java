@@ -0,0 +1,170 @@
+package net.pcal.trailblazer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.pcal.trailblazer.TestSupport.pos;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writing traces the way StepTraceRecorder does and reading them back the way StepTraceReplayer does.
+ */
+class StepTraceTest {
+
+    private static final String PLAYER = "minecraft:player";
+    private static final String OVERWORLD = "minecraft:overworld";
+
+    @Test
+    void stepsRoundTrip() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final StepTrace.Writer writer = new StepTrace.Writer(new DataOutputStream(bytes));
+        // enough block states that their ids take two varint bytes, and ticks that go backwards as well
+        final List<String> expected = new ArrayList<>();
+        final long[] ticks = {0, 5, 5, 1_000_000_000_000L, 3, -7};
+        for (int i = 0; i < 300; i++) {
+            final String state = "minecraft:snow[layers=" + i + "]";
+            final long tick = ticks[i % ticks.length];
+            final int stateId = writer.getStateId(state, s -> s);
+            final int bootsId = i % 2 == 0 ? writer.getBootsId("", List.of()) :
+                    writer.getBootsId("minecraft:iron_boots", List.of("minecraft:feather_falling", "minecraft:mending"));
+            writer.writeStep(writer.getEntityTypeId(PLAYER, s -> s), stateId, bootsId,
+                    writer.getDimensionId(OVERWORLD, s -> s), pos(i, -64, -i), tick, i * 31 - 150);
+            expected.add(PLAYER + " " + state + " " + (i % 2 == 0 ? "[]" : "minecraft:iron_boots[minecraft:feather_falling, minecraft:mending]") +
+                    " " + OVERWORLD + " " + pos(i, -64, -i) + " " + tick + " " + (i * 31 - 150));
+        }
+
+        final Trace trace = read(bytes.toByteArray());
+        assertEquals(expected, trace.steps);
+        assertEquals(1, trace.entityTypes.size());
+        assertEquals(300, trace.blockStates.size());
+        assertEquals(2, trace.boots.size());
+        assertEquals(1, trace.dimensions.size());
+    }
+
+    @Test
+    void namesAreOnlyWrittenOnce() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final StepTrace.Writer writer = new StepTrace.Writer(new DataOutputStream(bytes));
+        final int[] named = {0};
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, writer.getEntityTypeId(PLAYER, s -> {
+                named[0]++;
+                return s;
+            }));
+            assertEquals(i % 2, writer.getStateId(i % 2 == 0 ? "minecraft:dirt" : "minecraft:grass_block", s -> {
+                named[0]++;
+                return s;
+            }));
+        }
+        assertEquals(3, named[0]);
+        assertEquals(0, writer.getBootsId("minecraft:iron_boots", List.of("minecraft:mending")));
+        assertEquals(1, writer.getBootsId("minecraft:iron_boots", List.of()));
+        assertEquals(0, writer.getBootsId("minecraft:iron_boots", List.of("minecraft:mending")));
+    }
+
+    @Test
+    void versionOneTracesHaveNoEntityHashes() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(StepTrace.MAGIC);
+        out.writeInt(1);
+        out.writeByte(StepTrace.ENTITY_TYPE);
+        StepTrace.writeVarInt(out, 0);
+        out.writeUTF(PLAYER);
+        out.writeByte(StepTrace.BLOCK_STATE);
+        StepTrace.writeVarInt(out, 0);
+        out.writeUTF("minecraft:dirt");
+        out.writeByte(StepTrace.BOOTS);
+        StepTrace.writeVarInt(out, 0);
+        out.writeUTF("");
+        StepTrace.writeVarInt(out, 0);
+        out.writeByte(StepTrace.DIMENSION);
+        StepTrace.writeVarInt(out, 0);
+        out.writeUTF(OVERWORLD);
+        for (int i = 0; i < 2; i++) {
+            out.writeByte(StepTrace.STEP);
+            for (int j = 0; j < 4; j++) StepTrace.writeVarInt(out, 0);
+            out.writeLong(pos(i, 64, 0));
+            StepTrace.writeZigZagVarLong(out, 20);
+        }
+
+        assertEquals(List.of(PLAYER + " minecraft:dirt [] " + OVERWORLD + " " + pos(0, 64, 0) + " 20 0",
+                PLAYER + " minecraft:dirt [] " + OVERWORLD + " " + pos(1, 64, 0) + " 40 0"), read(bytes.toByteArray()).steps);
+    }
+
+    @Test
+    void varIntsCoverTheirWholeRange() throws IOException {
+        final int[] ints = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        final long[] longs = {0, 1, -1, 63, -64, 64, Long.MAX_VALUE, Long.MIN_VALUE};
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (final int value : ints) StepTrace.writeVarInt(out, value);
+        for (final long value : longs) StepTrace.writeZigZagVarLong(out, value);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (final int value : ints) assertEquals(value, StepTrace.readVarInt(in));
+        for (final long value : longs) assertEquals(value, StepTrace.readZigZagVarLong(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void otherFilesAreRejected() {
+        final IOException e = assertThrows(IOException.class, () -> read(new byte[]{1, 2, 3, 4, 0, 0, 0, 2}));
+        assertTrue(e.getMessage().contains("not a step trace"), e.getMessage());
+    }
+
+    /**
+     * A trace read back into names, one string per step.
+     */
+    private static class Trace implements StepTrace.Visitor {
+
+        final List<String> entityTypes = new ArrayList<>();
+        final List<String> blockStates = new ArrayList<>();
+        final List<String> boots = new ArrayList<>();
+        final List<String> dimensions = new ArrayList<>();
+        final List<String> steps = new ArrayList<>();
+
+        @Override
+        public void entityType(int id, String name) {
+            define(this.entityTypes, id, name);
+        }
+
+        @Override
+        public void blockState(int id, String name) {
+            define(this.blockStates, id, name);
+        }
+
+        @Override
+        public void boots(int id, String bootId, List<String> enchantmentIds) {
+            define(this.boots, id, bootId + enchantmentIds);
+        }
+
+        @Override
+        public void dimension(int id, String name) {
+            define(this.dimensions, id, name);
+        }
+
+        @Override
+        public void step(int entityType, int blockState, int boots, int dimension, long pos, long tick, int entityHash) {
+            this.steps.add(this.entityTypes.get(entityType) + " " + this.blockStates.get(blockState) + " " +
+                    this.boots.get(boots) + " " + this.dimensions.get(dimension) + " " + pos + " " + tick + " " + entityHash);
+        }
+
+        private static void define(List<String> names, int id, String name) {
+            assertEquals(names.size(), id, "ids are given out in order");
+            names.add(name);
+        }
+    }
+
+    private static Trace read(byte[] bytes) throws IOException {
+        final Trace trace = new Trace();
+        StepTrace.read(new DataInputStream(new ByteArrayInputStream(bytes)), "test trace", trace);
+        return trace;
+    }
+}
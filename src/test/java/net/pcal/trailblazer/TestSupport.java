@@ -0,0 +1,109 @@
+package net.pcal.trailblazer;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Helpers shared by the tests.  None of them need Minecraft to be bootstrapped.
+ */
+final class TestSupport {
+
+    private TestSupport() {
+    }
+
+    /**
+     * @return the same value as BlockPos.asLong(x, y, z).
+     */
+    static long pos(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFFL) << 38 | ((long) z & 0x3FFFFFFL) << 12 | (long) y & 0xFFFL;
+    }
+
+    /**
+     * A StepEngine rule with nothing but what the engine needs.
+     */
+    record Rule(String name, int index, int stepCount, int timeoutTicks, boolean distinctEntities,
+                long[] onlyIfBootMasks, long[] skipIfBootMasks) implements StepEngine.StepRule {
+
+        Rule(String name, int index, int stepCount, int timeoutTicks, boolean distinctEntities) {
+            this(name, index, stepCount, timeoutTicks, distinctEntities, new long[0], new long[0]);
+        }
+    }
+
+    /**
+     * @return a rule table that gives every entity type rulesByState[stateId], and no rules for states past
+     * the end.
+     */
+    static StepEngine.RuleTable<Rule> ruleTable(Rule[]... rulesByState) {
+        return (entityTypeId, stateId) -> stateId < rulesByState.length ? rulesByState[stateId] : null;
+    }
+
+    /**
+     * What a walk of an object graph found: how many objects, and roughly how many bytes they take.
+     */
+    record Footprint(long objects, long bytes) {
+    }
+
+    /**
+     * Walk everything reachable from root through instance fields and arrays, adding up object sizes the way
+     * JOL would for a 64-bit JVM with compressed oops (12 byte headers, 16 for arrays, 4 byte references,
+     * everything padded to 8).  Field layout gaps are ignored, so this is a slight underestimate.  Objects of JDK
+     * classes that don't open their fields to reflection are counted but not looked inside.
+     */
+    static Footprint measure(Object root) {
+        final Map<Object, Boolean> seen = new IdentityHashMap<>();
+        final Deque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        long objects = 0, bytes = 0;
+        while (!pending.isEmpty()) {
+            final Object o = pending.pop();
+            if (seen.put(o, Boolean.TRUE) != null) continue;
+            objects++;
+            final Class<?> type = o.getClass();
+            if (type.isArray()) {
+                final Class<?> component = type.getComponentType();
+                final int length = Array.getLength(o);
+                bytes += align(16 + (long) length * sizeOf(component));
+                if (!component.isPrimitive()) {
+                    for (int i = 0; i < length; i++) {
+                        final Object element = Array.get(o, i);
+                        if (element != null) pending.push(element);
+                    }
+                }
+                continue;
+            }
+            long size = 12;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (final Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) continue;
+                    size += sizeOf(field.getType());
+                    if (field.getType().isPrimitive() || !field.trySetAccessible()) continue;
+                    try {
+                        final Object value = field.get(o);
+                        if (value != null && !(value instanceof Class)) pending.push(value);
+                    } catch (IllegalAccessException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+            bytes += align(size);
+        }
+        return new Footprint(objects, bytes);
+    }
+
+    private static int sizeOf(Class<?> type) {
+        if (type == long.class || type == double.class) return 8;
+        if (type == int.class || type == float.class) return 4;
+        if (type == short.class || type == char.class) return 2;
+        if (type == byte.class || type == boolean.class) return 1;
+        return 4;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}